@@ -21,12 +21,17 @@
 package org.openhealthtools.common.utils;
 
 import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
+import org.apache.axiom.om.OMContainer;
 import org.apache.axiom.om.OMElement;
+import org.apache.axiom.om.OMNamespace;
 import org.apache.axiom.om.impl.builder.StAXOMBuilder;
 
 /**
@@ -57,4 +62,24 @@ public class OMUtil {
 		return documentElement;
 	}
 
+	/**
+	 * Collects the namespaces declared on the ancestors of an element, which 
+	 * are in scope for prefixed values such as xsi:type.
+	 * 
+	 * @param ele the element
+	 * @return the namespace URIs by prefix; the default namespace has the empty prefix
+	 */
+	public static Map<String, String> getInScopeNamespaces(OMElement ele) {
+		Map<String, String> namespaces = new HashMap<String, String>();
+		for (OMContainer parent = ele.getParent(); parent instanceof OMElement; parent = ((OMElement) parent).getParent()) {
+			for (Iterator<?> it = ((OMElement) parent).getAllDeclaredNamespaces(); it.hasNext(); ) {
+				OMNamespace ns = (OMNamespace) it.next();
+				String prefix = (ns.getPrefix() == null) ? "" : ns.getPrefix();
+				if (!namespaces.containsKey(prefix))
+					namespaces.put(prefix, ns.getNamespaceURI());
+			}
+		}
+		return namespaces;
+	}
+
 }
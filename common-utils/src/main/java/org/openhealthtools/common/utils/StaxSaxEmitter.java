@@ -0,0 +1,212 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.common.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Replays the events of an element read from an <code>XMLStreamReader</code>
+ * as SAX events, so that an Axiom tree can be fed to a SAX consumer such
+ * as a schema <code>ValidatorHandler</code> or a JAXB <code>UnmarshallerHandler</code>
+ * without serializing it to a string and parsing it again.
+ * <p>
+ * Every occurrence of the from string in attribute values and text is
+ * replaced by the to string on the way. The content of opaque elements, such 
+ * as the base64 Document elements of a Provide and Register request, is 
+ * skipped without its text being read, so that an inline or MTOM document
+ * is neither copied nor encoded; the elements themselves are emitted empty.
+ */
+public class StaxSaxEmitter {
+	private final ContentHandler handler;
+	private final String from;
+	private final String to;
+	private final NamespaceSupport namespaces = new NamespaceSupport();
+	private final List<List<String>> declared = new ArrayList<List<String>>();
+	private Collection<QName> opaqueElements = Collections.emptySet();
+
+	/**
+	 * @param handler the handler receiving the events
+	 * @param from the string to be replaced, or null to keep the content unchanged
+	 * @param to its replacement
+	 */
+	public StaxSaxEmitter(ContentHandler handler, String from, String to) {
+		this.handler = handler;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * Sets the elements whose content is skipped.
+	 *
+	 * @param opaqueElements the qualified names of the elements
+	 */
+	public void setOpaqueElements(Collection<QName> opaqueElements) {
+		this.opaqueElements = opaqueElements;
+	}
+
+	/**
+	 * Emits a complete document holding the element at the current position
+	 * of the reader, which is either the START_DOCUMENT or the START_ELEMENT
+	 * event. The reader is left at the end of the element.
+	 *
+	 * @param reader the reader
+	 * @param inScope the namespaces declared outside the element, by prefix.
+	 * 		The default namespace has the empty prefix.
+	 */
+	public void emit(XMLStreamReader reader, Map<String, String> inScope) throws XMLStreamException, SAXException {
+		handler.startDocument();
+		int depth = 0;
+		int event = reader.getEventType();
+		while (true) {
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				startElement(reader, depth == 0 ? inScope : null);
+				if (opaqueElements.contains(reader.getName())) {
+					skipContent(reader);
+					endElement(reader);
+				} else {
+					depth++;
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				endElement(reader);
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (depth > 0) {
+					char[] text = replace(reader.getText()).toCharArray();
+					handler.characters(text, 0, text.length);
+				}
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				if (depth > 0)
+					handler.processingInstruction(reader.getPITarget(), reader.getPIData());
+				break;
+			}
+			if (depth == 0 && reader.getEventType() == XMLStreamConstants.END_ELEMENT)
+				break;
+			if (!reader.hasNext())
+				throw new XMLStreamException("Unexpected end of element");
+			event = reader.next();
+		}
+		handler.endDocument();
+	}
+
+	/**
+	 * Moves the reader to the end of the current element. Text events are
+	 * passed over without their text being requested.
+	 */
+	private void skipContent(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+
+	private void startElement(XMLStreamReader reader, Map<String, String> inScope) throws SAXException {
+		namespaces.pushContext();
+		List<String> prefixes = new ArrayList<String>();
+		declared.add(prefixes);
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			declare(reader.getNamespacePrefix(i), reader.getNamespaceURI(i), prefixes);
+		}
+		if (inScope != null) {
+			for (Map.Entry<String, String> entry : inScope.entrySet()) {
+				declare(entry.getKey(), entry.getValue(), prefixes);
+			}
+		}
+		//Axiom may not report the declarations of namespaces set on created elements
+		String uri = nonNull(reader.getNamespaceURI());
+		String prefix = nonNull(reader.getPrefix());
+		declare(prefix, uri, prefixes);
+
+		AttributesImpl attributes = new AttributesImpl();
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String attrUri = nonNull(reader.getAttributeNamespace(i));
+			String attrPrefix = nonNull(reader.getAttributePrefix(i));
+			String localName = reader.getAttributeLocalName(i);
+			if (attrUri.length() > 0)
+				declare(attrPrefix, attrUri, prefixes);
+			attributes.addAttribute(attrUri, localName, qName(attrPrefix, localName),
+					"CDATA", replace(reader.getAttributeValue(i)));
+		}
+		handler.startElement(uri, reader.getLocalName(), qName(prefix, reader.getLocalName()), attributes);
+	}
+
+	private void endElement(XMLStreamReader reader) throws SAXException {
+		String prefix = nonNull(reader.getPrefix());
+		handler.endElement(nonNull(reader.getNamespaceURI()), reader.getLocalName(), qName(prefix, reader.getLocalName()));
+		for (String declaredPrefix : declared.remove(declared.size() - 1)) {
+			handler.endPrefixMapping(declaredPrefix);
+		}
+		namespaces.popContext();
+	}
+
+	/**
+	 * Declares a namespace unless it is already bound to the prefix.
+	 */
+	private void declare(String prefix, String uri, List<String> prefixes) throws SAXException {
+		prefix = nonNull(prefix);
+		uri = nonNull(uri);
+		String current = namespaces.getURI(prefix);
+		if (uri.equals(current == null ? "" : current))
+			return;
+		if ("xml".equals(prefix))
+			return;
+		namespaces.declarePrefix(prefix, uri);
+		prefixes.add(prefix);
+		handler.startPrefixMapping(prefix, uri);
+	}
+
+	private String replace(String value) {
+		if (value == null || from == null)
+			return value;
+		return value.replace(from, to);
+	}
+
+	private static String qName(String prefix, String localName) {
+		return (prefix.length() == 0) ? localName : prefix + ":" + localName;
+	}
+
+	private static String nonNull(String value) {
+		return (value == null) ? "" : value;
+	}
+}
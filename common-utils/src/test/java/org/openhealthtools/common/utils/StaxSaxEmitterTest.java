@@ -0,0 +1,148 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+public class StaxSaxEmitterTest {
+	static final String XDSB = "urn:ihe:iti:xds-b:2007";
+	static final String XSI = "http://www.w3.org/2001/XMLSchema-instance";
+
+	static XMLStreamReader reader(String xml) throws Exception {
+		return XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml));
+	}
+
+	/**
+	 * Emits the element at the position of the reader into a DOM document.
+	 */
+	static Document emit(XMLStreamReader reader, Map<String, String> inScope, QName opaque) throws Exception {
+		TransformerHandler handler = ((SAXTransformerFactory) SAXTransformerFactory.newInstance()).newTransformerHandler();
+		DOMResult result = new DOMResult();
+		handler.setResult(result);
+		StaxSaxEmitter emitter = new StaxSaxEmitter(handler, "urn:uuid:", "urn_uuid_");
+		if (opaque != null)
+			emitter.setOpaqueElements(Collections.singleton(opaque));
+		emitter.emit(reader, inScope);
+		return (Document) result.getNode();
+	}
+
+	@Test
+	public void namespacesAndReplacement() throws Exception {
+		XMLStreamReader reader = reader(
+				"<a:root xmlns:a='urn:a' id='urn:uuid:1'>" +
+				"<a:child xmlns:b='urn:b' b:ref='urn:uuid:2'>text urn:uuid:3</a:child>" +
+				"</a:root>");
+
+		Document document = emit(reader, new HashMap<String, String>(), null);
+
+		Element root = document.getDocumentElement();
+		assertEquals("urn:a", root.getNamespaceURI());
+		assertEquals("urn_uuid_1", root.getAttribute("id"));
+		Element child = (Element) root.getFirstChild();
+		assertEquals("urn:a", child.getNamespaceURI());
+		assertEquals("child", child.getLocalName());
+		assertEquals("urn_uuid_2", child.getAttributeNS("urn:b", "ref"));
+		assertEquals("text urn_uuid_3", child.getTextContent());
+		assertEquals(XMLStreamConstants.END_ELEMENT, reader.getEventType());
+	}
+
+	@Test
+	public void nestedElementWithInScopeNamespaces() throws Exception {
+		XMLStreamReader reader = reader(
+				"<root xmlns:xsi='" + XSI + "' xmlns:rim='urn:rim'>" +
+				"<rim:Value xsi:type='rim:Text'>v</rim:Value><after/>" +
+				"</root>");
+		reader.nextTag();
+		reader.nextTag();
+		final List<String> prefixes = new ArrayList<String>();
+		XMLFilterImpl handler = new XMLFilterImpl() {
+			public void startPrefixMapping(String prefix, String uri) throws SAXException {
+				prefixes.add(prefix + "=" + uri);
+			}
+		};
+		Map<String, String> inScope = new HashMap<String, String>();
+		inScope.put("xsi", XSI);
+		inScope.put("rim", "urn:rim");
+
+		new StaxSaxEmitter(handler, null, null).emit(reader, inScope);
+
+		assertTrue(prefixes.contains("xsi=" + XSI));
+		assertTrue(prefixes.contains("rim=urn:rim"));
+		// the reader is left at the end of the element, before the next one
+		assertEquals(XMLStreamConstants.END_ELEMENT, reader.getEventType());
+		assertEquals("Value", reader.getLocalName());
+	}
+
+	@Test
+	public void opaqueContentIsNotRead() throws Exception {
+		XMLStreamReader reader = new StreamReaderDelegate(reader(
+				"<r xmlns='" + XDSB + "'><Document id='d'>QUJD<x/>QUJD</Document><After>a</After></r>")) {
+			public String getText() {
+				String text = super.getText();
+				if (text.contains("QUJD"))
+					throw new IllegalStateException("opaque content read");
+				return text;
+			}
+
+			public char[] getTextCharacters() {
+				throw new IllegalStateException("text read as characters");
+			}
+
+			public int getTextCharacters(int sourceStart, char[] target, int targetStart, int length) {
+				throw new IllegalStateException("text read as characters");
+			}
+		};
+
+		Document document = emit(reader, new HashMap<String, String>(), new QName(XDSB, "Document"));
+
+		Element opaque = (Element) document.getDocumentElement().getFirstChild();
+		assertEquals("Document", opaque.getLocalName());
+		assertEquals("d", opaque.getAttribute("id"));
+		assertNull(opaque.getFirstChild());
+		Element after = (Element) opaque.getNextSibling();
+		assertEquals("After", after.getLocalName());
+		assertEquals("a", after.getTextContent());
+	}
+}
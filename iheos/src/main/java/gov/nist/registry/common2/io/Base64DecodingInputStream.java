@@ -0,0 +1,124 @@
+/*
+ * Base64DecodingInputStream.java
+ */
+
+package gov.nist.registry.common2.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Decodes base64 text read from a <code>Reader</code> chunk by chunk, so that
+ * an inline document never has to be held in memory as a whole decoded array.
+ * <p>
+ * Like <code>org.apache.commons.codec.binary.Base64.decodeBase64</code>,
+ * characters outside of the base64 alphabet, such as line breaks, are ignored
+ * and decoding stops at the first pad character. A final group without padding
+ * is decoded as if it were padded.
+ */
+public class Base64DecodingInputStream extends InputStream {
+	private static final int CHUNK_SIZE = 4096;
+	private static final byte[] DECODE_TABLE = new byte[128];
+
+	static {
+		for (int i = 0; i < DECODE_TABLE.length; i++)
+			DECODE_TABLE[i] = -1;
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++)
+			DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+	}
+
+	private final Reader in;
+	private final char[] chars = new char[CHUNK_SIZE];
+	private final byte[] decoded = new byte[CHUNK_SIZE / 4 * 3 + 2];
+	private int pos = 0;
+	private int limit = 0;
+	private int quantum = 0;
+	private int sextets = 0;
+	private boolean eof = false;
+
+	/**
+	 * @param in the base64 text
+	 */
+	public Base64DecodingInputStream(Reader in) {
+		this.in = in;
+	}
+
+	public int read() throws IOException {
+		if (pos == limit && !fill())
+			return -1;
+		return decoded[pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (pos == limit && !fill())
+			return -1;
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(decoded, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	public int available() {
+		return limit - pos;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Decodes the next chunk of text.
+	 *
+	 * @return false at the end of the content
+	 */
+	private boolean fill() throws IOException {
+		pos = 0;
+		limit = 0;
+		while (limit == 0 && !eof) {
+			int n = in.read(chars, 0, chars.length);
+			if (n == -1) {
+				flush();
+				eof = true;
+			}
+			for (int i = 0; i < n && !eof; i++) {
+				char c = chars[i];
+				if (c == '=') {
+					flush();
+					eof = true;
+					continue;
+				}
+				int value = (c < DECODE_TABLE.length) ? DECODE_TABLE[c] : -1;
+				if (value < 0)
+					continue;
+				quantum = (quantum << 6) | value;
+				if (++sextets == 4) {
+					decoded[limit++] = (byte) (quantum >> 16);
+					decoded[limit++] = (byte) (quantum >> 8);
+					decoded[limit++] = (byte) quantum;
+					quantum = 0;
+					sextets = 0;
+				}
+			}
+		}
+		return limit > 0;
+	}
+
+	/**
+	 * Decodes the bytes of an incomplete last group. A single character
+	 * does not hold a whole byte and is dropped.
+	 */
+	private void flush() {
+		if (sextets == 2) {
+			decoded[limit++] = (byte) (quantum >> 4);
+		} else if (sextets == 3) {
+			decoded[limit++] = (byte) (quantum >> 10);
+			decoded[limit++] = (byte) (quantum >> 2);
+		}
+		quantum = 0;
+		sextets = 0;
+	}
+}
@@ -60,7 +60,29 @@ public class Sha1Bean {
      * @return Value of property sha1String.
      */
     public String getSha1String() throws Exception {
-        byte[] sha1 = getSha1();
+        return toHexString(getSha1());
+    }
+    
+    /**
+     * Computes the sha1 of a stream by reading it in chunks, so the 
+     * content is never held in memory as a whole. The stream is closed.
+     * @param is the stream to digest
+     * @return the hex encoded sha1
+     */
+    public String getSha1String(InputStream is) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA1");
+        try {
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = is.read(buf)) != -1) 
+                md.update(buf, 0, read);
+        } finally {
+            is.close();
+        }
+        return toHexString(md.digest());
+    }
+    
+    private String toHexString(byte[] sha1) {
         StringBuffer buf = new StringBuffer();
         for(int i=0; i<sha1.length; i++) {
             String h = Integer.toHexString(sha1[i] & 0xff);
@@ -72,20 +94,14 @@ public class Sha1Bean {
     
     public String getSha1File(File input) throws Exception {
 		javax.activation.DataHandler dataHandler = new javax.activation.DataHandler(new FileDataSource(input));
-		InputStream is = dataHandler.getInputStream();
-		int file_length = (int) input.length();
-		byte[] inb = new byte[file_length];
-		is.read(inb);
-        setByteStream(inb);
-        return getSha1String();
+        return getSha1String(dataHandler.getInputStream());
     }
     
+    /**
+     * @param size no longer used, the content is streamed to its end
+     */
     public String getSha1(DataHandler dataHandler, int size) throws Exception {
-		InputStream is = dataHandler.getInputStream();
-		byte[] inb = new byte[size];
-		is.read(inb);
-        setByteStream(inb);
-        return getSha1String();
+        return getSha1String(dataHandler.getInputStream());
     }
     
     // SHA1 of Jelani Nelson is:
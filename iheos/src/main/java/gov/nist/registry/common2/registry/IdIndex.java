@@ -1,9 +1,8 @@
 package gov.nist.registry.common2.registry;
 
-import gov.nist.registry.common2.exception.MetadataException;
-
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 
@@ -16,6 +15,12 @@ public class IdIndex {
 	Metadata m;
 	HashMap<String, OMElement> _object_by_id = null;   // id => OMElement
 	HashMap<String, HashMap<String, List<OMElement>>> _object_parts_by_id = null;  // id => HashMap(type => List(OMElement))   type is Slot, Description, ...
+	HashMap<String, HashMap<String, OMAttribute>> _external_identifiers_by_scheme = null;  // id => HashMap(identificationScheme => value attribute)
+	HashMap<String, List<OMElement>> _associations_by_source = new HashMap<String, List<OMElement>>();  // sourceObject => Associations
+	HashMap<String, List<OMElement>> _associations_by_target = new HashMap<String, List<OMElement>>();  // targetObject => Associations
+	HashSet<String> document_ids = new HashSet<String>();
+	HashSet<String> folder_ids = new HashSet<String>();
+	HashSet<String> submission_set_ids = new HashSet<String>();
 	LogMessage log_message = null;
 
 	void set_log_message(LogMessage log_message) {
@@ -26,17 +31,82 @@ public class IdIndex {
 
 	}
 
-	public void setMetadata(Metadata m)  throws MetadataException {
+	public void setMetadata(Metadata m) {
 		this.m = m;
 
 		this.parse_objects_by_id(m.getNonObjectRefs());
 
+		for (OMElement doc : m.getExtrinsicObjects())
+			document_ids.add(m.getId(doc));
+		for (OMElement fol : m.getFolders())
+			folder_ids.add(m.getId(fol));
+		for (OMElement ss : m.getSubmissionSets())
+			submission_set_ids.add(m.getId(ss));
+		for (OMElement assoc : m.getAssociations())
+			index_association(assoc);
 	}
 
-	public IdIndex(Metadata m) throws MetadataException {
+	public IdIndex(Metadata m) {
 		this.setMetadata(m);
 	}
 
+	/**
+	 * Indexes an ExtrinsicObject or Association added to the metadata after the index was built.
+	 */
+	void add_object(OMElement obj) {
+		parse_object_by_id(obj);
+		String type = obj.getLocalName();
+		if (type.equals("ExtrinsicObject"))
+			document_ids.add(m.getId(obj));
+		else if (type.equals("Association"))
+			index_association(obj);
+	}
+
+	/**
+	 * Indexes a Slot added to an object after the index was built.
+	 */
+	void add_slot(String id, OMElement slot) {
+		HashMap<String, List<OMElement>> part_map = object_parts_by_id().get(id);
+		if (part_map != null)
+			part_map.get("Slot").add(slot);
+	}
+
+	private void index_association(OMElement assoc) {
+		add_to(_associations_by_source, m.getAssocSource(assoc), assoc);
+		add_to(_associations_by_target, m.getAssocTarget(assoc), assoc);
+	}
+
+	private void add_to(HashMap<String, List<OMElement>> map, String key, OMElement ele) {
+		List<OMElement> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<OMElement>();
+			map.put(key, list);
+		}
+		list.add(ele);
+	}
+
+	public boolean isDocument(String id) {
+		return document_ids.contains(id);
+	}
+
+	public boolean isFolder(String id) {
+		return folder_ids.contains(id);
+	}
+
+	public boolean isSubmissionSet(String id) {
+		return submission_set_ids.contains(id);
+	}
+
+	public List<OMElement> getAssociationsBySource(String id) {
+		List<OMElement> assocs = _associations_by_source.get(id);
+		return (assocs == null) ? new ArrayList<OMElement>() : assocs;
+	}
+
+	public List<OMElement> getAssociationsByTarget(String id) {
+		List<OMElement> assocs = _associations_by_target.get(id);
+		return (assocs == null) ? new ArrayList<OMElement>() : assocs;
+	}
+
 //	public String getExternalIdentifierValue(String id, String identifier_scheme) {
 //		HashMap<String,List<OMElement>> part_map = object_parts_by_id().get(id);
 //		if (part_map == null)
@@ -70,28 +140,10 @@ public class IdIndex {
 	}
 	
 	public OMAttribute getExternalIdentifierAttribute(String id, String identifier_scheme) {
-		HashMap<String,List<OMElement>> part_map = object_parts_by_id().get(id);
-		if (part_map == null)
+		HashMap<String, OMAttribute> values = external_identifiers_by_scheme().get(id);
+		if (values == null)
 			return null;
-		
-		try {  // huh?
-			@SuppressWarnings("unused")
-			OMElement obj = m.getObjectById(id);
-		} catch (Exception e) {}
-		
-		List<OMElement> external_identifiers = part_map.get("ExternalIdentifier");
-		
-		for (int i=0; i<external_identifiers.size(); i++ ) {
-			OMElement ei = (OMElement) external_identifiers.get(i);
-			OMAttribute id_scheme_att = ei.getAttribute(MetadataSupport.identificationscheme_qname);
-			//String scheme = id_scheme_att.getAttributeValue();
-			if (id_scheme_att != null && id_scheme_att.getAttributeValue().equals(identifier_scheme)) {
-				OMAttribute value_att = ei.getAttribute(MetadataSupport.value_qname);
-				if (value_att != null)
-					return value_att;
-			}
-		}
-		return null;
+		return values.get(identifier_scheme);
 	}
 
 	public List<OMElement> getSlots(String id) {
@@ -232,7 +284,7 @@ public class IdIndex {
 		return name;
 	}
 
-	void parse_objects_by_id(List objects) throws MetadataException {
+	void parse_objects_by_id(List objects) {
 		for (int i=0; i<objects.size(); i++) {
 			OMElement obj = (OMElement) objects.get(i);
 			parse_object_by_id(obj);
@@ -260,7 +312,13 @@ public class IdIndex {
 		return _object_parts_by_id;
 	}
 
-	private void parse_object_by_id(OMElement obj) throws MetadataException {
+	private HashMap<String, HashMap<String, OMAttribute>> external_identifiers_by_scheme() {
+		if (_external_identifiers_by_scheme == null)
+			_external_identifiers_by_scheme = new HashMap<String, HashMap<String, OMAttribute>>();
+		return _external_identifiers_by_scheme;
+	}
+
+	private void parse_object_by_id(OMElement obj) {
 		String id = obj.getAttributeValue(MetadataSupport.id_qname);
 		if (id == null) {
 			return;
@@ -325,6 +383,16 @@ public class IdIndex {
 			parts.put("Element", singleton(obj));
 
 			object_parts_by_id().put(id, parts);
+
+			// the first ExternalIdentifier with a value for each identificationScheme
+			HashMap<String, OMAttribute> values = new HashMap<String, OMAttribute>();
+			for (OMElement ei : external_identifiers) {
+				String scheme = ei.getAttributeValue(MetadataSupport.identificationscheme_qname);
+				OMAttribute value_att = ei.getAttribute(MetadataSupport.value_qname);
+				if (scheme != null && value_att != null && !values.containsKey(scheme))
+					values.put(scheme, value_att);
+			}
+			external_identifiers_by_scheme().put(id, values);
 	}
 
 	public String toString() {
@@ -154,6 +154,9 @@ public class IdParser {
 			String uuid = (String) uuids.get(idIndex);
 			att.setAttributeValue(uuid);
 		}
+
+		// the index of the metadata is by the ids just replaced
+		m.re_index();
 	}
 
 	public HashMap getSymbolicNameUuidMap() {
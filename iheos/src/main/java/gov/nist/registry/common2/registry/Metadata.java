@@ -10,6 +10,7 @@ import gov.nist.registry.common2.xml.Util;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -168,44 +169,33 @@ public class Metadata {
 		allObjects.addAll(associations);
 		allObjects.addAll(classifications);
 		allObjects.addAll(objectRefs);
+		re_index();
 	}
 
 	void rmFromObjectRefs(List<OMElement> set) {
-		for (int i = 0; i < set.size(); i++) {
-			String id = id(set.get(i));
-			boolean restart = true;
-			while (restart) {
-				restart = false;
-				for (int j = 0; j < objectRefs.size(); j++) {
-					if (id.equals(id(objectRefs.get(j)))) {
-						objectRefs.remove(j);
-						restart = true;
-						break;
-					}
-				}
-			}
+		HashSet<String> ids = idSet(set);
+		for (Iterator<OMElement> it = objectRefs.iterator(); it.hasNext();) {
+			if (ids.contains(id(it.next())))
+				it.remove();
 		}
 	}
 
+	// keeps the first object of each id
 	void rmDuplicates(List<OMElement> set) {
-		boolean running = true;
-		while (running) {
-			running = false;
-			for (int targetI = 0; targetI < set.size(); targetI++) {
-				OMElement target = set.get(targetI);
-				String targetId = id(target);
-				for (int i = targetI + 1; i < set.size(); i++) {
-					OMElement it = set.get(i);
-					if (targetId.equals(id(it))) {
-						set.remove(i);
-						running = true;
-						break;
-					}
-				}
-			}
+		HashSet<String> ids = new HashSet<String>();
+		for (Iterator<OMElement> it = set.iterator(); it.hasNext();) {
+			if (!ids.add(id(it.next())))
+				it.remove();
 		}
 	}
 
+	HashSet<String> idSet(List<OMElement> objects) {
+		HashSet<String> ids = new HashSet<String>();
+		for (OMElement object : objects)
+			ids.add(id(object));
+		return ids;
+	}
+
 	public boolean isObjectRefsOnly() {
 		return submissionSets.size() == 0 && extrinsicObjects.size() == 0
 				&& folders.size() == 0 && associations.size() == 0
@@ -218,13 +208,15 @@ public class Metadata {
 		folders = filter(folders, ids);
 		associations = filter(associations, ids);
 		allObjects = filter(allObjects, ids);
+		re_index();
 	}
 
 	List<OMElement> filter(List<OMElement> objects, List<String> ids) {
+		HashSet<String> id_set = new HashSet<String>(ids);
 		List<OMElement> out = new ArrayList<OMElement>();
 		for (OMElement object : objects) {
 			String id = id(object);
-			if (ids.contains(id))
+			if (id_set.contains(id))
 				out.add(object);
 		}
 		return out;
@@ -260,6 +252,7 @@ public class Metadata {
 			allObjects.remove(classification);
 		}
 		classifications.clear();
+		re_index();
 	}
 
 	List<List<OMElement>> get_metadata_containers() {
@@ -469,7 +462,7 @@ public class Metadata {
 		return MetadataSupport.om_factory.createOMElement("root", null);
 	}
 
-	private void re_index() {
+	void re_index() {
 		idIndex = null; // lazy
 	}
 
@@ -480,12 +473,17 @@ public class Metadata {
 	public OMElement addExtrinsicObject(OMElement eo) {
 		extrinsicObjects.add(eo);
 		allObjects.add(eo);
+		if (idIndex != null)
+			idIndex.add_object(eo);
 		return eo;
 	}
 
 	public void addExtrinsicObjects(List<OMElement> eos) {
 		extrinsicObjects.addAll(eos);
 		allObjects.addAll(eos);
+		if (idIndex != null)
+			for (OMElement eo : eos)
+				idIndex.add_object(eo);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -863,24 +861,29 @@ public class Metadata {
 	}
 
 	void addIds(List<String> ids, OMElement ele) {
+		addIds(ids, new HashSet<String>(ids), ele);
+	}
+
+	private void addIds(List<String> ids, HashSet<String> seen, OMElement ele) {
 		if (!ele.getLocalName().equals("ObjectRef")) {
 			String id = ele.getAttributeValue(MetadataSupport.id_qname);
-			if (id != null && !ids.contains(id))
+			if (id != null && seen.add(id))
 				ids.add(id);
 		}
 		for (Iterator it = ele.getChildElements(); it.hasNext();) {
 			OMElement ele2 = (OMElement) it.next();
-			addIds(ids, ele2);
+			addIds(ids, seen, ele2);
 		}
 	}
 
 	public List<String> getAllDefinedIds() {
 		List<String> ids = new ArrayList<String>();
+		HashSet<String> seen = new HashSet<String>();
 		List<OMElement> objects = getAllObjects();
 
 		for (int i = 0; i < objects.size(); i++) {
 			OMElement object = (OMElement) objects.get(i);
-			addIds(ids, object);
+			addIds(ids, seen, object);
 		}
 		return ids;
 	}
@@ -914,6 +917,7 @@ public class Metadata {
 		List<List<OMElement>> containers = this.get_metadata_containers();
 		for (List<OMElement> container : containers)
 			container.remove(ele);
+		re_index();
 	}
 
 	public OMElement getExtrinsicObject(int i) {
@@ -989,6 +993,8 @@ public class Metadata {
 		value_list.addChild(value);
 		value.setText(slot_value);
 		ele.addChild(slot);
+		if (idIndex != null)
+			idIndex.add_slot(id(ele), slot);
 		mustDup = true;
 	}
 
@@ -999,6 +1005,8 @@ public class Metadata {
 				null);
 		slot.addChild(value_list);
 		ele.addChild(slot);
+		if (idIndex != null)
+			idIndex.add_slot(id(ele), slot);
 		mustDup = true;
 		return slot;
 	}
@@ -1259,6 +1267,8 @@ public class Metadata {
 	public OMElement add_association(OMElement a) {
 		associations.add(a);
 		allObjects.add(a);
+		if (idIndex != null)
+			idIndex.add_object(a);
 		return a;
 	}
 
@@ -1301,15 +1311,16 @@ public class Metadata {
 
 	public List<String> getAssocReferences() {
 		List<String> ids = new ArrayList<String>();
+		HashSet<String> seen = new HashSet<String>();
 
 		for (OMElement assoc : associations) {
 			String obj1_id = assoc
 					.getAttributeValue(MetadataSupport.source_object_qname);
 			String obj2_id = assoc
 					.getAttributeValue(MetadataSupport.target_object_qname);
-			if (!listContains(ids, obj1_id))
+			if (obj1_id != null && seen.add(obj1_id))
 				ids.add(obj1_id);
-			if (!listContains(ids, obj2_id))
+			if (obj2_id != null && seen.add(obj2_id))
 				ids.add(obj2_id);
 		}
 
@@ -1329,6 +1340,7 @@ public class Metadata {
 	void parse(boolean discard_duplicates) throws MetadataException,
 			MetadataValidationException {
 		init();
+		re_index();
 		parsed = true;
 
 		detect_metadata_version();
@@ -1336,6 +1348,21 @@ public class Metadata {
 		if (wrapper == null)
 			return;
 
+		// the ids already in each list, when discarding duplicates
+		HashSet<String> all_ids = null, submission_set_ids = null, folder_ids = null,
+				registry_package_ids = null, extrinsic_object_ids = null,
+				object_ref_ids = null, classification_ids = null, association_ids = null;
+		if (discard_duplicates) {
+			all_ids = idSet(allObjects);
+			submission_set_ids = idSet(submissionSets);
+			folder_ids = idSet(folders);
+			registry_package_ids = idSet(registryPackages);
+			extrinsic_object_ids = idSet(extrinsicObjects);
+			object_ref_ids = idSet(objectRefs);
+			classification_ids = idSet(classifications);
+			association_ids = idSet(associations);
+		}
+
 		for (Iterator<OMElement> it = wrapper.getChildElements(); it.hasNext();) {
 			OMElement obj = it.next();
 			String type = obj.getLocalName();
@@ -1351,7 +1378,7 @@ public class Metadata {
 					id_att.setAttributeValue(allocate_id());
 			}
 
-			if (!discard_duplicates || !getIds(allObjects).contains(id(obj)))
+			if (!discard_duplicates || all_ids.add(id(obj)))
 				allObjects.add(obj);
 
 			add_to_classifications_of_id(findClassifications(obj));
@@ -1360,7 +1387,7 @@ public class Metadata {
 				if (has_external_identifier(obj,
 						"urn:uuid:96fdda7c-d067-4183-912e-bf5ee74998a8")) {
 					if (!discard_duplicates
-							|| !getIds(submissionSets).contains(id(obj)))
+							|| submission_set_ids.add(id(obj)))
 						submissionSets.add(obj);
 
 					if (submissionSet != null
@@ -1373,16 +1400,16 @@ public class Metadata {
 				} else if (has_external_identifier(obj,
 						"urn:uuid:75df8f67-9973-4fbe-a900-df66cefecc5a")) {
 					if (!discard_duplicates
-							|| !getIds(folders).contains(id(obj)))
+							|| folder_ids.add(id(obj)))
 						folders.add(obj);
 				}
 				if (!discard_duplicates
-						|| !getIds(registryPackages).contains(id(obj)))
+						|| registry_package_ids.add(id(obj)))
 					registryPackages.add(obj);
 
 			} else if (type.equals("ExtrinsicObject")) {
 				if (!discard_duplicates
-						|| !getIds(extrinsicObjects).contains(id(obj)))
+						|| extrinsic_object_ids.add(id(obj)))
 					extrinsicObjects.add(obj);
 
 			} else if (type.equals("ObjectRef")) {
@@ -1392,19 +1419,19 @@ public class Metadata {
 				// objectRefs.add(obj);
 				// }
 				if (!discard_duplicates
-						|| !contains(getIds(objectRefs), id(obj))) {
+						|| object_ref_ids.add(id(obj))) {
 					objectRefs.add(obj);
 				}
 
 			} else if (type.equals("Classification")) {
 				if (!discard_duplicates
-						|| !getIds(classifications).contains(id(obj)))
+						|| classification_ids.add(id(obj)))
 					classifications.add(obj);
 				add_to_classifications_of_id(obj);
 
 			} else if (type.equals("Association")) {
 				if (!discard_duplicates
-						|| !getIds(associations).contains(id(obj)))
+						|| association_ids.add(id(obj)))
 					associations.add(obj);
 			} else {
 				throw new MetadataException(
@@ -1417,7 +1444,7 @@ public class Metadata {
 				String type_i = obj_i.getLocalName();
 				if (type_i.equals("Classification")) {
 					if (!discard_duplicates
-							|| !getIds(classifications).contains(id(obj_i)))
+							|| classification_ids.add(id(obj_i)))
 						classifications.add(obj_i);
 				}
 			}
@@ -1516,10 +1543,11 @@ public class Metadata {
 
 	public List<OMElement> getAssociationsInclusive(List<String> ids) {
 		List<OMElement> assocs = new ArrayList<OMElement>();
+		HashSet<String> id_set = new HashSet<String>(ids);
 
 		for (OMElement a : this.getAssociations()) {
-			if (ids.contains(getAssocSource(a))
-					&& ids.contains(getAssocTarget(a)))
+			if (id_set.contains(getAssocSource(a))
+					&& id_set.contains(getAssocTarget(a)))
 				assocs.add(a);
 		}
 
@@ -1538,15 +1566,29 @@ public class Metadata {
 	}
 
 	public boolean isSubmissionSet(String id) {
-		return getSubmissionSetIds().contains(id);
+		return index().isSubmissionSet(id);
 	}
 
 	public boolean isFolder(String id) {
-		return getFolderIds().contains(id);
+		return index().isFolder(id);
 	}
 
 	public boolean isDocument(String id) {
-		return this.getExtrinsicObjectIds().contains(id);
+		return index().isDocument(id);
+	}
+
+	/**
+	 * @return the associations whose sourceObject is the id
+	 */
+	public List<OMElement> getAssociationsBySource(String id) {
+		return index().getAssociationsBySource(id);
+	}
+
+	/**
+	 * @return the associations whose targetObject is the id
+	 */
+	public List<OMElement> getAssociationsByTarget(String id) {
+		return index().getAssociationsByTarget(id);
 	}
 
 	public List<OMElement> getFolders() {
@@ -1806,6 +1848,14 @@ public class Metadata {
 	 */
 
 	IdIndex id_index() throws MetadataException {
+		return index();
+	}
+
+	/**
+	 * The hash index of the objects, built on first use and kept up to date by
+	 * the methods adding objects and slots.
+	 */
+	IdIndex index() {
 		if (idIndex == null) {
 			idIndex = new IdIndex(this);
 		}
@@ -29,6 +29,22 @@ public class RegistryUtility {
 			throw new SchemaValidationException("Input did not validate against schema:" + schema_messages);
 	}
 
+	/**
+	 * Schema validates a Provide and Register request or a Retrieve response 
+	 * without reading the content of its documents.
+	 */
+	static public void schema_validate_metadata_local(OMElement pnr, int metadata_type)
+	throws XdsInternalException, SchemaValidationException {
+		String schema_messages = null;
+		try {
+			schema_messages = SchemaValidation.validate_metadata_local(pnr, metadata_type);
+		} catch (Exception e) {
+			throw new XdsInternalException("Schema Validation threw internal error: " + e.getMessage());
+		}
+		if (schema_messages != null && schema_messages.length() > 0)
+			throw new SchemaValidationException("Input did not validate against schema:" + schema_messages);
+	}
+
  	static public RegistryErrorList metadata_validator(Metadata m, boolean is_submit, boolean isPnR, IConnectionDescription connection) throws XdsException {
 		RegistryErrorList rel = new RegistryErrorList((m.isVersion2() ? RegistryErrorList.version_2 : RegistryErrorList.version_3));
 		try {
@@ -0,0 +1,131 @@
+package gov.nist.registry.common2.registry.validation;
+
+import gov.nist.registry.common2.exception.XdsInternalException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openhealthtools.openexchange.actorconfig.net.CodeSet;
+import org.openhealthtools.openexchange.actorconfig.net.IConnectionDescription;
+import org.openhealthtools.openexchange.utils.Pair;
+
+/**
+ * The codes of the Affinity Domain configured on a connection, indexed once and
+ * shared by all the requests: coding scheme => code => display name, and the
+ * file extensions of the mime types. An index is never changed once built, so
+ * a code is checked with two hash lookups and no locking.
+ * <p>
+ * An index is kept for each connection description, and is looked up without
+ * locking. Reloading the actor configuration destroys the actors, and
+ * {@link #clear()} then drops the indexes of the old connection descriptions;
+ * the new ones get new indexes on first use.
+ */
+public class CodeIndex {
+	private static final ConcurrentHashMap<IConnectionDescription, CodeIndex> indexes =
+		new ConcurrentHashMap<IConnectionDescription, CodeIndex>();
+
+	private final Map<String, Map<String, String>> codes;  // coding scheme => code => display name
+	private final Map<String, String> mime_map;  // mime => ext
+	private final Map<String, String> ext_map;   // ext => mime
+
+	/**
+	 * Gets the index of the codes of a connection, building it on first use.
+	 * Requests racing for a new index may each build one, but they all end up
+	 * using the first one kept.
+	 *
+	 * @param connection the connection description holding the code sets
+	 * @throws XdsInternalException if the mime type table is missing or incomplete
+	 */
+	public static CodeIndex getInstance(IConnectionDescription connection) throws XdsInternalException {
+		CodeIndex index = indexes.get(connection);
+		if (index == null) {
+			index = new CodeIndex(connection);
+			CodeIndex existing = indexes.putIfAbsent(connection, index);
+			if (existing != null)
+				index = existing;
+		}
+		return index;
+	}
+
+	/**
+	 * Drops the indexes of all the connections.
+	 */
+	public static void clear() {
+		indexes.clear();
+	}
+
+	CodeIndex(IConnectionDescription connection) throws XdsInternalException {
+		Map<String, Map<String, String>> codes = new HashMap<String, Map<String, String>>();
+		for (String codeType : connection.getAllCodeTypeNames()) {
+			CodeSet codeSet = connection.getCodeSet(codeType);
+			if (codeSet == null)
+				continue;
+			Set<Pair> keys = codeSet.getCodeSetKeys();
+			for (Pair key : keys) {
+				String code = (String) key._first;
+				String coding_scheme = (String) key._second;
+				if (code == null || coding_scheme == null)
+					continue;
+				Map<String, String> scheme_codes = codes.get(coding_scheme);
+				if (scheme_codes == null) {
+					scheme_codes = new HashMap<String, String>();
+					codes.put(coding_scheme, scheme_codes);
+				}
+				scheme_codes.put(code, codeSet.getDisplayName(code, coding_scheme));
+			}
+		}
+		this.codes = codes;
+
+		CodeSet mimeTypeCodeSet = connection.getCodeSet("mimeType");
+		if (mimeTypeCodeSet == null) throw new XdsInternalException("CodeValidation.java: Configuration Error: Cannot find mime type table");
+
+		Map<String, String> mime_map = new HashMap<String, String>();
+		Map<String, String> ext_map = new HashMap<String, String>();
+
+		Set<Pair> mime_codes = mimeTypeCodeSet.getCodeSetKeys();
+		for (Pair code : mime_codes) {
+			String ext = mimeTypeCodeSet.getExt((String)code._first, (String)code._second);
+			if (ext == null) throw new XdsInternalException("CodeValidation.java: Configuration Error: Cannot find ext for mime type:" + (String)code._first );
+			mime_map.put((String)code._first, ext);
+			ext_map.put(ext, (String)code._first);
+		}
+		this.mime_map = mime_map;
+		this.ext_map = ext_map;
+	}
+
+	/**
+	 * Whether the code is defined in the coding scheme by any code type.
+	 */
+	public boolean containsCode(String code, String coding_scheme) {
+		Map<String, String> scheme_codes = codes.get(coding_scheme);
+		return scheme_codes != null && scheme_codes.containsKey(code);
+	}
+
+	/**
+	 * @return the display name of the code, or null if it is not defined
+	 */
+	public String getDisplayName(String code, String coding_scheme) {
+		Map<String, String> scheme_codes = codes.get(coding_scheme);
+		return (scheme_codes == null) ? null : scheme_codes.get(code);
+	}
+
+	public boolean isValidMimeType(String mime_type) {
+		return mime_map.containsKey(mime_type);
+	}
+
+	public Collection<String> getKnownFileExtensions() {
+		return Collections.unmodifiableSet(ext_map.keySet());
+	}
+
+	public String getMimeTypeForExt(String ext) {
+		return ext_map.get(ext);
+	}
+
+	public String getExtForMimeType(String mime_type) {
+		return mime_map.get(mime_type);
+	}
+}
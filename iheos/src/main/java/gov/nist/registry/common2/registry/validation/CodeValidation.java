@@ -9,19 +9,15 @@ import gov.nist.registry.common2.registry.RegistryErrorList;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
 
 import org.apache.axiom.om.OMElement;
-import org.openhealthtools.openexchange.actorconfig.net.CodeSet;
 import org.openhealthtools.openexchange.actorconfig.net.IConnectionDescription;
 import org.openhealthtools.openexchange.patient.data.Identifier;
-import org.openhealthtools.openexchange.utils.Pair;
 
 
-//this gets invoked from both Validator.java and directly from Repository.  Should optimize the implementation so that codes.xml
-//gets cached in memory.
+//this gets invoked from both Validator.java and directly from Repository.  The codes of the
+//Affinity Domain are looked up in the CodeIndex of the connection, which is shared by all requests.
 public class CodeValidation {
 	Metadata m;
 	RegistryErrorList rel;
@@ -30,8 +26,7 @@ public class CodeValidation {
 	IConnectionDescription connection;
 
 	List<Identifier> assigning_authorities;
-	HashMap<String, String> mime_map;  // mime => ext
-	HashMap<String, String> ext_map;   // ext => mime
+	CodeIndex codes;
 
 	public CodeValidation(Metadata m, boolean is_submit, boolean xds_b, 
 			RegistryErrorList rel, IConnectionDescription connection) 
@@ -56,39 +51,23 @@ public class CodeValidation {
 		assigning_authorities = new ArrayList<Identifier>();
 		Identifier aa = connection.getIdentifier("AssigningAuthority");
 		this.assigning_authorities.add(aa);
-		build_mime_map();
+		codes = CodeIndex.getInstance(connection);
 	}
 
 	public boolean isValidMimeType(String mime_type) {
-		return mime_map.containsKey(mime_type);
+		return codes.isValidMimeType(mime_type);
 	}
 
 	public Collection<String> getKnownFileExtensions() {
-		return ext_map.keySet();
+		return codes.getKnownFileExtensions();
 	}
 
 	public String getMimeTypeForExt(String ext) {
-		return ext_map.get(ext);
+		return codes.getMimeTypeForExt(ext);
 	}
 
 	public String getExtForMimeType(String mime_type) {
-		return mime_map.get(mime_type);
-	}
-
-	private void build_mime_map() throws XdsInternalException {
-		CodeSet mimeTypeCodeSet = connection.getCodeSet("mimeType");		
-		if (mimeTypeCodeSet == null) throw new XdsInternalException("CodeValidation.java: Configuration Error: Cannot find mime type table");
-
-		mime_map = new HashMap<String, String>();
-		ext_map = new HashMap<String, String>();
-
-		Set<Pair> codes = mimeTypeCodeSet.getCodeSetKeys();
-		for (Pair code : codes) {
-			String ext = mimeTypeCodeSet.getExt((String)code._first, (String)code._second);
-			if (ext == null) throw new XdsInternalException("CodeValidation.java: Configuration Error: Cannot find ext for mime type:" + (String)code._first );
-			mime_map.put((String)code._first, ext);
-			ext_map.put(ext, (String)code._first);
-		}
+		return codes.getExtForMimeType(mime_type);
 	}
 
 	public List<Identifier> getAssigningAuthorities() {
@@ -198,13 +177,9 @@ public class CodeValidation {
 			err("codingScheme (Slot codingScheme) missing", cl);
 			return;
 		}
-		for ( String codeType : connection.getAllCodeTypeNames()){
-			CodeSet codeSet = connection.getCodeSet(codeType);
-			if (codeSet.containsCode(code, coding_scheme))
-		    {
-				val("Coding of " + coding_scheme, null);
-				return;
-			}
+		if (codes.containsCode(code, coding_scheme)) {
+			val("Coding of " + coding_scheme, null);
+			return;
 		}
 		val("Coding of " + coding_scheme, " (" + code + ") Not Found");
 		err("The code, " + code + ", is not found in the configuration for the Affinity Domain", cl);
@@ -74,7 +74,7 @@ public class Structure {
 			String a_type = assoc.getAttributeValue(MetadataSupport.association_type_qname);
 			String a_source = assoc.getAttributeValue(MetadataSupport.source_object_qname);
 
-			boolean target_is_included_is_doc = m.getExtrinsicObjectIds().contains(a_target); 
+			boolean target_is_included_is_doc = m.isDocument(a_target); 
 
 			if (a_source.equals(ss_id)) {
 				if ( !a_type.equals(assoc_type("HasMember"))) {
@@ -87,7 +87,7 @@ public class Structure {
 								" has sourceObject pointing to Submission Set but contains no SubmissionSetStatus Slot"
 						);
 					} 
-				} else if (m.getFolderIds().contains(a_target)) {
+				} else if (m.isFolder(a_target)) {
 
 				} else {
 
@@ -142,7 +142,7 @@ public class Structure {
 			if ( !source.equals(ss_id))
 				continue;
 
-			boolean target_is_included_doc = m.getExtrinsicObjectIds().contains(target);
+			boolean target_is_included_doc = m.isDocument(target);
 
 			String ss_status = m.getSlotValue(assoc, "SubmissionSetStatus", 0);
 
@@ -201,7 +201,7 @@ public class Structure {
 	// does this id represent a folder in this metadata or in registry?
 	// ammended to only check current submission since this code is in common
 	public boolean isFolder(String id) throws LoggerException, XdsException {
-		return m.getFolderIds().contains(id);
+		return m.isFolder(id);
 //			return true;
 //
 //		if ( !id.startsWith("urn:uuid:"))
@@ -245,9 +245,8 @@ public class Structure {
 		for (OMElement a : non_ss_assocs) {
 			String aId = a.getAttributeValue(MetadataSupport.id_qname);
 			boolean good = false;
-			for (OMElement a2 : m.getAssociations()) {
+			for (OMElement a2 : m.getAssociationsByTarget(aId)) {
 				if (m.getAssocSource(a2).equals(ssId) &&
-						m.getAssocTarget(a2).equals(aId) &&
 						m.getSimpleAssocType(a2).equals("HasMember")) {
 					if (good) {
 						err("Multiple HasMember Associations link Submission Set " + ssId + 
@@ -343,7 +342,7 @@ public class Structure {
 	}
 
 	boolean has_assoc(String source, String type, String target) {
-		List assocs = m.getAssociations();
+		List assocs = m.getAssociationsByTarget(target);
 
 		for (int i=0; i<assocs.size(); i++) {
 			OMElement assoc = (OMElement) assocs.get(i);
@@ -30,8 +30,9 @@ import org.apache.commons.logging.LogFactory;
 
 public class Soap implements SoapInterface {
 	private final static org.apache.commons.logging.Log logger = LogFactory.getLog(Soap.class);
-    ServiceClient serviceClient = null;
 	OMElement result = null;
+	OMElement inHeader = null;
+	OMElement outHeader = null;
 	boolean async;
 	String expectedReturnAction;
 	boolean mtom;
@@ -94,10 +95,11 @@ public class Soap implements SoapInterface {
 //			return;
 //		}
 
-//		try {
-			if (serviceClient == null)
-				serviceClient = new ServiceClient();
-
+		long start = System.currentTimeMillis();
+		SoapClientPool.Endpoint pool = SoapClientPool.getEndpoint(endpoint);
+		ServiceClient serviceClient = SoapClientPool.borrow(pool, addressing, soap12, true);
+		boolean success = false;
+		try {
 			serviceClient.getOptions().setTo(new EndpointReference(endpoint));
 			try {
 				serviceClient.getOptions().setFrom(new EndpointReference(InetAddress.getLocalHost().getHostAddress()));
@@ -121,12 +123,8 @@ public class Soap implements SoapInterface {
 			serviceClient.getOptions().setProperty(Constants.Configuration.ENABLE_MTOM, 
 					((mtom) ? Constants.VALUE_TRUE : Constants.VALUE_FALSE));
 
+			// the pool engages the addressing module on the clients made for addressing
 			serviceClient.getOptions().setAction(action);
-			if (addressing) {
-				serviceClient.engageModule("addressing");
-			} else {
-				serviceClient.disengageModule("addressing");    // this does not work in Axis2 yet
-			}
 
 			serviceClient.getOptions().setSoapVersionURI(
 					((soap12) ? SOAP12Constants.SOAP_ENVELOPE_NAMESPACE_URI : SOAP11Constants.SOAP_ENVELOPE_NAMESPACE_URI)
@@ -137,16 +135,24 @@ public class Soap implements SoapInterface {
 			logger.info("sendRobust " + endpoint);
 			serviceClient.sendRobust(body);
 
+			inHeader = null;
+			outHeader = header(serviceClient, "Out");
+			success = true;
+		} finally {
+			SoapClientPool.release(pool, serviceClient, addressing, soap12, true, success, start);
+		}
 	}
 
 	public OMElement soapCall(OMElement body, Protocol protocol, String endpoint,
 			  String action) 
 	throws  XdsException, AxisFault {
 
-//		try {
-			if (serviceClient == null)
-				serviceClient = new ServiceClient();
-
+		// a client listening for an asynchronous response is not shared
+		long start = System.currentTimeMillis();
+		SoapClientPool.Endpoint pool = SoapClientPool.getEndpoint(endpoint);
+		ServiceClient serviceClient = SoapClientPool.borrow(pool, addressing, soap12, !async);
+		boolean success = false;
+		try {
 			serviceClient.getOptions().setTo(new EndpointReference(endpoint));
 
 			if (System.getenv("XDSHTTP10") != null) {
@@ -166,12 +172,8 @@ public class Soap implements SoapInterface {
 
 			serviceClient.getOptions().setProperty(HTTPConstants.CUSTOM_PROTOCOL_HANDLER, protocol);
 			
+			// the pool engages the addressing module on the clients made for addressing
 			serviceClient.getOptions().setAction(action);
-			if (addressing) {
-				serviceClient.engageModule("addressing");
-			} else {
-				serviceClient.disengageModule("addressing");    // this does not work in Axis2 yet
-			}
 			
 			if (additionalHeaders != null) {
 				for (OMElement hdr : additionalHeaders) {
@@ -183,7 +185,7 @@ public class Soap implements SoapInterface {
 					((soap12) ? SOAP12Constants.SOAP_ENVELOPE_NAMESPACE_URI : SOAP11Constants.SOAP_ENVELOPE_NAMESPACE_URI)
 			);
 
-			if ( async && !serviceClient.getOptions().isUseSeparateListener())
+			if (async)
 				serviceClient.getOptions().setUseSeparateListener(async);
 
 			if (logger.isInfoEnabled()) {
@@ -192,13 +194,16 @@ public class Soap implements SoapInterface {
 			}
 			OMElement result = serviceClient.sendReceive(body);
 
-			if (async)
-				serviceClient.cleanupTransport();
-
 			Object in = serviceClient.getServiceContext().getLastOperationContext().getMessageContexts().get("In");
 			if ( ! (in instanceof MessageContext))
 				throw new XdsInternalException("Soap: In MessageContext of type " + in.getClass().getName() + " instead of MessageContext");
 			MessageContext inMsgCxt = (MessageContext) in;
+
+			// the whole response is read before its connection goes back to the pool
+			inMsgCxt.getEnvelope().buildWithAttachments();
+			inHeader = header(serviceClient, "In");
+			outHeader = header(serviceClient, "Out");
+
 			boolean responseMtom = inMsgCxt.isDoingMTOM();
 
 			if ( mtom != responseMtom)
@@ -215,12 +220,36 @@ public class Soap implements SoapInterface {
 			else
 				verify_returned_action(expectedReturnAction, null);
 
+			success = true;
 			return result;
+		} finally {
+			SoapClientPool.release(pool, serviceClient, addressing, soap12, !async, success, start);
+		}
+	}
 
-//		} catch (AxisFault e) {
-//			throw new XdsException(ExceptionUtil.exception_details(e));
-//		}
+	/**
+	 * Copies the SOAP header of a message of the last call, so that it stays
+	 * available once the client is back in the pool.
+	 */
+	private OMElement header(ServiceClient serviceClient, String label) throws XdsInternalException {
+		OperationContext oc = serviceClient.getLastOperationContext();
+		if (oc == null)
+			return null;
+		HashMap<String, MessageContext> ocs = oc.getMessageContexts();
+		MessageContext mc = ocs.get(label);
+
+		if (mc == null)
+			return null;
+
+		if (mc.getEnvelope() == null)
+			return null;
+
+		if (mc.getEnvelope().getHeader() == null)
+			return null;
+
+		return Util.deep_copy( mc.getEnvelope().getHeader());
 	}
+
 	public OMElement getResult() { return result; }
 
 	void verify_returned_action(String expected_return_action, String alternate_return_action) throws XdsException {
@@ -248,31 +277,11 @@ public class Soap implements SoapInterface {
 	}
 
 	public OMElement getInHeader() throws XdsInternalException {
-		OperationContext oc = serviceClient.getLastOperationContext();
-		HashMap<String, MessageContext> ocs = oc.getMessageContexts();
-		MessageContext in = ocs.get("In");
-
-		if (in == null)
-			return null;
-
-		if (in.getEnvelope() == null)
-			return null;
-
-		if (in.getEnvelope().getHeader() == null)
-			return null;
-
-		return Util.deep_copy( in.getEnvelope().getHeader());
+		return inHeader;
 	}
 
 	public OMElement getOutHeader()  throws XdsInternalException {
-		OperationContext oc = serviceClient.getLastOperationContext();
-		HashMap<String, MessageContext> ocs = oc.getMessageContexts();
-		MessageContext out = ocs.get("Out");
-
-		if (out == null)
-			return null;
-
-		return Util.deep_copy( out.getEnvelope().getHeader());
+		return outHeader;
 	}
 
 	public String getExpectedReturnAction() {
@@ -0,0 +1,263 @@
+package gov.nist.registry.common2.soap;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.client.Options;
+import org.apache.axis2.client.ServiceClient;
+import org.apache.axis2.context.ConfigurationContext;
+import org.apache.axis2.context.ConfigurationContextFactory;
+import org.apache.axis2.transport.http.HTTPConstants;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openhealthtools.openexchange.config.PropertyFacade;
+
+/**
+ * Keeps the Axis2 <code>ServiceClient</code>s used by {@link Soap} for reuse,
+ * along with a pool of persistent HTTP connections per endpoint, so that a SOAP
+ * call neither builds a new client and its axis configuration nor opens a new
+ * TCP connection and TLS session every time.
+ * <p>
+ * The endpoints are told apart by scheme, host and port. Each endpoint has up
+ * to soap.client.max.connections connections, and connections idle for longer
+ * than soap.client.idle.timeout milliseconds are closed.
+ * <p>
+ * The idle clients of an endpoint are kept apart by addressing mode and SOAP
+ * version. A client has the addressing module engaged when it is built, since
+ * Axis2 cannot disengage it, so it is only ever reused for calls of its own mode.
+ * The usage of each endpoint is logged at debug level after every call.
+ */
+public class SoapClientPool {
+	private final static Log logger = LogFactory.getLog(SoapClientPool.class);
+	private static int maxConnections = PropertyFacade.getInteger("soap.client.max.connections", 20);
+	private static int idleTimeout = PropertyFacade.getInteger("soap.client.idle.timeout", 60000);
+
+	private static final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+	private static ConfigurationContext configContext = null;
+	private static IdleConnectionTimeoutThread evictor = null;
+
+	/**
+	 * The clients and connections of an endpoint, and its usage.
+	 */
+	public static class Endpoint {
+		private final String address;
+		private final MultiThreadedHttpConnectionManager connectionManager;
+		private final HttpClient httpClient;
+		private final ConcurrentHashMap<String, ConcurrentLinkedQueue<ServiceClient>> clients =
+			new ConcurrentHashMap<String, ConcurrentLinkedQueue<ServiceClient>>();
+		private final AtomicInteger idleClients = new AtomicInteger();
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong totalTime = new AtomicLong();
+
+		Endpoint(String address) {
+			this.address = address;
+			connectionManager = new MultiThreadedHttpConnectionManager();
+			HttpConnectionManagerParams params = connectionManager.getParams();
+			params.setDefaultMaxConnectionsPerHost(maxConnections);
+			params.setMaxTotalConnections(maxConnections);
+			httpClient = new HttpClient(connectionManager);
+		}
+
+		private ConcurrentLinkedQueue<ServiceClient> clients(String mode) {
+			ConcurrentLinkedQueue<ServiceClient> queue = clients.get(mode);
+			if (queue == null) {
+				queue = new ConcurrentLinkedQueue<ServiceClient>();
+				ConcurrentLinkedQueue<ServiceClient> existing = clients.putIfAbsent(mode, queue);
+				if (existing != null)
+					queue = existing;
+			}
+			return queue;
+		}
+
+		/**
+		 * @return the scheme, host and port of the endpoint
+		 */
+		public String getAddress() {
+			return address;
+		}
+
+		/**
+		 * @return the number of calls made to the endpoint
+		 */
+		public long getCalls() {
+			return calls.get();
+		}
+
+		/**
+		 * @return the number of calls that failed
+		 */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/**
+		 * @return the average time of a call in milliseconds
+		 */
+		public long getAverageTime() {
+			long count = calls.get();
+			return (count == 0) ? 0 : totalTime.get() / count;
+		}
+
+		/**
+		 * @return the number of open connections, in use or kept alive
+		 */
+		public int getConnectionsInPool() {
+			return connectionManager.getConnectionsInPool();
+		}
+
+		/**
+		 * @return the number of clients waiting to be reused
+		 */
+		public int getIdleClients() {
+			return idleClients.get();
+		}
+
+		public String toString() {
+			return address + ": " + getCalls() + " calls, " + getFailures() + " failed, " +
+				getAverageTime() + " ms average, " + getConnectionsInPool() + " connections, " +
+				getIdleClients() + " idle clients";
+		}
+	}
+
+	/**
+	 * Gets the pool of an endpoint, creating it on first use.
+	 *
+	 * @param endpoint the URL of the endpoint
+	 */
+	public static Endpoint getEndpoint(String endpoint) {
+		String address = address(endpoint);
+		Endpoint pool = endpoints.get(address);
+		if (pool == null) {
+			pool = new Endpoint(address);
+			Endpoint existing = endpoints.putIfAbsent(address, pool);
+			if (existing != null) {
+				pool = existing;
+			} else {
+				evict(pool);
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the endpoints called so far
+	 */
+	public static Collection<Endpoint> getEndpoints() {
+		return new ArrayList<Endpoint>(endpoints.values());
+	}
+
+	/**
+	 * Gets the mode of the clients for calls with the given addressing and
+	 * SOAP version. Only clients of the same mode are reused for one another.
+	 */
+	static String mode(boolean addressing, boolean soap12) {
+		return ((addressing) ? "addressing" : "plain") + ((soap12) ? "-soap12" : "-soap11");
+	}
+
+	/**
+	 * Takes a client of the endpoint. Its options are reset, and set to send
+	 * the requests over the connections of the endpoint.
+	 *
+	 * @param pool the endpoint
+	 * @param addressing whether the client has the addressing module engaged
+	 * @param soap12 whether the client sends SOAP 1.2 rather than SOAP 1.1
+	 * @param reusable false for a client that must not be taken from the pool,
+	 * 		such as one listening for an asynchronous response
+	 */
+	static ServiceClient borrow(Endpoint pool, boolean addressing, boolean soap12, boolean reusable) throws AxisFault {
+		ServiceClient client = (reusable) ? pool.clients(mode(addressing, soap12)).poll() : null;
+		if (client != null) {
+			pool.idleClients.decrementAndGet();
+		} else {
+			client = new ServiceClient(getConfigurationContext(), null);
+			if (addressing)
+				client.engageModule("addressing");
+		}
+		Options options = new Options();
+		options.setProperty(HTTPConstants.REUSE_HTTP_CLIENT, Boolean.TRUE);
+		options.setProperty(HTTPConstants.CACHED_HTTP_CLIENT, pool.httpClient);
+		client.setOptions(options);
+		return client;
+	}
+
+	/**
+	 * Gives a client back after a call. A client whose call failed, or that is
+	 * not reusable, is discarded; the connection of the call is released either way.
+	 * The client forgets its last operation context, so that the messages of
+	 * the call, with their attachments, are not kept while the client is idle.
+	 *
+	 * @param pool the endpoint
+	 * @param client the client
+	 * @param addressing whether the client has the addressing module engaged
+	 * @param soap12 whether the client sends SOAP 1.2 rather than SOAP 1.1
+	 * @param reusable whether the client can be taken again
+	 * @param success whether the call succeeded
+	 * @param start the start time of the call
+	 */
+	static void release(Endpoint pool, ServiceClient client, boolean addressing, boolean soap12,
+			boolean reusable, boolean success, long start) {
+		pool.calls.incrementAndGet();
+		pool.totalTime.addAndGet(System.currentTimeMillis() - start);
+		if (!success)
+			pool.failures.incrementAndGet();
+		try {
+			client.cleanupTransport();
+		} catch (AxisFault e) {
+			logger.warn("Cannot release the connection to " + pool.address + ": " + e.getMessage());
+			success = false;
+		}
+		client.getServiceContext().setLastOperationContext(null);
+		if (reusable && success && pool.idleClients.incrementAndGet() <= maxConnections) {
+			client.removeHeaders();
+			pool.clients(mode(addressing, soap12)).offer(client);
+		} else {
+			if (reusable && success)
+				pool.idleClients.decrementAndGet();
+			try {
+				client.cleanup();
+			} catch (AxisFault e) {
+				logger.warn("Cannot clean up a client of " + pool.address + ": " + e.getMessage());
+			}
+		}
+		if (logger.isDebugEnabled())
+			logger.debug(pool);
+	}
+
+	private static synchronized ConfigurationContext getConfigurationContext() throws AxisFault {
+		if (configContext == null)
+			configContext = ConfigurationContextFactory.createConfigurationContextFromFileSystem(null, null);
+		return configContext;
+	}
+
+	private static synchronized void evict(Endpoint pool) {
+		if (evictor == null) {
+			evictor = new IdleConnectionTimeoutThread();
+			evictor.setConnectionTimeout(idleTimeout);
+			evictor.setTimeoutInterval(Math.max(1000, idleTimeout / 2));
+			evictor.start();
+		}
+		evictor.addConnectionManager(pool.connectionManager);
+	}
+
+	private static String address(String endpoint) {
+		try {
+			URL url = new URL(endpoint);
+			int port = (url.getPort() == -1) ? url.getDefaultPort() : url.getPort();
+			return url.getProtocol() + "://" + url.getHost() + ":" + port;
+		} catch (MalformedURLException e) {
+			return endpoint;
+		}
+	}
+}
@@ -9,14 +9,35 @@ import gov.nist.registry.common2.exception.XdsInternalException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.io.PrintStream;
-import java.io.StringReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
 
 import org.apache.axiom.om.OMElement;
-import org.apache.xerces.parsers.DOMParser;
+import org.openhealthtools.common.utils.OMUtil;
+import org.openhealthtools.common.utils.StaxSaxEmitter;
 import org.openhealthtools.openexchange.config.PropertyFacade;
-import org.xml.sax.InputSource;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
 import org.xml.sax.SAXException;
 
 import com.misyshealthcare.connect.util.StringUtil;
@@ -38,24 +59,108 @@ public class SchemaValidation implements MetadataTypes {
 	// even though this says validate_local, it is used by all requests
 	public static String validate_local(OMElement ele, int metadataType)  throws XdsInternalException {
 		String msg;
-		msg = SchemaValidation.run(ele.toString(), metadataType);
+		msg = SchemaValidation.run(ele, metadataType, null);
 		return msg;
 	}
 
+	/**
+	 * The Document elements of the XDS.b Provide and Register request and
+	 * Retrieve response, whose base64 content is not validated by
+	 * {@link #validate_metadata_local(OMElement, int)}.
+	 */
+	static private final Collection<QName> documentElements = Collections.singleton(new QName("urn:ihe:iti:xds-b:2007", "Document"));
+
+	/**
+	 * Validates a message while treating the content of its Document elements
+	 * as opaque. The documents are neither copied nor encoded, so validating a
+	 * large submission costs about as much as validating its metadata alone.
+	 * Whether the content is valid base64 is left to the decoding of the document.
+	 */
+	public static String validate_metadata_local(OMElement ele, int metadataType)  throws XdsInternalException {
+		return SchemaValidation.run(ele, metadataType, documentElements);
+	}
+
+	/**
+	 * The schemas are compiled once per schema folder and metadata type. A
+	 * compiled Schema is thread safe, while its ValidatorHandlers are not,
+	 * so each request borrows one from the pool of the schema.
+	 */
+	static private final Map<String, CompiledSchema> schemas = new ConcurrentHashMap<String, CompiledSchema>();
+
+	static private class CompiledSchema {
+		final Schema schema;
+		final String schemaLocation;
+		final Queue<ValidatorHandler> validators = new ConcurrentLinkedQueue<ValidatorHandler>();
+
+		CompiledSchema(Schema schema, String schemaLocation) {
+			this.schema = schema;
+			this.schemaLocation = schemaLocation;
+		}
+
+		ValidatorHandler borrow() {
+			ValidatorHandler validator = validators.poll();
+			return (validator == null) ? schema.newValidatorHandler() : validator;
+		}
+
+		void release(ValidatorHandler validator) {
+			validator.setErrorHandler(null);
+			validators.offer(validator);
+		}
+	}
 
 	// empty string as result means no errors
-	static private String run(String metadata, int metadataType) throws XdsInternalException {
+	static private String run(OMElement metadata, int metadataType, Collection<QName> opaqueElements) throws XdsInternalException {
+		CompiledSchema compiled = getSchema(metadataType);
 
+		MyErrorHandler errors = new MyErrorHandler();
+		errors.setSchemaFile(compiled.schemaLocation);
+		ValidatorHandler validator = compiled.borrow();
+		validator.setErrorHandler(errors);
 
-		MyErrorHandler errors = null;
-		DOMParser p = null;
+		// run validator on the tree and collect schema errors
+		try {
+			// translate urn:uuid: to urn_uuid_ since the colons really screw up schema stuff
+			StaxSaxEmitter emitter = new StaxSaxEmitter(validator, "urn:uuid:", "urn_uuid_");
+			if (opaqueElements != null)
+				emitter.setOpaqueElements(opaqueElements);
+			emitter.emit(metadata.getXMLStreamReader(), OMUtil.getInScopeNamespaces(metadata));
+		} catch (Exception e) {
+			//The validator is dropped, as its state is unknown
+			throw new XdsInternalException("SchemaValidation: XML parser/Schema validation error: " + 
+					exception_details(e));
+		}
+		compiled.release(validator);
+		String errs = errors.getErrors();
+//		if (errs.length() != 0) {
+//		errs = errs + "\n" + metadata.substring(1,500);
+//		}
+		return errs;
+
+	}
+
+	static private CompiledSchema getSchema(int metadataType) throws XdsInternalException {
 		//Check System property first which takes a priority
-		String localSchema = System.getenv("xds.schema.dir");
-		if (localSchema == null)
-			localSchema = System.getProperty("xds.schema.dir");
+		String schemaDir = System.getenv("xds.schema.dir");
+		if (schemaDir == null)
+			schemaDir = System.getProperty("xds.schema.dir");
+		boolean configured = (schemaDir == null);
+		if (configured)
+			schemaDir = PropertyFacade.getString("xds.schema.dir");
+		String key = schemaDir + "|" + metadataType;
 
-		if (localSchema == null) {
-			String SchemaLoc = PropertyFacade.getString("xds.schema.dir");
+		CompiledSchema compiled = schemas.get(key);
+		if (compiled == null) {
+			compiled = compile(schemaDir, configured, metadataType);
+			schemas.put(key, compiled);
+		}
+		return compiled;
+	}
+
+	static private CompiledSchema compile(String schemaDir, boolean configured, int metadataType) throws XdsInternalException {
+		String localSchema = schemaDir;
+		// a folder from openxds.properties may be given relative to the classpath
+		if (configured) {
+			String SchemaLoc = schemaDir;
 			if (!StringUtil.goodString(SchemaLoc)) {
 			    throw new XdsInternalException("The xds.schema.dir property is not defined in openxds.properties");				
 			}
@@ -77,130 +182,118 @@ public class SchemaValidation implements MetadataTypes {
 		}
 
 		
-  		// Decode schema location
-		String schemaLocation;
+  		// Decode schema files
+		String[] schemaFiles;
 		switch (metadataType) {
 		case METADATA_TYPE_Rb:
-			schemaLocation = "urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0 " + 
-			((localSchema == null) ? 
-					"/v3/lcm.xsd":
-					localSchema + "/v3/lcm.xsd");
+			schemaFiles = new String[] {"/v3/lcm.xsd"};
 			break;
 		case METADATA_TYPE_PR:
 		case METADATA_TYPE_R:
-			schemaLocation = "urn:oasis:names:tc:ebxml-regrep:registry:xsd:2.1 " +
-			((localSchema == null) ?
-			"/v2/rs.xsd" :
-			localSchema + "/v2/rs.xsd");
+			schemaFiles = new String[] {"/v2/rs.xsd"};
 			break;
 		case METADATA_TYPE_Q:
-			schemaLocation =
-			"urn:oasis:names:tc:ebxml-regrep:query:xsd:2.1 " +
-			((localSchema == null) ?
-			"/v2/query.xsd " :
-			localSchema + "/v2/query.xsd "	) + 
-			
-			"urn:oasis:names:tc:ebxml-regrep:registry:xsd:2.1 " +
-			((localSchema == null) ?
-			"/v2/rs.xsd" :
-			localSchema + "/v2/rs.xsd" ) ;
-			
+			schemaFiles = new String[] {"/v2/query.xsd", "/v2/rs.xsd"};
 			break;
 		case METADATA_TYPE_SQ:
-			schemaLocation = "urn:oasis:names:tc:ebxml-regrep:xsd:query:3.0 " + 
-			((localSchema == null) ?
-			"/v3/query.xsd " : 
-			localSchema + "/v3/query.xsd "  ) +
-			
-			"urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0 " + 
-			((localSchema == null) ?
-			"/v3/rs.xsd" :
-			localSchema + "/v3/rs.xsd" );
+			schemaFiles = new String[] {"/v3/query.xsd", "/v3/rs.xsd"};
 			break;
 		case METADATA_TYPE_RET:
-			schemaLocation = "urn:ihe:iti:xds-b:2007 " + 
-			((localSchema == null) ?
-			"/v3/XDS.b_DocumentRepository.xsd " :
-				localSchema + "/v3/XDS.b_DocumentRepository.xsd ") +
-			
-			"urn:oasis:names:tc:ebxml-regrep:xsd:rs:3.0 " + 
-			((localSchema == null) ?
-			"/v3/rs.xsd" :
-			localSchema + "/v3/rs.xsd"	);
+			schemaFiles = new String[] {"/v3/XDS.b_DocumentRepository.xsd", "/v3/rs.xsd"};
 			break;
 		case AUDIT_LOG:
-			schemaLocation = "noNamespaceSchemaLocation " + 
-			((localSchema == null) ?
-			"/audit/healthcare-security-audit.xsd " :
-				localSchema + "/audit/healthcare-security-audit.xsd ");
+			schemaFiles = new String[] {"/audit/healthcare-security-audit.xsd"};
 			break;
 		default:
 			throw new XdsInternalException("SchemaValidation: invalid metadata type = " + metadataType);
 		}
 
-		schemaLocation += " urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0 " + 
-		((localSchema == null) ?
-		"/v3/rim.xsd" :
-			localSchema + 	"/v3/rim.xsd");
-
-		schemaLocation += " http://schemas.xmlsoap.org/soap/envelope/ " + 
-		((localSchema == null) ?
-		"/v3/soap.xsd" :
-			localSchema + 	"/v3/soap.xsd");
-
-
-		schemaLocation += " http://docs.oasis-open.org/wsn/b-2 " + 
-		((localSchema == null) ?
-		"/wsn/b-2.xsd" :
-			localSchema + 	"/wsn/b-2.xsd");
-
-		schemaLocation += " http://docs.oasis-open.org/wsn/br-2 " + 
-		((localSchema == null) ?
-		"/wsn/br-2.xsd" :
-			localSchema + 	"/wsn/br-2.xsd");
-
-		schemaLocation += " http://docs.oasis-open.org/wsn/t-1 " + 
-		((localSchema == null) ?
-		"/wsn/t-1.xsd" :
-			localSchema + 	"/wsn/t-1.xsd");
-		
+		// The WS-Notification schemas import their dependencies from remote locations,
+		// which are read from the copies kept next to them.
+		List<Source> sources = new ArrayList<Source>();
+		StringBuffer schemaLocation = new StringBuffer();
+		for (String schemaFile : schemaFiles) {
+			addSource(sources, schemaLocation, localSchema + schemaFile);
+		}
+		addSource(sources, schemaLocation, localSchema + "/v3/rim.xsd");
+		addSource(sources, schemaLocation, localSchema + "/v3/soap.xsd");
+		addSource(sources, schemaLocation, localSchema + "/wsn/b-2.xsd");
+		addSource(sources, schemaLocation, localSchema + "/wsn/br-2.xsd");
+		addSource(sources, schemaLocation, localSchema + "/wsn/t-1.xsd");
 
-		// build parse to do schema validation
 		try {
-			p=new DOMParser();
-		} catch (Exception e) {
-			throw new XdsInternalException("DOMParser failed: " + e.getMessage());
-		}
-		try {        
-			p.setFeature( "http://xml.org/sax/features/validation", true );
-			p.setFeature("http://apache.org/xml/features/validation/schema", true);
-			p.setProperty("http://apache.org/xml/properties/schema/external-schemaLocation",
-					schemaLocation);
-			errors = new MyErrorHandler();
-			errors.setSchemaFile(schemaLocation);
-			p.setErrorHandler( errors );
+			SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+			factory.setResourceResolver(new LocalSchemaResolver());
+			Schema schema = factory.newSchema(sources.toArray(new Source[sources.size()]));
+			return new CompiledSchema(schema, schemaLocation.toString());
 		} catch (SAXException e) {
-			throw new XdsInternalException("SchemaValidation: error in setting up parser property: SAXException thrown with message: " 
+			throw new XdsInternalException("SchemaValidation: error in loading schema " + schemaLocation + ": " 
 					+ e.getMessage());             
 		}
+	}
 
-		// run parser and collect parser and schema errors
-		try {
-			// translate urn:uuid: to urn_uuid_ since the colons really screw up schema stuff
-			String metadata2 = metadata.replaceAll("urn:uuid:", "urn_uuid_");
-			InputSource is = new InputSource(new StringReader(metadata2));
-			p.parse(is);
-		} catch (Exception e) {
-			throw new XdsInternalException("SchemaValidation: XML parser/Schema validation error: " + 
-					exception_details(e));
+	static private void addSource(List<Source> sources, StringBuffer schemaLocation, String path) {
+		// the system id lets the imports of a schema resolve relative to its folder
+		sources.add(new StreamSource(new File(path).toURI().toString()));
+		if (schemaLocation.length() > 0)
+			schemaLocation.append(' ');
+		schemaLocation.append(path);
+	}
+
+	/**
+	 * Reads a schema imported from a remote location from the folder of the
+	 * importing schema instead, when a copy of it is kept there.
+	 */
+	static private class LocalSchemaResolver implements LSResourceResolver {
+		public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, String baseURI) {
+			if (systemId == null || baseURI == null || !systemId.startsWith("http:"))
+				return null;
+			File local;
+			try {
+				File folder = new File(new URI(baseURI)).getParentFile();
+				local = new File(folder, systemId.substring(systemId.lastIndexOf('/') + 1));
+			} catch (URISyntaxException e) {
+				return null;
+			} catch (IllegalArgumentException e) {
+				// not a file
+				return null;
+			}
+			return (local.isFile()) ? new SchemaInput(publicId, local.toURI().toString(), baseURI) : null;
 		}
-		String errs = errors.getErrors();
-//		if (errs.length() != 0) {
-//		errs = errs + "\n" + metadata.substring(1,500);
-//		}
-		return errs;
+	}
+
+	/**
+	 * A schema read from its system id.
+	 */
+	static private class SchemaInput implements LSInput {
+		private String publicId;
+		private String systemId;
+		private String baseURI;
 
+		SchemaInput(String publicId, String systemId, String baseURI) {
+			this.publicId = publicId;
+			this.systemId = systemId;
+			this.baseURI = baseURI;
+		}
+
+		public String getPublicId() { return publicId; }
+		public void setPublicId(String publicId) { this.publicId = publicId; }
+		public String getSystemId() { return systemId; }
+		public void setSystemId(String systemId) { this.systemId = systemId; }
+		public String getBaseURI() { return baseURI; }
+		public void setBaseURI(String baseURI) { this.baseURI = baseURI; }
+		public Reader getCharacterStream() { return null; }
+		public void setCharacterStream(Reader characterStream) { }
+		public InputStream getByteStream() { return null; }
+		public void setByteStream(InputStream byteStream) { }
+		public String getStringData() { return null; }
+		public void setStringData(String stringData) { }
+		public String getEncoding() { return null; }
+		public void setEncoding(String encoding) { }
+		public boolean getCertifiedText() { return false; }
+		public void setCertifiedText(boolean certifiedText) { }
 	}
+
 	protected static String exception_details(Exception e) {
 		if (e == null)
 			return "No stack trace available";
@@ -0,0 +1,81 @@
+/*
+ * XMLStreamTextReader.java
+ */
+
+package gov.nist.registry.common2.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the text content of an element from an <code>XMLStreamReader</code>
+ * one text event at a time, so that the text of a large element, which may be
+ * split into several text nodes, is never concatenated into a single string.
+ * The text of child elements is not included.
+ */
+public class XMLStreamTextReader extends Reader {
+	private final XMLStreamReader reader;
+	private String text = "";
+	private int pos = 0;
+	private int depth = 1;
+
+	/**
+	 * @param reader the reader, at either the START_DOCUMENT or the
+	 * 		START_ELEMENT event of the element
+	 */
+	public XMLStreamTextReader(XMLStreamReader reader) throws XMLStreamException {
+		this.reader = reader;
+		if (reader.getEventType() == XMLStreamConstants.START_DOCUMENT)
+			reader.nextTag();
+	}
+
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (pos == text.length()) {
+			if (!nextText())
+				return -1;
+		}
+		int n = Math.min(len, text.length() - pos);
+		text.getChars(pos, pos + n, cbuf, off);
+		pos += n;
+		return n;
+	}
+
+	/**
+	 * Does not close the underlying reader: closing the reader of an Axiom
+	 * element closes the parser of the whole message.
+	 */
+	public void close() {
+		depth = 0;
+		text = "";
+		pos = 0;
+	}
+
+	private boolean nextText() throws IOException {
+		try {
+			while (depth > 0) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				} else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS
+						|| event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+					text = reader.getText();
+					pos = 0;
+					return true;
+				}
+			}
+			return false;
+		} catch (XMLStreamException e) {
+			IOException ioe = new IOException(e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		}
+	}
+}
@@ -12,7 +12,7 @@ import gov.nist.registry.common2.exception.XdsException;
 import gov.nist.registry.common2.exception.XdsFormatException;
 import gov.nist.registry.common2.exception.XdsIOException;
 import gov.nist.registry.common2.exception.XdsInternalException;
-import gov.nist.registry.common2.io.Sha1Bean;
+import gov.nist.registry.common2.io.Base64DecodingInputStream;
 import gov.nist.registry.common2.registry.Metadata;
 import gov.nist.registry.common2.registry.MetadataSupport;
 import gov.nist.registry.common2.registry.RegistryResponse;
@@ -20,22 +20,35 @@ import gov.nist.registry.common2.registry.RegistryUtility;
 import gov.nist.registry.common2.registry.Response;
 import gov.nist.registry.common2.registry.XdsCommon;
 import gov.nist.registry.common2.soap.Soap;
+import gov.nist.registry.common2.soap.SoapInterface;
+import gov.nist.registry.common2.xml.XMLStreamTextReader;
 import gov.nist.registry.ws.config.Repository;
+import gov.nist.registry.ws.wsbypass.LocalRegistry;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.axiom.om.OMAttribute;
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMNode;
 import org.apache.axiom.om.OMText;
 import org.apache.axis2.context.MessageContext;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -70,8 +83,20 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
     IConnectionDescription registryClientConnection = null;
 	/* The IHE Audit Trail for this actor. */
 	private IheAuditTrail auditLog = null;
+	/* The document unique ids stored by this submission, which are removed again if it fails. */
+	private List<String> stored_uids = new ArrayList<String>();
 	private final static Log logger = LogFactory.getLog(ProvideAndRegisterDocumentSet.class);
 
+	/* The documents of a submission are stored in parallel when more than one thread is configured. */
+	private static int storeThreads = PropertyFacade.getInteger("repository.store.threads", 1);
+	private static ExecutorService storeExecutor = (storeThreads > 1) ? Executors.newFixedThreadPool(storeThreads, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "RepositoryStore");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}) : null;
+
 //	static {
 //		BasicConfigurator.configure();
 //	}
@@ -119,7 +144,9 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 		        if (!status)
 					throw new XdsException("Invalid Identity Assertion");
 			}
-			pnr.build();
+			// The request is not built up front: the metadata is read first and the
+			// XOP attachments are only opened, from the file cache for the large ones,
+			// when their documents are stored
 			provide_and_register(pnr);
 		}
 		catch (XDSRepositoryMetadataException e) {
@@ -199,22 +226,24 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 	void validate_docs_and_metadata_b(OMElement pnr, Metadata m) throws XDSMissingDocumentException, XDSMissingDocumentMetadataException {
 		List<OMElement> docs = MetadataSupport.childrenWithLocalName(pnr, "Document");
 		List<String> doc_ids = new ArrayList<String>();
+		HashSet<String> doc_id_set = new HashSet<String>();
 
 		for (OMElement doc : docs) {
 			String id = doc.getAttributeValue(MetadataSupport.id_qname);
 			// if id == null or id ==""
 			doc_ids.add(id);
+			doc_id_set.add(id);
 		}
 
 		List<String> eo_ids = m.getExtrinsicObjectIds();
 
 		for (String id : eo_ids) {
-			if ( ! doc_ids.contains(id))
+			if ( ! doc_id_set.contains(id))
 				throw new XDSMissingDocumentException("Document with id " + id + " is missing");
 		}
 
 		for (String id : doc_ids) {
-			if ( ! eo_ids.contains(id))
+			if ( ! m.isDocument(id))
 				throw new XDSMissingDocumentMetadataException("XDSDocumentEntry with id " + id + " is missing");
 		}
 
@@ -225,7 +254,7 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 	XdsInternalException, MetadataException, XdsConfigurationException,
 	XdsIOException, LoggerException, XdsException, IOException, XDSRepositoryMetadataException {
 
-		RegistryUtility.schema_validate_local(	
+		RegistryUtility.schema_validate_metadata_local(	
 				pnr, 
 				(xds_version == xds_a) ? MetadataTypes.METADATA_TYPE_R : MetadataTypes.METADATA_TYPE_RET);
 
@@ -255,6 +284,7 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 		int eo_count = m.getExtrinsicObjectIds().size();
 
 		int doc_count = 0;
+		List<StoredDocument> documents = new ArrayList<StoredDocument>();
 		if (this.xds_version == xds_b) {
 			for (OMElement document : MetadataSupport.childrenWithLocalName(pnr, "Document")) {
 				doc_count++;
@@ -287,11 +317,9 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 				}
 
 				if (optimized) {
-					store_document_swa_xop(m, id, datahandler, datahandler.getContentType(), false /* validate_mime_type */);
+					store_document_swa_xop(m, id, datahandler, datahandler.getContentType(), false /* validate_mime_type */, documents);
 				} else {
-					String base64 = binaryNode.getText();
-					byte[] ba = Base64.decodeBase64(base64.getBytes());
-					store_document_mtom(m, id, ba);
+					store_document_mtom(m, id, document, documents);
 				}
 
 
@@ -312,7 +340,7 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 				if (dh == null) 
 					throw new XDSMissingDocumentException("Cannot find attachment for id " + id);
 
-				store_document_swa_xop(m, id, dh, dh.getContentType(), true /* validate_mime_type */);
+				store_document_swa_xop(m, id, dh, dh.getContentType(), true /* validate_mime_type */, documents);
 			}
 		}
 
@@ -320,6 +348,8 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 			throw new XDSMissingDocumentMetadataException("Submission contained " + doc_count + " documents but " + eo_count +
 			" ExtrinsicObjects in metadata - they must match");
 
+		store_documents(m, documents);
+
 		setRepositoryUniqueId(m);
 
 		OMElement register_transaction = (this.xds_version == xds_a) ? m.getV2SubmitObjectsRequest() : m.getV3SubmitObjectsRequest();
@@ -332,8 +362,20 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 
 		log_message.addOtherParam("Register transaction", register_transaction.toString());
 
+		register(m, pnr, register_transaction, protocol, epr);
+	}
+
+	/**
+	 * Sends the Register transaction and handles its response: a failed
+	 * registration removes the documents of the submission from the repository
+	 * again, a successful one is audited. The call is made on the request 
+	 * thread: the ITI-41 response cannot be completed asynchronously by the 
+	 * synchronous in-out message receivers this service runs under.
+	 */
+	private void register(Metadata m, OMElement pnr, OMElement register_transaction, Protocol protocol, String epr) 
+	throws MetadataException {
 		boolean success = false;
-		Soap soap = new Soap();
+		SoapInterface soap = LocalRegistry.isLocal(epr) ? new LocalRegistry() : new Soap();
 		try {
 			OMElement result;
 			try {
@@ -392,18 +434,8 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 			//ITI-42 Succeed, log a success message
 			auditLog(m, AuditTypeCodes.RegisterDocumentSet_b, false);
 		} else {		
-			List<String> rollbackDocs = new ArrayList<String>();
-			
-			for (OMElement document : MetadataSupport.childrenWithLocalName(pnr, "Document")) {
-				doc_count++;
-				String id = document.getAttributeValue(MetadataSupport.id_qname);
-				String uid = m.getExternalIdentifierValue(id, "urn:uuid:2e82c1f6-a085-4c72-9da3-8640a32e42ab");  // doc uniqueid
-				if (uid != null) {
-					rollbackDocs.add( uid );
-				}
-			}
-
-			rollbackDocument( rollbackDocs );
+			// documents stored by an earlier submission are left in place
+			rollbackDocuments();
 		}
 	}
 
@@ -412,9 +444,12 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 		while (childrenIterator.hasNext())
 		{
 			OMNode container = childrenIterator.next();
-			if (container instanceof OMText && StringUtils.isNotBlank(((OMText)container).getText()))
+			if (container instanceof OMText)
 			{
-				return (OMText)container;
+				OMText text = (OMText)container;
+				// the text of an optimized node is the base64 encoding of the whole attachment
+				if (text.isOptimized() || StringUtils.isNotBlank(text.getText()))
+					return text;
 			}
 		}		
 		return null;
@@ -423,8 +458,9 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 	private void rollbackDocument(List<String> docs) {
 		try {
 			XdsRepositoryService rs = XdsFactory.getXdsRepositoryService();
-			
-			rs.delete(docs, new RepositoryRequestContext());
+			RepositoryRequestContext context = new RepositoryRequestContext();
+			context.setConnection(connection);
+			rs.delete(docs, context);
 			
 		}catch(RepositoryException e) {
 			logger.error("Error rolling back document from the repository - " + e.getMessage(), e);
@@ -435,7 +471,7 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 		return (registry_endpoint == null) ? ConnectionUtil.getTransactionEndpoint(registryClientConnection) : registry_endpoint;
 	}
 
-	void log_headers(Soap soap) throws LoggerException, XdsInternalException {
+	void log_headers(SoapInterface soap) throws LoggerException, XdsInternalException {
 		OMElement in_hdr = soap.getInHeader();
 		OMElement out_hdr = soap.getOutHeader();
 		log_message.addSoapParam("Header sent to Registry", (out_hdr == null) ? "Null" : out_hdr.toString());
@@ -461,11 +497,9 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 		this.registry_endpoint = endpoint;
 	}
 
-	private void store_document_swa_xop(Metadata m, String id, DataHandler dataHandler, String content_type, boolean validate_content_type) 
+	private void store_document_swa_xop(Metadata m, String id, DataHandler dataHandler, String content_type, boolean validate_content_type, List<StoredDocument> documents) 
     throws MetadataException, XdsIOException, XdsInternalException, XdsConfigurationException, XdsException, XDSRepositoryMetadataException {
 		OMElement extrinsic_object = m.getObjectById(id);
-		String actualDocSize = null;
-		String actualDocHash = null;
 		// content type is not guaranteed by the standard so this validation has been removed
 		validate_content_type = false;
 		
@@ -476,25 +510,8 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 		if (uid == null)
 			throw new MetadataException("Document " + id + " does not have a Unique ID");
 		
-		XdsRepositoryService rm = XdsFactory.getXdsRepositoryService();
-		XdsRepositoryItem item = XdsFactory.getXdsReposiotryItem();
-		item.setDocumentUniqueId(uid);
-		item.setDataHandler(dataHandler);
-		
 		String mime_type = extrinsic_object.getAttributeValue(MetadataSupport.mime_type_qname);
 
-		int isize = -1; 
-        try{
-            isize = item.getSize(); 
-        	actualDocSize = Integer.toString(isize);          			
-		}catch (Exception e) {throw new XdsInternalException("Error calculating size on repository file");}
-		
-	    try{
-	    	actualDocHash = (new Sha1Bean()).getSha1(item.getDataHandler(), isize );
-        } catch (Exception e) {	throw new XdsInternalException("Error calculating hash on repository file");}
-            
-		validate_size_and_hash(m, extrinsic_object, actualDocSize, actualDocHash);
-
 		if (mime_type == null || mime_type.equals(""))
 			throw new MetadataException("ExtrinsicObject " + id + " does not have a mimeType");
 
@@ -502,22 +519,7 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 			throw new MetadataException("ExtrinsicObject " + id + " metadata has mimeType is " + mime_type +
 					" but document content type is " + content_type);
 
-		item.setMimeType(mime_type);
-
-		try {
-			RepositoryRequestContext context = new RepositoryRequestContext();
-			context.setConnection(connection);
-			rm.insert(item, context);
-		}catch(RepositoryException e) {
-			throw new XdsException("Error saving document to the repository - " + e.getMessage(), e);
-		}
-		
-		auditLog(m, AuditTypeCodes.ProvideAndRegisterDocumentSet_b, true);
-
-		// set size, hash, URI into metadata
-		m.setSlot(extrinsic_object, "size", actualDocSize);
-		m.setSlot(extrinsic_object, "hash", actualDocHash);
-		//m.setURIAttribute(extrinsic_object, document_uri (uid, mime_type));
+		documents.add(new StoredDocument(extrinsic_object, uid, mime_type, dataHandler));
 	}
 
 	private void validate_size_and_hash(Metadata m, OMElement extrinsic_object,
@@ -540,7 +542,7 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 		}
 	}
 
-	private void store_document_mtom(Metadata m, String id, byte[] bytes) 
+	private void store_document_mtom(Metadata m, String id, OMElement document, List<StoredDocument> documents) 
 	throws MetadataException, XdsIOException, XdsInternalException, XdsConfigurationException, XdsException, XDSRepositoryMetadataException {
 		OMElement extrinsic_object = m.getObjectById(id);
 
@@ -556,36 +558,183 @@ public class ProvideAndRegisterDocumentSet extends XdsCommon {
 		if (mime_type == null || mime_type.equals(""))
 			throw new MetadataException("ExtrinsicObject " + id + " does not have a mimeType");
 
-        DataHandler dataHandler = new DataHandler(new String(bytes), mime_type);
+		DataHandler dataHandler = new DataHandler(new InlineDocumentDataSource(document, mime_type));
 
-		String size_str = Integer.toString(bytes.length);
-		String hash_value = null;
-		try {
-			hash_value = (new Sha1Bean()).getSha1(dataHandler, bytes.length);
-		} catch (Exception e) {
-			throw new XdsInternalException("Error calculating hash on repository file");
+		documents.add(new StoredDocument(extrinsic_object, uid, mime_type, dataHandler));
+	}
+
+	/**
+	 * The content of an inline base64 Document element. The text is decoded
+	 * as it is read, straight from the text nodes of the element, each time
+	 * the content is requested.
+	 */
+	private static class InlineDocumentDataSource implements DataSource {
+		private final OMElement document;
+		private final String mime_type;
+
+		InlineDocumentDataSource(OMElement document, String mime_type) {
+			// built up front, the element can be read from the store threads
+			document.build();
+			this.document = document;
+			this.mime_type = mime_type;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			try {
+				return new Base64DecodingInputStream(new XMLStreamTextReader(document.getXMLStreamReader()));
+			} catch (XMLStreamException e) {
+				IOException ioe = new IOException("Cannot read the document " + document.getAttributeValue(MetadataSupport.id_qname));
+				ioe.initCause(e);
+				throw ioe;
+			}
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Document content is read only");
+		}
+
+		public String getContentType() {
+			return mime_type;
 		}
 
-		validate_size_and_hash(m, extrinsic_object, size_str, hash_value);
+		public String getName() {
+			return document.getAttributeValue(MetadataSupport.id_qname);
+		}
+	}
 
+	/**
+	 * A document of the submission, along with its metadata.
+	 */
+	private static class StoredDocument {
+		final OMElement extrinsic_object;
+		final XdsRepositoryItem item;
+
+		StoredDocument(OMElement extrinsic_object, String uid, String mime_type, DataHandler dataHandler) {
+			this.extrinsic_object = extrinsic_object;
+			this.item = XdsFactory.getXdsReposiotryItem();
+			item.setDocumentUniqueId(uid);
+			item.setDataHandler(dataHandler); 
+			item.setMimeType(mime_type);
+		}
+	}
+
+	/**
+	 * Stores the documents of the submission in the repository with a single 
+	 * batch insert, reading each content only once. The repository backend 
+	 * computes the size and hash of each document while writing it; they are 
+	 * then checked against the metadata. If any document fails this check, 
+	 * the documents stored by this submission are removed from the repository 
+	 * again. A document which was already in the repository is not removed.
+	 */
+	private void store_documents(Metadata m, List<StoredDocument> documents) 
+	throws MetadataException, XdsInternalException, XdsException, XDSRepositoryMetadataException {
+		if (documents.isEmpty())
+			return;
 		XdsRepositoryService rm = XdsFactory.getXdsRepositoryService();
-		XdsRepositoryItem item = XdsFactory.getXdsReposiotryItem();
-		item.setDocumentUniqueId(uid);
-		item.setDataHandler(dataHandler); 
-		item.setMimeType(mime_type);
+		List<XdsRepositoryItem> items = new ArrayList<XdsRepositoryItem>(documents.size());
+		for (StoredDocument document : documents) {
+			items.add(document.item);
+		}
+		RepositoryRequestContext context = new RepositoryRequestContext();
+		context.setConnection(connection);
+		if (storeExecutor != null && items.size() > 1) {
+			insert_in_parallel(rm, items, context);
+		} else {
+			try {
+				stored_uids.addAll(rm.insert(items, context));
+			}catch(RepositoryException e) {
+				throw new XdsException("Error saving document to the repository - " + e.getMessage(), e);
+			}
+		}
+
+		List<String> size_strs = new ArrayList<String>(documents.size());
+		List<String> hash_values = new ArrayList<String>(documents.size());
 		try {
-			RepositoryRequestContext context = new RepositoryRequestContext();
-			context.setConnection(connection);
-			rm.insert(item, context);
-		}catch(RepositoryException e) {
-			throw new XdsException("Error saving document to the repository - " + e.getMessage(), e);
+			for (StoredDocument document : documents) {
+				String size_str = null;
+				String hash_value = null;
+		        try{
+		        	size_str = Integer.toString(document.item.getSize()); 
+				}catch (Exception e) {throw new XdsInternalException("Error calculating size on repository file");}
+			    try{
+			    	hash_value = document.item.getHash();
+		        } catch (Exception e) {	throw new XdsInternalException("Error calculating hash on repository file");}
+
+	        	validate_size_and_hash(m, document.extrinsic_object, size_str, hash_value);
+	        	size_strs.add(size_str);
+	        	hash_values.add(hash_value);
+			}
+        } catch (XDSRepositoryMetadataException e) {
+        	rollbackDocuments();
+        	throw e;
+        } catch (XdsInternalException e) {
+        	rollbackDocuments();
+        	throw e;
+        }
+
+		for (int i = 0; i < documents.size(); i++) {
+			auditLog(m, AuditTypeCodes.ProvideAndRegisterDocumentSet_b, true);		
+
+			// set size, hash, URI into metadata
+			OMElement extrinsic_object = documents.get(i).extrinsic_object;
+			m.setSlot(extrinsic_object, "size", size_strs.get(i));
+			m.setSlot(extrinsic_object, "hash", hash_values.get(i));
+			//m.setURIAttribute(extrinsic_object, document_uri (uid, mime_type));
+		}
+	}
+
+	/**
+	 * Inserts each document on the store thread pool and waits for all of them. 
+	 * If any insert fails, the documents that were stored are removed again, so
+	 * that the submission is stored completely or not at all, as with the batch insert.
+	 * An interrupt fails the submission too, but the inserts still running are 
+	 * waited for first, so that none of them stores a document after the rollback.
+	 */
+	private void insert_in_parallel(final XdsRepositoryService rm, List<XdsRepositoryItem> items, final RepositoryRequestContext context)
+	throws XdsException {
+		List<Future<String>> futures = new ArrayList<Future<String>>(items.size());
+		for (final XdsRepositoryItem item : items) {
+			futures.add(storeExecutor.submit(new Callable<String>() {
+				public String call() throws RepositoryException {
+					// null when the same document was already in the repository
+					return rm.insert(item, context) ? item.getDocumentUniqueId() : null;
+				}
+			}));
 		}
 
-		auditLog(m, AuditTypeCodes.ProvideAndRegisterDocumentSet_b, true);		
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<String> future : futures) {
+			while (true) {
+				try {
+					String uid = future.get();
+					if (uid != null)
+						stored_uids.add(uid);
+					break;
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					if (failure == null)
+						failure = e;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure != null) {
+			rollbackDocuments();
+			throw new XdsException("Error saving document to the repository - " + failure.getMessage(), failure);
+		}
+	}
 
-		m.setSlot(extrinsic_object, "size", size_str);
-		m.setSlot(extrinsic_object, "hash", hash_value);
-		//m.setURIAttribute(extrinsic_object, document_uri (uid, mime_type));
+	private void rollbackDocuments() {
+		if (stored_uids.isEmpty())
+			return;
+		rollbackDocument(stored_uids);
+		stored_uids.clear();
 	}
 
 	void setRepositoryUniqueId(Metadata m) throws MetadataException {
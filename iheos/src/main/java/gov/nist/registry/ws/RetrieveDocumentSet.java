@@ -18,6 +18,7 @@ import gov.nist.registry.ws.serviceclasses.XdsService;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMNamespace;
@@ -149,6 +150,10 @@ public class RetrieveDocumentSet extends XdsCommon {
     ArrayList<OMElement> retrieve_documents(OMElement rds) throws MetadataException, XdsException {
         ArrayList<OMElement> document_responses = new ArrayList<OMElement>();
         ArrayList<Pair> doclist = new ArrayList<Pair>();
+        ArrayList<String> rep_ids = new ArrayList<String>();
+        ArrayList<String> doc_ids = new ArrayList<String>();
+        ArrayList<String> homes = new ArrayList<String>();
+        XdsRepositoryService rm = XdsFactory.getXdsRepositoryService();
         for (OMElement doc_request : MetadataSupport.childrenWithLocalName(rds, "DocumentRequest")) {
             //HashMap<String, String> docMap = new HashMap<String, String>();
             Pair doc = new Pair();
@@ -179,10 +184,26 @@ public class RetrieveDocumentSet extends XdsCommon {
             doc._first = doc_id;
             doc._second = rep_id;
             doclist.add(doc);
-            OMElement document_response = retrieve_document(rep_id, doc_id, home);
+            if (!rep_id.equals(rm.getRepositoryUniqueId())) {
+                response.add_error(MetadataSupport.XDSRepositoryWrongRepositoryUniqueId, "Repository Unique ID in request " +
+                        rep_id +
+                        " does not match this repository's id " +
+                        Repository.getRepositoryUniqueId(),
+                        RegistryUtility.exception_details(null), log_message);
+                continue;
+            }
+            rep_ids.add(rep_id);
+            doc_ids.add(doc_id);
+            homes.add(home);
+        }
 
-            if (document_response != null)
-                document_responses.add(document_response);
+        //All the requested documents are looked up in the repository together 
+        List<XdsRepositoryItem> repositoryItems = retrieve_repository_items(rm, doc_ids);
+        for (int i = 0; i < doc_ids.size(); i++) {
+            XdsRepositoryItem repositoryItem = repositoryItems.get(i);
+            if (repositoryItem == null || repositoryItem.getDataHandler() == null)
+                throw new XdsException("Document is not found in Repository, " + doc_ids.get(i));
+            document_responses.add(document_response(rep_ids.get(i), doc_ids.get(i), homes.get(i), repositoryItem));
         }
         
         auditLog(doclist, AuditCodeMappings.AuditTypeCodes.RetrieveDocumentSet);
@@ -190,29 +211,23 @@ public class RetrieveDocumentSet extends XdsCommon {
         return document_responses;
     }
 
-    OMElement retrieve_document(String rep_id, String doc_id, String home) throws XdsException {
-        XdsRepositoryItem repositoryItem;
-        XdsRepositoryService rm = XdsFactory.getXdsRepositoryService();
-        if (!rep_id.equals(rm.getRepositoryUniqueId())) {
-            response.add_error(MetadataSupport.XDSRepositoryWrongRepositoryUniqueId, "Repository Unique ID in request " +
-                    rep_id +
-                    " does not match this repository's id " +
-                    Repository.getRepositoryUniqueId(),
-                    RegistryUtility.exception_details(null), log_message);
-            return null;
-        }
-        
+    List<XdsRepositoryItem> retrieve_repository_items(XdsRepositoryService rm, List<String> doc_ids) throws XdsException {
+        if (doc_ids.isEmpty())
+            return new ArrayList<XdsRepositoryItem>();
+        List<XdsRepositoryItem> repositoryItems = null;
         try {
             RepositoryRequestContext context = new RepositoryRequestContext();
             context.setConnection(connection);
-            repositoryItem = rm.getRepositoryItem(doc_id, context);
+            repositoryItems = rm.getRepositoryItems(doc_ids, context);
         } catch (RepositoryException e) {
-            throw new XdsException("Cannot find repository item for document id, " + doc_id);
+            throw new XdsException("Cannot find repository item for document id, " + doc_ids);
         }
-        
-        if (repositoryItem == null || repositoryItem.getDataHandler() == null)
+        if (repositoryItems == null || repositoryItems.size() != doc_ids.size())
             throw new XdsException("Document is not found in Repository");
+        return repositoryItems;
+    }
 
+    OMElement document_response(String rep_id, String doc_id, String home, XdsRepositoryItem repositoryItem) {
         OMText t = MetadataSupport.om_factory.createOMText(repositoryItem.getDataHandler(), optimize);
         
         if (logger.isDebugEnabled()) {
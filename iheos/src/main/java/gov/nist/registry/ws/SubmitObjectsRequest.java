@@ -27,7 +27,10 @@ import gov.nist.registry.common2.registry.storedquery.StoredQuerySupport;
 import gov.nist.registry.common2.registry.validation.Structure;
 import gov.nist.registry.common2.registry.validation.Validator;
 import gov.nist.registry.common2.util.PidHelper;
+import gov.nist.registry.common2.xml.Util;
 import gov.nist.registry.ws.config.Registry;
+import gov.nist.registry.ws.sq.ReferencedObjects;
+import gov.nist.registry.ws.sq.RegistryObjectIdFilter;
 import gov.nist.registry.ws.sq.RegistryObjectValidator;
 import gov.nist.registry.ws.sq.RegistryValidations;
 import gov.nist.registry.ws.sq.SQFactory;
@@ -35,10 +38,11 @@ import gov.nist.registry.ws.sq.SQFactory;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerConfigurationException;
 
 import org.apache.axiom.om.OMElement;
@@ -48,7 +52,6 @@ import org.apache.commons.logging.LogFactory;
 import org.openhealthexchange.openpixpdq.data.PatientIdentifier;
 import org.openhealthtools.common.ihe.IheActor;
 import org.openhealthtools.common.utils.HL7;
-import org.openhealthtools.common.utils.OMUtil;
 import org.openhealthtools.common.ws.server.IheHTTPServer;
 import org.openhealthtools.openexchange.actorconfig.net.IConnectionDescription;
 import org.openhealthtools.openexchange.audit.ActiveParticipant;
@@ -226,6 +229,34 @@ public class SubmitObjectsRequest extends XdsCommon {
 
 	}
 
+	/**
+	 * Adds the ids of a raw submission to the registry object id filter. The ids
+	 * that are not uuids are assigned by the registry and unknown here, so the
+	 * filter is then no longer used, as when the submission cannot be parsed.
+	 */
+	void add_raw_ids_to_filter(OMElement sor) {
+		RegistryObjectIdFilter filter = RegistryObjectIdFilter.getInstance();
+		if (filter == null)
+			return;
+		try {
+			List<String> ids = new Metadata(sor).getAllDefinedIds();
+			for (String id : ids) {
+				if ( !id.startsWith("urn:uuid:")) {
+					logger.warn("Raw submission with the symbolic id " + id + ", the registry object id filter is no longer used");
+					filter.invalidate();
+					return;
+				}
+			}
+			filter.add(ids);
+		} catch (MetadataException e) {
+			logger.warn("Cannot read the ids of a raw submission, the registry object id filter is no longer used: " + e.getMessage());
+			filter.invalidate();
+		} catch (MetadataValidationException e) {
+			logger.warn("Cannot read the ids of a raw submission, the registry object id filter is no longer used: " + e.getMessage());
+			filter.invalidate();
+		}
+	}
+
 	void SubmitObjectsRequestInternal(OMElement sor) 
 	throws SQLException, SchemaValidationException, MetadataValidationException, XdsInternalException, TransformerConfigurationException,
 	LoggerException, MetadataValidationException, XdsException {
@@ -234,7 +265,9 @@ public class SubmitObjectsRequest extends XdsCommon {
 		//String sor_string = sor.toString();
 
 		if (submit_raw ) {
-			status = submit_to_backend_registry(sor.toString());
+			status = submit_to_backend_registry(sor, null, null);
+			if (status)
+				add_raw_ids_to_filter(sor);
 			return;
 		}
 
@@ -286,16 +319,26 @@ public class SubmitObjectsRequest extends XdsCommon {
 
 
 
-		// check for references to registry contents
+		// fetch the registry contents referenced by this submission, and the XFRM and APND
+		// documents of the documents it replaces, in one query
 		List<String> referenced_objects = m.getIdsOfReferencedObjects();
+		List<String> deprecatable_object_ids = m.getObjectIdsToDeprecate();
+		List<String> fetched_ids = new ArrayList<String>(referenced_objects);
+		for (String id : deprecatable_object_ids) {
+			if (!fetched_ids.contains(id))
+				fetched_ids.add(id);
+		}
+		ReferencedObjects referenced = rov.getReferencedObjects(fetched_ids, deprecatable_object_ids);
+
+		// check for references to registry contents
 		if (referenced_objects.size() > 0 && vals != null) {
-			List<String> missing = vals.validateApproved(referenced_objects);
+			List<String> missing = referenced.validateApproved(referenced_objects);
 			if (missing != null) 
 				throw new XdsDeprecatedException("The following registry objects were referenced by this submission but are not present, as Approved documents, in the registry: " +
 						missing);
 
 			// make allowance for by reference inclusion
-			missing = rov.validateSamePatientId(m.getReferencedObjectsThatMustHaveSamePatientId(), patient_id);
+			missing = referenced.validateSamePatientId(m.getReferencedObjectsThatMustHaveSamePatientId(), patient_id);
 			if (missing != null) 
 				throw new XdsPatientIdDoesNotMatchException("The following registry objects were referenced by this submission but do not reference the same patient ID: " +
 						missing);
@@ -335,54 +378,57 @@ public class SubmitObjectsRequest extends XdsCommon {
 
 
 		// if this submission adds a document to a folder then update that folder's lastUpdateTime Slot
-		updateFolderTimes(m);
+		updateFolderTimes(m, referenced);
 
 		// submit to backend registry
-		String to_backend = m.getV3SubmitObjectsRequest().toString();
-
-		log_message.addOtherParam("From Registry Adaptor", to_backend);
-
-		status = submit_to_backend_registry(to_backend);
-		if (!status) {
-			return;
-		}
-
-		auditLog(patient_id, ssUid, AuditTypeCodes.RegisterDocumentSet_b);
+		OMElement to_backend = m.getV3SubmitObjectsRequest();
 
 		// Approve
 		List<String> approvable_object_ids = ra.approvable_object_ids(m);
+		OMElement approve = null;
 
 		if (approvable_object_ids.size() > 0) {
 
-			OMElement approve = ra.getApproveObjectsRequest(approvable_object_ids);
+			approve = ra.getApproveObjectsRequest(approvable_object_ids);
 
 			log_message.addOtherParam("Approve", approve.toString());
-
-			submit_to_backend_registry(approve.toString());
 		}
 
 		// Deprecate
-		List<String> deprecatable_object_ids = m.getObjectIdsToDeprecate();
 		// add to the list of things to deprecate, any XFRM or APND documents hanging off documents
-		// in the deprecatable_object_ids list
-		deprecatable_object_ids.addAll(rov.getXFRMandAPNDDocuments(deprecatable_object_ids));
+		// in the deprecatable_object_ids list, whether already in the registry or in this submission
+		List<String> submitted_xfrm_and_apnd_ids = getXFRMandAPNDDocuments(m, deprecatable_object_ids);
+		deprecatable_object_ids.addAll(referenced.getXFRMandAPNDDocuments(deprecatable_object_ids));
+		OMElement deprecate = null;
 
 		if (deprecatable_object_ids.size() > 0) {
 
 			// validate that these are documents first
-			List<String> missing = rov.validateDocuments(deprecatable_object_ids);
+			List<String> missing = referenced.validateDocuments(deprecatable_object_ids);
 			if (missing != null) 
 				throw new XdsException("The following documents were referenced by this submission but are not present in the registry: " +
 						missing);
 
+			deprecatable_object_ids.addAll(submitted_xfrm_and_apnd_ids);
 
-			OMElement deprecate = ra.getDeprecateObjectsRequest(deprecatable_object_ids);
+			deprecate = ra.getDeprecateObjectsRequest(deprecatable_object_ids);
 
 			log_message.addOtherParam("Deprecate", deprecate.toString());
+		}
 
-			submit_to_backend_registry(deprecate.toString());
+		// the submission, its approval and the deprecation of the documents it replaces
+		// are saved in a single registry transaction
+		status = submit_to_backend_registry(to_backend, approve, deprecate);
+		if (!status) {
+			return;
 		}
 
+		RegistryObjectIdFilter filter = RegistryObjectIdFilter.getInstance();
+		if (filter != null)
+			filter.add(ids_in_submission);
+
+		auditLog(patient_id, ssUid, AuditTypeCodes.RegisterDocumentSet_b);
+
 		log_response();
 
 
@@ -405,10 +451,12 @@ public class SubmitObjectsRequest extends XdsCommon {
 	}
 
 	// this applies only to folders in the registry.  folders in the submission are handled separately
-	private void updateFolderTimes(Metadata m) throws MetadataException,
+	private void updateFolderTimes(Metadata m, ReferencedObjects referenced) throws MetadataException,
 	LoggerException, XdsException, XdsInternalException,
 	XMLParserException, MetadataValidationException {
 		log_message.addOtherParam("start update folder","");
+		List<String> folder_ids = new ArrayList<String>();
+		Set<String> seen = new HashSet<String>();
 		for (OMElement assoc : m.getAssociations()) {
 			log_message.addOtherParam("assoc type is ", m.getSimpleAssocType(assoc));
 			if ( !m.getSimpleAssocType(assoc).equals("HasMember")) 
@@ -417,30 +465,56 @@ public class SubmitObjectsRequest extends XdsCommon {
 			log_message.addOtherParam("sourceid  ", sourceId);
 			if (m.getSubmissionSetId().equals(sourceId))
 				continue;  // sourceObject is SS
-			if (m.getFolderIds().contains(sourceId))
+			if (m.isFolder(sourceId))
 				continue;  // sourceObject is folder in submission - handled elsewhere
 
 			// sourceObject must be folder in registry, no other possibilities
-			log_message.addOtherParam("Adding to Registry Folder ", sourceId);
-			Metadata fm = fetchFolderbyId(sourceId);
-			if (fm.getFolders().size() == 0)
-				throw new XdsException("Adding to folder, sourceObject, " + sourceId + ", is not a folder in submission or in Registry");
-			// Set XDSFolder.lastUpdateTime
-			String timestamp = new Hl7Date().now();
-			for (OMElement fol : fm.getFolders()) {
-				fm.setSlot(fol, "lastUpdateTime", timestamp);
+			if (seen.add(sourceId)) {
+				log_message.addOtherParam("Adding to Registry Folder ", sourceId);
+				folder_ids.add(sourceId);
 			}
+		}
+		if (folder_ids.size() == 0)
+			return;
+
+		// the folders named by the submission were fetched with the other registry objects it
+		// references; those holding the documents it replaces are fetched here, in one query
+		List<OMElement> folders = referenced.getFolders(folder_ids);
+		List<String> unfetched = referenced.validateFolders(folder_ids);
+		if (unfetched != null) {
+			Metadata rm = fetchFoldersById(unfetched);
+			for (String id : unfetched) {
+				if ( !rm.isFolder(id))
+					throw new XdsException("Adding to folder, sourceObject, " + id + ", is not a folder in submission or in Registry");
+			}
+			folders.addAll(rm.getFolders());
+		}
 
-			m.addMetadata(fm);   // add to metadata collection, will get submitted back along with new metadata
+		OMElement folder_list = MetadataSupport.om_factory.createOMElement("RegistryObjectList", MetadataSupport.ebRIMns3);
+		for (OMElement fol : folders)
+			folder_list.addChild(Util.deep_copy(fol));
+		Metadata fm = MetadataParser.parseNonSubmission(folder_list);
 
+		// Set XDSFolder.lastUpdateTime
+		String timestamp = new Hl7Date().now();
+		for (OMElement fol : fm.getFolders()) {
+			fm.setSlot(fol, "lastUpdateTime", timestamp);
 		}
+
+		m.addMetadata(fm);   // add to metadata collection, will get submitted back along with new metadata
 	}
 
-	private Metadata fetchFolderbyId(String sourceId)
+	private Metadata fetchFoldersById(List<String> ids)
 	throws XMLParserException, LoggerException, XdsInternalException,
 	MetadataException, MetadataValidationException {
+		StringBuffer id_list = new StringBuffer();
+		for (String id : ids) {
+			if (id_list.length() > 0)
+				id_list.append(",");
+			id_list.append("'").append(id).append("'");
+		}
 		BackendRegistry reg = new BackendRegistry(response,log_message);
-		OMElement res = reg.basic_query("SELECT * from RegistryPackage rp WHERE rp.id='" + sourceId + "'", 
+		OMElement res = reg.basic_query("SELECT * from RegistryPackage rp WHERE rp.id IN (" + id_list + ")", 
 				true /* leaf_class */);
 
 		Metadata fm = MetadataParser.parseNonSubmission(res);
@@ -461,6 +535,23 @@ public class SubmitObjectsRequest extends XdsCommon {
 		return new Structure(new Metadata(), false).isFolder(sourceId);
 	}
 
+	/**
+	 * Gets the XFRM and APND documents of the submission that hang off the given documents.
+	 * The registry query only finds those already in the registry, as the submission is
+	 * saved together with the deprecation.
+	 */
+	private List<String> getXFRMandAPNDDocuments(Metadata m, List<String> uuids) throws MetadataException {
+		List<String> ids = new ArrayList<String>();
+		List<String> document_ids = m.getExtrinsicObjectIds();
+		for (OMElement assoc : m.getAssociations()) {
+			String type = m.getSimpleAssocType(assoc);
+			if ((type.equals("XFRM") || type.equals("APND")) && uuids.contains(m.getAssocTarget(assoc))
+					&& document_ids.contains(m.getAssocSource(assoc)))
+				ids.add(m.getAssocSource(assoc));
+		}
+		return ids;
+	}
+
 	private void addRPLCToFolder(Metadata m) throws MetadataException,
 	LoggerException, XdsException {
 		Map<String, String> rplcToOrigIds = new HashMap<String, String>();
@@ -575,23 +666,13 @@ public class SubmitObjectsRequest extends XdsCommon {
 	//						" this Affinity Domain requires " + config_assigning_authority);
 	//	}
 
-	private boolean submit_to_backend_registry(String sor_string) throws XdsInternalException {
+	private boolean submit_to_backend_registry(OMElement submit, OMElement approve, OMElement deprecate) throws XdsInternalException {
 		boolean status = true;
 
 		XdsRegistryLifeCycleService lcm = XdsFactory.getXdsRegistryLifeCycleService();
 		OMElement result = null;
 		try {
-			OMElement request = OMUtil.xmlStringToOM(sor_string);
-			if(request.getLocalName().equalsIgnoreCase("SubmitObjectsRequest")){
-				result = lcm.submitObjects(request, new RegistryLifeCycleContext());
-			}else if(request.getLocalName().equalsIgnoreCase("ApproveObjectsRequest")){
-				result = lcm.approveObjects(request, new RegistryLifeCycleContext());	
-			}else if(request.getLocalName().equalsIgnoreCase("DeprecateObjectsRequest")){
-				result = lcm.deprecateObjects(request, new RegistryLifeCycleContext());
-			}
-		}catch(XMLStreamException e) {
-			response.add_error("XDSRegistryError", e.getMessage(), RegistryUtility.exception_details(e),log_message);
-			status = false;
+			result = lcm.registerObjects(submit, approve, deprecate, new RegistryLifeCycleContext());
 		}catch(RegistryLifeCycleException e) {
 			response.add_error("XDSRegistryError", e.getMessage(), RegistryUtility.exception_details(e),log_message);
 			status = false;			
@@ -0,0 +1,146 @@
+package gov.nist.registry.ws.sq;
+
+import gov.nist.registry.common2.exception.MetadataException;
+import gov.nist.registry.common2.registry.Metadata;
+import gov.nist.registry.common2.registry.MetadataSupport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.axiom.om.OMElement;
+
+/**
+ * The registry objects referenced by a submission, along with the XFRM and APND
+ * documents of the documents it replaces, as fetched by
+ * {@link RegistryObjectValidator#getReferencedObjects(List, List)} in a single
+ * query. The checks on the references of the submission are made on these
+ * objects instead of each asking the registry again.
+ * <p>
+ * Like the checks of <code>RegistryObjectValidator</code>, each check returns
+ * the ids that fail it, or null if none do.
+ */
+public class ReferencedObjects {
+	private final Metadata m;
+
+	public ReferencedObjects(Metadata m) {
+		this.m = m;
+	}
+
+	/**
+	 * @return the ids that are not Approved documents, folders or submission sets
+	 */
+	public List<String> validateApproved(List<String> uuids) throws MetadataException {
+		List<String> missing = null;
+		for (String uuid : uuids) {
+			OMElement ele = m.getObjectById(uuid);
+			if (ele == null || !isDocumentOrPackage(ele) || !"Approved".equals(m.stripNamespace(m.getStatus(ele)))) {
+				if (missing == null)
+					missing = new ArrayList<String>();
+				missing.add(uuid);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * @return the ids that are not documents, folders or submission sets of the patient
+	 */
+	public List<String> validateSamePatientId(List<String> uuids, String patient_id) throws MetadataException {
+		List<String> missing = null;
+		for (String uuid : uuids) {
+			OMElement ele = m.getObjectById(uuid);
+			if (ele == null || !hasPatientId(ele, patient_id)) {
+				if (missing == null)
+					missing = new ArrayList<String>();
+				missing.add(uuid);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * @return the ids that are not documents
+	 */
+	public List<String> validateDocuments(List<String> uuids) throws MetadataException {
+		List<String> missing = null;
+		for (String uuid : uuids) {
+			OMElement ele = m.getObjectById(uuid);
+			if (ele == null || !ele.getLocalName().equals("ExtrinsicObject")) {
+				if (missing == null)
+					missing = new ArrayList<String>();
+				missing.add(uuid);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * @return the ids that are not folders
+	 */
+	public List<String> validateFolders(List<String> uuids) {
+		List<String> missing = null;
+		for (String uuid : uuids) {
+			if (!m.isFolder(uuid)) {
+				if (missing == null)
+					missing = new ArrayList<String>();
+				missing.add(uuid);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * @return the folders among the given ids
+	 */
+	public List<OMElement> getFolders(List<String> uuids) throws MetadataException {
+		List<OMElement> folders = new ArrayList<OMElement>();
+		for (String uuid : uuids) {
+			if (m.isFolder(uuid))
+				folders.add(m.getObjectById(uuid));
+		}
+		return folders;
+	}
+
+	/**
+	 * @return the ids of the documents that transform or append to the given documents
+	 */
+	public List<String> getXFRMandAPNDDocuments(List<String> uuids) throws MetadataException {
+		List<String> ids = new ArrayList<String>();
+		for (OMElement assoc : m.getAssociations()) {
+			String type = m.getSimpleAssocType(assoc);
+			if (!type.equals("XFRM") && !type.equals("APND"))
+				continue;
+			if (!uuids.contains(m.getAssocTarget(assoc)))
+				continue;
+			String source = m.getAssocSource(assoc);
+			OMElement ele = m.getObjectById(source);
+			if (ele != null && ele.getLocalName().equals("ExtrinsicObject") && !ids.contains(source))
+				ids.add(source);
+		}
+		return ids;
+	}
+
+	/**
+	 * Whether the patient id of the document, folder or submission set is the given one.
+	 */
+	private boolean hasPatientId(OMElement ele, String patient_id) {
+		List<String> schemes = new ArrayList<String>();
+		if (ele.getLocalName().equals("ExtrinsicObject")) {
+			schemes.add(MetadataSupport.XDSDocumentEntry_patientid_uuid);
+		} else if (ele.getLocalName().equals("RegistryPackage")) {
+			schemes.add(MetadataSupport.XDSSubmissionSet_patientid_uuid);
+			schemes.add(MetadataSupport.XDSFolder_patientid_uuid);
+		}
+		for (OMElement ei : MetadataSupport.childrenWithLocalName(ele, "ExternalIdentifier")) {
+			if (schemes.contains(ei.getAttributeValue(MetadataSupport.identificationscheme_qname))
+					&& patient_id != null && patient_id.equals(ei.getAttributeValue(MetadataSupport.value_qname)))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean isDocumentOrPackage(OMElement ele) {
+		String type = ele.getLocalName();
+		return type.equals("ExtrinsicObject") || type.equals("RegistryPackage");
+	}
+}
@@ -0,0 +1,154 @@
+package gov.nist.registry.ws.sq;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openhealthtools.openexchange.config.PropertyFacade;
+import org.openhealthtools.openxds.registry.dao.RegistryObjectDao;
+
+/**
+ * A Bloom filter of the ids of the objects in the registry. An id the filter
+ * does not contain is certainly not in the registry, so the ids of a new
+ * submission need only be looked up in the registry when the filter may
+ * contain them, which, for fresh UUIDs, is almost never.
+ * <p>
+ * The filter is filled with the ids of all the objects in the registry when the
+ * registry starts, and then with the ids of every submission saved by this
+ * registry. Until it is loaded, every id is looked up in the registry. It is
+ * therefore only correct when no one else writes to the registry database, and
+ * is used only when the registry.id.filter property is true. It is sized for
+ * registry.id.filter.capacity ids with a false positive rate of 1%; past this
+ * number the rate goes up, but an id in the registry is never missed.
+ */
+public class RegistryObjectIdFilter {
+	private final static Log logger = LogFactory.getLog(RegistryObjectIdFilter.class);
+	private static RegistryObjectIdFilter instance = null;
+
+	private final long[] bits;
+	private final int size;
+	private final int hashes;
+	private boolean loaded = false;
+	private int count = 0;
+
+	/**
+	 * @param capacity the expected number of ids
+	 * @param falsePositiveRate the rate of ids not in the registry that the
+	 * 		filter may contain, once it holds capacity ids
+	 */
+	public RegistryObjectIdFilter(int capacity, double falsePositiveRate) {
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-Math.max(capacity, 1) * Math.log(falsePositiveRate) / (ln2 * ln2));
+		size = (int) Math.min(Math.max(m, 64), Integer.MAX_VALUE - 63);
+		hashes = Math.max(1, (int) Math.round((double) size / Math.max(capacity, 1) * ln2));
+		bits = new long[(size + 63) / 64];
+	}
+
+	/**
+	 * @return the filter of the registry, or null when it is not enabled
+	 */
+	public static synchronized RegistryObjectIdFilter getInstance() {
+		if (instance == null && PropertyFacade.getBoolean("registry.id.filter")) {
+			int capacity = PropertyFacade.getInteger("registry.id.filter.capacity", 1000000);
+			instance = new RegistryObjectIdFilter(capacity, 0.01);
+			logger.info("Registry object id filter of " + instance.size + " bits and " + instance.hashes + " hashes");
+		}
+		return instance;
+	}
+
+	/**
+	 * Whether the filter holds the ids of all the objects in the registry. Until
+	 * it does, it cannot tell that an id is not in the registry.
+	 */
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Adds the ids of all the objects in the registry.
+	 */
+	public synchronized void load(Collection<String> ids) {
+		add(ids);
+		loaded = true;
+	}
+
+	/**
+	 * Adds the ids of all the objects in the registry, read by the dao in
+	 * batches. The filter is only locked while adding a batch, so that the ids
+	 * of the submissions saved meanwhile are still added.
+	 */
+	public void load(RegistryObjectDao dao) {
+		int read = dao.readRegistryObjectIds(new RegistryObjectDao.IdHandler() {
+			public void handle(List<String> ids) {
+				add(ids);
+			}
+		});
+		synchronized (this) {
+			loaded = true;
+		}
+		logger.info("Registry object id filter loaded with " + read + " ids");
+	}
+
+	/**
+	 * Stops the filter from being used, when objects were saved whose ids could
+	 * not be added. Every id is then looked up in the registry again.
+	 */
+	public synchronized void invalidate() {
+		loaded = false;
+	}
+
+	/**
+	 * Adds the ids of objects saved in the registry.
+	 */
+	public synchronized void add(Collection<String> ids) {
+		for (String id : ids) {
+			long h1 = id.hashCode();
+			long h2 = hash(id);
+			for (int i = 0; i < hashes; i++) {
+				int bit = index(h1, h2, i);
+				bits[bit >>> 6] |= 1L << bit;
+			}
+			count++;
+		}
+	}
+
+	/**
+	 * @return false if the id is certainly not in the registry, true if it may be
+	 */
+	public synchronized boolean mightContain(String id) {
+		long h1 = id.hashCode();
+		long h2 = hash(id);
+		for (int i = 0; i < hashes; i++) {
+			int bit = index(h1, h2, i);
+			if ((bits[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of ids added
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	private int index(long h1, long h2, int i) {
+		long combined = (h1 + i * h2) % size;
+		return (int) ((combined < 0) ? combined + size : combined);
+	}
+
+	/**
+	 * FNV-1a hash of the characters of the id, independent of String.hashCode().
+	 */
+	private static long hash(String id) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < id.length(); i++) {
+			h ^= id.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		// an even step would only visit part of the bits when the size is even
+		return h | 1;
+	}
+}
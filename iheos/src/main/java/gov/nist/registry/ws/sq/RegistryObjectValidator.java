@@ -39,4 +39,9 @@ public interface RegistryObjectValidator {
 	public abstract List<String> getXFRMandAPNDDocuments(List<String> uuids)
 			throws XdsException, LoggerException;
 
+	// fetches, in a single query, the referenced objects along with the
+	// XFRM and APND documents of the documents to be deprecated
+	public abstract ReferencedObjects getReferencedObjects(List<String> uuids,
+			List<String> deprecated_uuids) throws XdsException, LoggerException;
+
 }
\ No newline at end of file
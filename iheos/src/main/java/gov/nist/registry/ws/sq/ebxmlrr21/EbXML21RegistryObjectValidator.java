@@ -7,6 +7,8 @@ import gov.nist.registry.common2.registry.Metadata;
 import gov.nist.registry.common2.registry.MetadataParser;
 import gov.nist.registry.common2.registry.MetadataSupport;
 import gov.nist.registry.common2.registry.storedquery.StoredQuerySupport;
+import gov.nist.registry.ws.sq.ReferencedObjects;
+import gov.nist.registry.ws.sq.RegistryObjectIdFilter;
 import gov.nist.registry.ws.sq.RegistryObjectValidator;
 
 import java.util.ArrayList;
@@ -20,10 +22,16 @@ import org.openhealthtools.openxds.log.LoggerException;
 public class EbXML21RegistryObjectValidator implements RegistryObjectValidator  {
 	StoredQuerySupport sqs;
 	EbXML21QuerySupport eb;
+	RegistryObjectIdFilter filter;
 
 	public EbXML21RegistryObjectValidator(StoredQuerySupport sqs) {
+		this(sqs, RegistryObjectIdFilter.getInstance());
+	}
+
+	EbXML21RegistryObjectValidator(StoredQuerySupport sqs, RegistryObjectIdFilter filter) {
 		this.sqs = sqs;
 		this.eb = new EbXML21QuerySupport(sqs);
+		this.filter = filter;
 	}
 
 	/* (non-Javadoc)
@@ -65,6 +73,27 @@ public class EbXML21RegistryObjectValidator implements RegistryObjectValidator
 	 */
 	public List<String> validateNotExists(List<String> ids)  throws XdsException, LoggerException {
 		List<String> uuids = uuidsOnly(ids);
+		// the filter is loaded when the registry starts, see XdsRegistryImpl
+		if (filter != null && filter.isLoaded()) {
+			// only the uuids the filter may hold can be in the registry
+			List<String> candidates = new ArrayList<String>();
+			for (String uuid : uuids) {
+				if (filter.mightContain(uuid))
+					candidates.add(uuid);
+			}
+			if (sqs.log_message != null)
+				sqs.log_message.addOtherParam("uuids looked up in registry", candidates.size() + " of " + uuids.size());
+			if (candidates.size() == 0)
+				return candidates;
+			uuids = candidates;
+		}
+		return findExisting(uuids);
+	}
+
+	/**
+	 * @return the uuids of the objects in the registry, among those given
+	 */
+	List<String> findExisting(List<String> uuids) throws XdsException, LoggerException {
 		eb.init();
 		eb.a("SELECT * FROM RegistryObject ro"); eb.n();
 		eb.a("WHERE"); eb.n();
@@ -317,6 +346,31 @@ public class EbXML21RegistryObjectValidator implements RegistryObjectValidator
 		return eb.query_for_object_refs();
 	}
 	
+	/* (non-Javadoc)
+	 * @see gov.nist.registry.ws.sq.RegistryObjectValidator#getReferencedObjects(java.util.List, java.util.List)
+	 */
+	public ReferencedObjects getReferencedObjects(List<String> uuids, List<String> deprecated_uuids) throws  XdsException, LoggerException {
+		if (uuids.size() == 0)
+			return new ReferencedObjects(new Metadata());
+		eb.init();
+		eb.a("SELECT * FROM RegistryObject ro"); eb.n();
+		eb.a("WHERE"); eb.n();
+		eb.a("  ro.id IN "); eb.a(uuids); eb.n();
+		if (deprecated_uuids.size() > 0) {
+			// the XFRM and APND associations to the deprecated documents and their source documents
+			String types = "('"+ addAssociationTypeNamespace("XFRM") +"', '"+ addAssociationTypeNamespace("APND") +"')";
+			eb.a("  OR ro.id IN (SELECT a.id FROM Association a WHERE"); eb.n();
+			eb.a("    a.associationType IN " + types + " AND"); eb.n();
+			eb.a("    a.targetObject IN "); eb.a(deprecated_uuids); eb.a(")"); eb.n();
+			eb.a("  OR ro.id IN (SELECT a.sourceObject FROM Association a WHERE"); eb.n();
+			eb.a("    a.associationType IN " + types + " AND"); eb.n();
+			eb.a("    a.targetObject IN "); eb.a(deprecated_uuids); eb.a(")"); eb.n();
+		}
+
+		OMElement objects = eb.query(true /* leaf_class */);
+		return new ReferencedObjects(MetadataParser.parseNonSubmission(objects));
+	}
+	
 	private String addAssociationTypeNamespace(String type) {
 		return MetadataSupport.association_type_namespace + type; 
 	}
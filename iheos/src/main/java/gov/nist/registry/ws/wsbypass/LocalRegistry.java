@@ -0,0 +1,299 @@
+package gov.nist.registry.ws.wsbypass;
+
+import gov.nist.registry.common2.exception.XdsException;
+import gov.nist.registry.common2.exception.XdsInternalException;
+import gov.nist.registry.common2.registry.MetadataSupport;
+import gov.nist.registry.common2.soap.SoapInterface;
+import gov.nist.registry.ws.serviceclasses.AbstractRegistry;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.namespace.QName;
+
+import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
+import org.apache.axiom.soap.SOAPEnvelope;
+import org.apache.axiom.soap.SOAPFactory;
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.addressing.AddressingConstants;
+import org.apache.axis2.addressing.EndpointReference;
+import org.apache.axis2.context.ConfigurationContext;
+import org.apache.axis2.context.MessageContext;
+import org.apache.axis2.description.AxisService;
+import org.apache.axis2.description.Parameter;
+import org.apache.axis2.description.TransportInDescription;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openhealthtools.openexchange.config.PropertyFacade;
+
+/**
+ * Hands a Register Document Set request straight to a Registry actor running in
+ * the same JVM, instead of sending it through SOAP over HTTP. The request is
+ * given to the service class of the Registry endpoint, which runs the same web 
+ * service checks, transaction log, content validation and <code>SubmitObjectsRequest</code> 
+ * transaction as for a request received over HTTP; only the serialization of the 
+ * request and the response and the HTTP round trip are saved.
+ * <p>
+ * A Registry actor makes itself available with {@link #register} when it starts.
+ * A request goes through the local transport when the registry.local.transport
+ * property is true and its endpoint is on a local address and the port of a
+ * registered Registry actor.
+ */
+public class LocalRegistry implements SoapInterface {
+	private final static Log logger = LogFactory.getLog(LocalRegistry.class);
+	private final static Map<Integer, Target> registries = new ConcurrentHashMap<Integer, Target>();
+	/* The resolved host of each endpoint called so far. */
+	private final static Map<String, Location> locations = new ConcurrentHashMap<String, Location>();
+	OMElement result = null;
+
+	/**
+	 * Where the host of an endpoint resolves to: its address if it is local, 
+	 * null otherwise.
+	 */
+	private static class Location {
+		final String address;
+
+		Location(String address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * The receiving side of a Registry actor.
+	 */
+	private static class Target {
+		final ConfigurationContext configContext;
+		final TransportInDescription transportIn;
+
+		Target(ConfigurationContext configContext, TransportInDescription transportIn) {
+			this.configContext = configContext;
+			this.transportIn = transportIn;
+		}
+	}
+
+	/**
+	 * Makes a Registry actor available to the local transport.
+	 *
+	 * @param port the port of the Registry server
+	 * @param configContext the axis configuration context of the Registry server
+	 * @param transportIn the transport of the Registry server, whose receiver is
+	 * 		the server of the Registry actor
+	 */
+	public static void register(int port, ConfigurationContext configContext, TransportInDescription transportIn) {
+		registries.put(port, new Target(configContext, transportIn));
+	}
+
+	/**
+	 * Removes a Registry actor from the local transport.
+	 *
+	 * @param port the port of the Registry server
+	 */
+	public static void unregister(int port) {
+		registries.remove(port);
+	}
+
+	/**
+	 * Whether the requests to the endpoint can go through the local transport.
+	 *
+	 * @param endpoint the Registry endpoint
+	 */
+	public static boolean isLocal(String endpoint) {
+		if (registries.isEmpty() || !PropertyFacade.getBoolean("registry.local.transport"))
+			return false;
+		return find(endpoint) != null;
+	}
+
+	private static Target find(String endpoint) {
+		try {
+			URL url = new URL(endpoint);
+			Target target = registries.get(url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+			if (target == null || locate(endpoint, url).address == null)
+				return null;
+			return target;
+		} catch (MalformedURLException e) {
+			logger.warn("Invalid registry endpoint " + endpoint);
+		}
+		return null;
+	}
+
+	/**
+	 * Resolves the host of the endpoint, once for each endpoint; a local connection 
+	 * comes from the address it is made to. A host which cannot be resolved is tried 
+	 * again on the next request.
+	 */
+	private static Location locate(String endpoint, URL url) {
+		Location location = locations.get(endpoint);
+		if (location != null)
+			return location;
+		try {
+			InetAddress address = InetAddress.getByName(url.getHost());
+			boolean local = address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+			location = new Location(local ? address.getHostAddress() : null);
+			locations.put(endpoint, location);
+			return location;
+		} catch (UnknownHostException e) {
+			logger.warn("Unknown registry host in endpoint " + endpoint);
+		} catch (SocketException e) {
+			logger.warn("Cannot check the network interfaces for endpoint " + endpoint);
+		}
+		return new Location(null);
+	}
+
+	public OMElement soapCall(OMElement body, Protocol protocol, String endpoint, boolean mtom,
+			boolean addressing, boolean soap12, String action,
+			String expected_return_action) throws XdsException {
+		result = soapCall(body, protocol, endpoint, action);
+		return result;
+	}
+
+	/**
+	 * Gives the request to the service class of the Registry endpoint, in a message 
+	 * context set up as the Registry server would for the same request over HTTP.
+	 */
+	public OMElement soapCall(OMElement body, Protocol protocol, String endpoint, String action)
+	throws XdsException {
+		Target target = find(endpoint);
+		if (target == null)
+			throw new XdsInternalException("No local registry for endpoint " + endpoint);
+		String address;
+		AxisService service;
+		try {
+			URL url = new URL(endpoint);
+			address = locate(endpoint, url).address;
+			String path = url.getPath();
+			service = target.configContext.getAxisConfiguration().getService(path.substring(path.lastIndexOf('/') + 1));
+		} catch (MalformedURLException e) {
+			throw new XdsInternalException("Invalid registry endpoint " + endpoint, e);
+		} catch (AxisFault e) {
+			throw new XdsInternalException("Cannot find the registry service of endpoint " + endpoint + ": " + e.getMessage(), e);
+		}
+		if (service == null)
+			throw new XdsInternalException("No registry service for endpoint " + endpoint);
+		AbstractRegistry registry = newRegistry(service);
+
+		// The registry compiles the symbolic ids of the metadata into uuids in place, 
+		// so it works on its own copy, as it does on a request received over HTTP
+		OMElement sor = body.cloneOMElement();
+		boolean soap12 = MetadataSupport.ebLcm3.getNamespaceURI().equals(sor.getNamespace().getNamespaceURI());
+		SOAPFactory factory = (soap12) ? OMAbstractFactory.getSOAP12Factory() : OMAbstractFactory.getSOAP11Factory();
+		SOAPEnvelope envelope = factory.getDefaultEnvelope();
+		envelope.getHeader().addHeaderBlock(AddressingConstants.WSA_ACTION,
+				factory.createOMNamespace(AddressingConstants.Final.WSA_NAMESPACE, "wsa")).setText(action);
+		envelope.getBody().addChild(sor);
+
+		MessageContext messageContext = new MessageContext();
+		MessageContext current = MessageContext.getCurrentMessageContext();
+		try {
+			messageContext.setConfigurationContext(target.configContext);
+			messageContext.setTransportIn(target.transportIn);
+			messageContext.setAxisService(service);
+			messageContext.setAxisOperation(service.getOperation(new QName("SubmitObjectsRequest")));
+			messageContext.setEnvelope(envelope);
+			messageContext.setTo(new EndpointReference(endpoint));
+			messageContext.setReplyTo(new EndpointReference(AddressingConstants.Final.WSA_ANONYMOUS_URL));
+			messageContext.setWSAAction(action);
+			messageContext.setProperty(MessageContext.REMOTE_ADDR, address);
+			messageContext.setProperty(MessageContext.TRANSPORT_ADDR, address);
+			messageContext.setProperty(MessageContext.TRANSPORT_HEADERS, new HashMap<String, String>());
+
+			// the registry service reads the message context of the current thread
+			MessageContext.setCurrentMessageContext(messageContext);
+			logger.info("Local registry call : " + endpoint);
+			return registry.SubmitObjectsRequest(sor);
+		} catch (AxisFault e) {
+			throw new XdsInternalException("Cannot call the local registry for endpoint " + endpoint + ": " + e.getMessage(), e);
+		} finally {
+			MessageContext.setCurrentMessageContext(current);
+		}
+	}
+
+	/**
+	 * A new instance of the service class of the Registry endpoint, as the Registry 
+	 * server creates for each request.
+	 */
+	private AbstractRegistry newRegistry(AxisService service) throws XdsInternalException {
+		Parameter serviceClass = service.getParameter("ServiceClass");
+		if (serviceClass == null)
+			throw new XdsInternalException("No service class for registry service " + service.getName());
+		try {
+			Object registry = Class.forName(serviceClass.getValue().toString().trim(), true, service.getClassLoader()).newInstance();
+			if (!(registry instanceof AbstractRegistry))
+				throw new XdsInternalException("Service " + service.getName() + " is not a registry service");
+			return (AbstractRegistry) registry;
+		} catch (ClassNotFoundException e) {
+			throw new XdsInternalException("Cannot load the registry service class " + serviceClass.getValue(), e);
+		} catch (InstantiationException e) {
+			throw new XdsInternalException("Cannot create the registry service " + service.getName(), e);
+		} catch (IllegalAccessException e) {
+			throw new XdsInternalException("Cannot create the registry service " + service.getName(), e);
+		}
+	}
+
+	public OMElement getResult() {
+		return result;
+	}
+
+	public OMElement getInHeader() throws XdsInternalException {
+		return null;
+	}
+
+	public OMElement getOutHeader() throws XdsInternalException {
+		return null;
+	}
+
+	public String getExpectedReturnAction() {
+		return null;
+	}
+
+	public void setExpectedReturnAction(String expectedReturnAction) {
+	}
+
+	public boolean isAddressing() {
+		return false;
+	}
+
+	public void setAddressing(boolean addressing) {
+	}
+
+	public boolean isAsync() {
+		return false;
+	}
+
+	public void setAsync(boolean async) {
+	}
+
+	public boolean isMtom() {
+		return false;
+	}
+
+	public void setMtom(boolean mtom) {
+	}
+
+	public boolean isSoap12() {
+		return false;
+	}
+
+	public void setSoap12(boolean soap12) {
+	}
+
+	public void soapSend(OMElement metadata_element, Protocol protocol, String endpoint,
+			boolean useMtom, boolean useAddressing, boolean soap_1_2,
+			String requestAction) throws XdsException {
+		soapCall(metadata_element, protocol, endpoint, requestAction);
+	}
+
+	public void addHeader(OMElement header) {
+	}
+
+	public void clearHeaders() {
+	}
+}
@@ -0,0 +1,125 @@
+package gov.nist.registry.common2.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+/**
+ * Checks the decoded bytes against commons-codec.
+ */
+public class Base64DecodingInputStreamTest {
+
+	/**
+	 * A reader returning at most max characters per read.
+	 */
+	static class TrickleReader extends FilterReader {
+		int max;
+
+		TrickleReader(Reader in, int max) {
+			super(in);
+			this.max = max;
+		}
+
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			return super.read(cbuf, off, Math.min(len, max));
+		}
+	}
+
+	static byte[] content(int length) {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		return content;
+	}
+
+	static byte[] decode(Reader reader) throws IOException {
+		InputStream in = new Base64DecodingInputStream(reader);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int n;
+		while ((n = in.read(buffer, 0, buffer.length)) != -1)
+			out.write(buffer, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+	static byte[] decodeByteByByte(Reader reader) throws IOException {
+		InputStream in = new Base64DecodingInputStream(reader);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1)
+			out.write(b);
+		in.close();
+		return out.toByteArray();
+	}
+
+	static String encode(byte[] content, boolean chunked) {
+		return new String(Base64.encodeBase64(content, chunked));
+	}
+
+	static void assertBytes(byte[] expected, byte[] actual) {
+		assertEquals(expected.length, actual.length);
+		assertTrue(Arrays.equals(expected, actual));
+	}
+
+	@Test
+	public void unchunked() throws IOException {
+		for (int length = 0; length < 10; length++) {
+			String text = encode(content(length), false);
+			assertBytes(Base64.decodeBase64(text.getBytes()), decode(new StringReader(text)));
+		}
+	}
+
+	@Test
+	public void mimeLineBreaks() throws IOException {
+		// 76 characters per line, each ended by CRLF
+		String text = encode(content(10000), true);
+		assertEquals("\r\n", text.substring(76, 78));
+		assertBytes(Base64.decodeBase64(text.getBytes()), decode(new StringReader(text)));
+		assertBytes(Base64.decodeBase64(text.getBytes()), decodeByteByByte(new StringReader(text)));
+	}
+
+	@Test
+	public void missingPadding() throws IOException {
+		for (int length = 1; length <= 3; length++) {
+			String padded = encode(content(length), false);
+			String unpadded = padded.replace("=", "");
+			assertBytes(Base64.decodeBase64(padded.getBytes()), decode(new StringReader(unpadded)));
+		}
+	}
+
+	@Test
+	public void textAfterPaddingIsIgnored() throws IOException {
+		String text = encode(content(2), false);
+		assertBytes(Base64.decodeBase64(text.getBytes()), decode(new StringReader(text + "QUJD")));
+	}
+
+	@Test
+	public void chunkBoundariesInsideQuantum() throws IOException {
+		byte[] content = content(20000);
+		String text = encode(content, true);
+		// reads ending on every position of a four character group
+		for (int max = 1; max <= 7; max++)
+			assertBytes(content, decode(new TrickleReader(new StringReader(text), max)));
+		// internal chunks of 4096 characters, shifted off the groups by leading line breaks
+		for (int shift = 1; shift <= 3; shift++)
+			assertBytes(content, decode(new StringReader("\n\n\n".substring(3 - shift) + encode(content, false))));
+	}
+
+	@Test
+	public void emptyInput() throws IOException {
+		assertEquals(0, decode(new StringReader("")).length);
+		assertEquals(0, decode(new StringReader("\r\n")).length);
+		assertEquals(-1, new Base64DecodingInputStream(new StringReader("")).read());
+	}
+}
@@ -0,0 +1,135 @@
+package gov.nist.registry.common2.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gov.nist.registry.common2.registry.validation.Structure;
+import gov.nist.registry.common2.xml.Util;
+
+import org.apache.axiom.om.OMElement;
+import org.junit.Test;
+
+/**
+ * Checks the id lookups of Metadata, and that validating a submission grows
+ * linearly with the number of its documents.
+ */
+public class MetadataIndexTest {
+	static final String SS_UNIQUE_ID = "urn:uuid:96fdda7c-d067-4183-912e-bf5ee74998a8";
+	static final String FOLDER_UNIQUE_ID = "urn:uuid:75df8f67-9973-4fbe-a900-df66cefecc5a";
+	static final String DOC_UNIQUE_ID = "urn:uuid:2e82c1f6-a085-4c72-9da3-8640a32e42ab";
+	static final String HAS_MEMBER = "urn:oasis:names:tc:ebxml-regrep:AssociationType:HasMember";
+
+	/**
+	 * Builds a submission of a submission set, a folder and the documents,
+	 * each document being a member of both.
+	 */
+	static String submission(int documents) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("<lcm:SubmitObjectsRequest xmlns:lcm='urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0'" +
+				" xmlns:rim='urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0'><rim:RegistryObjectList>");
+		buf.append("<rim:RegistryPackage id='ss'>").append(externalIdentifier("ss", SS_UNIQUE_ID, "1.2.3"))
+			.append("</rim:RegistryPackage>");
+		buf.append("<rim:RegistryPackage id='fol'>").append(externalIdentifier("fol", FOLDER_UNIQUE_ID, "1.2.4"))
+			.append("</rim:RegistryPackage>");
+		buf.append(association("ss-fol", "ss", "fol", false));
+		for (int i = 0; i < documents; i++) {
+			buf.append("<rim:ExtrinsicObject id='doc").append(i).append("' mimeType='text/xml'")
+				.append(" objectType='urn:uuid:7edca82f-054d-47f2-a032-9b2a5b5186c1'>")
+				.append(externalIdentifier("doc" + i, DOC_UNIQUE_ID, "1.2.5." + i))
+				.append("</rim:ExtrinsicObject>");
+			buf.append(association("ss-doc" + i, "ss", "doc" + i, true));
+			buf.append(association("fol-doc" + i, "fol", "doc" + i, false));
+		}
+		buf.append("</rim:RegistryObjectList></lcm:SubmitObjectsRequest>");
+		return buf.toString();
+	}
+
+	static String externalIdentifier(String id, String scheme, String value) {
+		return "<rim:ExternalIdentifier id='" + id + "-ei' registryObject='" + id +
+			"' identificationScheme='" + scheme + "' value='" + value + "'/>";
+	}
+
+	static String association(String id, String source, String target, boolean original) {
+		String slot = (original) ?
+				"<rim:Slot name='SubmissionSetStatus'><rim:ValueList><rim:Value>Original</rim:Value></rim:ValueList></rim:Slot>" : "";
+		return "<rim:Association id='" + id + "' associationType='" + HAS_MEMBER +
+			"' sourceObject='" + source + "' targetObject='" + target + "'>" + slot + "</rim:Association>";
+	}
+
+	/**
+	 * Parses and validates a submission, and looks up each of its documents.
+	 */
+	static void validate(String submission, int documents) throws Exception {
+		Metadata m = new Metadata(Util.parse_xml(submission));
+		RegistryErrorList rel = new RegistryErrorList(RegistryErrorList.version_3, false);
+		new Structure(m, true, rel, null).run();
+		assertFalse(rel.toString(), rel.has_errors());
+		for (int i = 0; i < documents; i++) {
+			String id = "doc" + i;
+			assertTrue(m.isDocument(id));
+			assertEquals(2, m.getAssociationsByTarget(id).size());
+			assertEquals("1.2.5." + i, m.getExternalIdentifierValue(id, DOC_UNIQUE_ID));
+		}
+	}
+
+	@Test
+	public void lookups() throws Exception {
+		Metadata m = new Metadata(Util.parse_xml(submission(2)));
+
+		assertTrue(m.isSubmissionSet("ss"));
+		assertTrue(m.isFolder("fol"));
+		assertTrue(m.isDocument("doc1"));
+		assertFalse(m.isDocument("fol"));
+		assertFalse(m.isFolder("doc1"));
+		assertEquals(3, m.getAssociationsBySource("ss").size());
+		assertEquals(2, m.getAssociationsBySource("fol").size());
+		assertEquals(0, m.getAssociationsBySource("doc0").size());
+		assertEquals("1.2.3", m.getExternalIdentifierValue("ss", SS_UNIQUE_ID));
+		assertEquals("1.2.5.1", m.getExternalIdentifierValue("doc1", DOC_UNIQUE_ID));
+	}
+
+	@Test
+	public void addedObjectsAreIndexed() throws Exception {
+		Metadata m = new Metadata(Util.parse_xml(submission(1)));
+		assertFalse(m.isDocument("doc1"));
+
+		OMElement doc = (OMElement) m.getExtrinsicObject(0).cloneOMElement();
+		doc.getAttribute(MetadataSupport.id_qname).setAttributeValue("doc1");
+		m.addExtrinsicObject(doc);
+		m.add_association(m.mkAssociation(HAS_MEMBER, "ss", "doc1"));
+
+		assertTrue(m.isDocument("doc1"));
+		assertEquals(1, m.getAssociationsByTarget("doc1").size());
+		assertEquals(3, m.getAssociationsBySource("ss").size());
+
+		m.setSlot(doc, "size", "10");
+		assertEquals("10", m.getSlotValue("doc1", "size", 0));
+	}
+
+	@Test
+	public void validationScalesLinearly() throws Exception {
+		int small = 500;
+		int large = 4000;
+		String smallSubmission = submission(small);
+		String largeSubmission = submission(large);
+		// warm up
+		validate(smallSubmission, small);
+		validate(largeSubmission, large);
+
+		long smallTime = bestTime(smallSubmission, small);
+		long largeTime = bestTime(largeSubmission, large);
+		// 8 times the documents: 64 times the time when quadratic, well below when linear
+		assertTrue("validating " + small + " documents took " + smallTime + " ms, " +
+				large + " took " + largeTime + " ms", largeTime < 32 * Math.max(smallTime, 5));
+	}
+
+	static long bestTime(String submission, int documents) throws Exception {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			validate(submission, documents);
+			best = Math.min(best, (System.nanoTime() - start) / 1000000);
+		}
+		return best;
+	}
+}
@@ -0,0 +1,179 @@
+package gov.nist.registry.common2.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gov.nist.registry.common2.MetadataTypes;
+
+import java.io.File;
+
+import org.apache.axiom.om.OMElement;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Validates a valid and an invalid message against each set of schemas.
+ */
+public class SchemaValidationTest {
+	static final String LCM = "xmlns:lcm='urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0'";
+	static final String RIM = "xmlns:rim='urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0'";
+	static final String QUERY = "xmlns:query='urn:oasis:names:tc:ebxml-regrep:xsd:query:3.0'";
+	static final String XDSB = "xmlns:xdsb='urn:ihe:iti:xds-b:2007'";
+
+	static final String SUBMIT_OBJECTS_REQUEST =
+		"<lcm:SubmitObjectsRequest " + LCM + " " + RIM + ">" +
+		"<rim:RegistryObjectList>" +
+		"<rim:ExtrinsicObject id='urn:uuid:b2f5c7a5-1c48-4a5e-9d3b-b63d8f12a2e1' mimeType='text/xml' isOpaque='%s'" +
+		" objectType='urn:uuid:7edca82f-054d-47f2-a032-9b2a5b5186c1'/>" +
+		"</rim:RegistryObjectList>" +
+		"</lcm:SubmitObjectsRequest>";
+
+	static final String V2_SUBMIT_OBJECTS_REQUEST =
+		"<rs:SubmitObjectsRequest xmlns:rs='urn:oasis:names:tc:ebxml-regrep:registry:xsd:2.1'" +
+		" xmlns:rim='urn:oasis:names:tc:ebxml-regrep:rim:xsd:2.1'>%s</rs:SubmitObjectsRequest>";
+
+	static final String V2_ADHOC_QUERY_REQUEST =
+		"<query:AdhocQueryRequest xmlns:query='urn:oasis:names:tc:ebxml-regrep:query:xsd:2.1'>" +
+		"<query:ResponseOption returnType='%s'/>" +
+		"<query:SQLQuery>SELECT * FROM ExtrinsicObject</query:SQLQuery>" +
+		"</query:AdhocQueryRequest>";
+
+	static final String ADHOC_QUERY_REQUEST =
+		"<query:AdhocQueryRequest " + QUERY + " " + RIM + ">" +
+		"%s" +
+		"<rim:AdhocQuery id='urn:uuid:14d4debf-8f97-4251-9a74-a90016b0af0d'>" +
+		"<rim:Slot name='$XDSDocumentEntryPatientId'><rim:ValueList>" +
+		"<rim:Value>'pid^^^&amp;1.2.3&amp;ISO'</rim:Value>" +
+		"</rim:ValueList></rim:Slot>" +
+		"</rim:AdhocQuery>" +
+		"</query:AdhocQueryRequest>";
+
+	static final String RETRIEVE_DOCUMENT_SET_REQUEST =
+		"<xdsb:RetrieveDocumentSetRequest " + XDSB + ">" +
+		"<xdsb:DocumentRequest>" +
+		"<xdsb:RepositoryUniqueId>1.2.3</xdsb:RepositoryUniqueId>%s" +
+		"</xdsb:DocumentRequest>" +
+		"</xdsb:RetrieveDocumentSetRequest>";
+
+	static final String PROVIDE_AND_REGISTER_REQUEST =
+		"<xdsb:ProvideAndRegisterDocumentSetRequest " + XDSB + ">" +
+		String.format(SUBMIT_OBJECTS_REQUEST, "false") +
+		"<xdsb:Document id='urn:uuid:b2f5c7a5-1c48-4a5e-9d3b-b63d8f12a2e1'>%s</xdsb:Document>" +
+		"</xdsb:ProvideAndRegisterDocumentSetRequest>";
+
+	static final String AUDIT_MESSAGE =
+		"<AuditMessage>" +
+		"<EventIdentification EventDateTime='2010-01-01T00:00:00Z' EventOutcomeIndicator='%s'>" +
+		"<EventID code='110106' codeSystemName='DCM'/>" +
+		"</EventIdentification>" +
+		"<ActiveParticipant UserID='registry'/>" +
+		"<AuditSourceIdentification AuditSourceID='openxds'/>" +
+		"</AuditMessage>";
+
+	@BeforeClass
+	public static void setSchemaDir() throws Exception {
+		File rim = new File(SchemaValidationTest.class.getResource("/schema/v3/rim.xsd").toURI());
+		System.setProperty("xds.schema.dir", rim.getParentFile().getParent());
+	}
+
+	static String validate(String xml, int metadataType) throws Exception {
+		return SchemaValidation.validate_local(Util.parse_xml(xml), metadataType);
+	}
+
+	static void assertValid(String xml, int metadataType) throws Exception {
+		assertEquals("", validate(xml, metadataType));
+	}
+
+	static void assertInvalid(String xml, int metadataType) throws Exception {
+		assertTrue(validate(xml, metadataType).length() > 0);
+	}
+
+	@Test
+	public void registerB() throws Exception {
+		assertValid(String.format(SUBMIT_OBJECTS_REQUEST, "false"), MetadataTypes.METADATA_TYPE_Rb);
+		assertInvalid(String.format(SUBMIT_OBJECTS_REQUEST, "maybe"), MetadataTypes.METADATA_TYPE_Rb);
+	}
+
+	@Test
+	public void registerA() throws Exception {
+		String valid = String.format(V2_SUBMIT_OBJECTS_REQUEST,
+				"<rim:LeafRegistryObjectList><rim:ExtrinsicObject id='Document01' mimeType='text/xml'/></rim:LeafRegistryObjectList>");
+		assertValid(valid, MetadataTypes.METADATA_TYPE_R);
+		assertInvalid(String.format(V2_SUBMIT_OBJECTS_REQUEST, ""), MetadataTypes.METADATA_TYPE_R);
+	}
+
+	@Test
+	public void sqlQuery() throws Exception {
+		assertValid(String.format(V2_ADHOC_QUERY_REQUEST, "LeafClass"), MetadataTypes.METADATA_TYPE_Q);
+		assertInvalid(String.format(V2_ADHOC_QUERY_REQUEST, "Everything"), MetadataTypes.METADATA_TYPE_Q);
+	}
+
+	@Test
+	public void storedQuery() throws Exception {
+		assertValid(String.format(ADHOC_QUERY_REQUEST, "<query:ResponseOption returnType='LeafClass' returnComposedObjects='true'/>"),
+				MetadataTypes.METADATA_TYPE_SQ);
+		assertInvalid(String.format(ADHOC_QUERY_REQUEST, ""), MetadataTypes.METADATA_TYPE_SQ);
+	}
+
+	@Test
+	public void retrieve() throws Exception {
+		assertValid(String.format(RETRIEVE_DOCUMENT_SET_REQUEST, "<xdsb:DocumentUniqueId>1.2.3.4</xdsb:DocumentUniqueId>"),
+				MetadataTypes.METADATA_TYPE_RET);
+		assertInvalid(String.format(RETRIEVE_DOCUMENT_SET_REQUEST, ""), MetadataTypes.METADATA_TYPE_RET);
+	}
+
+	@Test
+	public void auditLog() throws Exception {
+		assertValid(String.format(AUDIT_MESSAGE, "0"), MetadataTypes.AUDIT_LOG);
+		assertInvalid(String.format(AUDIT_MESSAGE, "3"), MetadataTypes.AUDIT_LOG);
+	}
+
+	@Test
+	public void wsNotification() throws Exception {
+		String subscribe =
+			"<wsnt:Subscribe xmlns:wsnt='http://docs.oasis-open.org/wsn/b-2' xmlns:wsa='http://www.w3.org/2005/08/addressing'>" +
+			"%s" +
+			"</wsnt:Subscribe>";
+		assertValid(String.format(subscribe,
+				"<wsnt:ConsumerReference><wsa:Address>http://localhost/consumer</wsa:Address></wsnt:ConsumerReference>"),
+				MetadataTypes.METADATA_TYPE_Rb);
+		assertInvalid(String.format(subscribe, ""), MetadataTypes.METADATA_TYPE_Rb);
+	}
+
+	@Test
+	public void provideAndRegisterDocumentIsOpaque() throws Exception {
+		OMElement valid = Util.parse_xml(String.format(PROVIDE_AND_REGISTER_REQUEST, "PD94bWwgdmVyc2lvbj0iMS4wIj8+"));
+		assertEquals("", SchemaValidation.validate_local(valid, MetadataTypes.METADATA_TYPE_RET));
+		assertEquals("", SchemaValidation.validate_metadata_local(valid, MetadataTypes.METADATA_TYPE_RET));
+
+		// the content of the Document is only checked when it is not skipped
+		OMElement badDocument = Util.parse_xml(String.format(PROVIDE_AND_REGISTER_REQUEST, "not base64!"));
+		assertTrue(SchemaValidation.validate_local(badDocument, MetadataTypes.METADATA_TYPE_RET).length() > 0);
+		assertEquals("", SchemaValidation.validate_metadata_local(badDocument, MetadataTypes.METADATA_TYPE_RET));
+
+		// the metadata is still validated
+		OMElement badMetadata = Util.parse_xml(String.format(PROVIDE_AND_REGISTER_REQUEST, "PD94bWw/Pg==")
+				.replace("isOpaque='false'", "isOpaque='maybe'"));
+		assertTrue(SchemaValidation.validate_metadata_local(badMetadata, MetadataTypes.METADATA_TYPE_RET).length() > 0);
+	}
+
+	@Test
+	public void pooledValidatorIsReset() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			assertInvalid(String.format(SUBMIT_OBJECTS_REQUEST, "maybe"), MetadataTypes.METADATA_TYPE_Rb);
+			assertValid(String.format(SUBMIT_OBJECTS_REQUEST, "false"), MetadataTypes.METADATA_TYPE_Rb);
+		}
+	}
+
+	@Test
+	public void nestedElementUsesNamespacesOfAncestors() throws Exception {
+		// the SubmitObjectsRequest of a Provide and Register request, whose rim prefix is declared above it
+		OMElement pnr = Util.parse_xml(
+				"<xdsb:ProvideAndRegisterDocumentSetRequest " + XDSB + " " + LCM + " " + RIM + ">" +
+				"<lcm:SubmitObjectsRequest><rim:RegistryObjectList>" +
+				"<rim:ExtrinsicObject id='urn:uuid:b2f5c7a5-1c48-4a5e-9d3b-b63d8f12a2e1' mimeType='text/xml'" +
+				" objectType='urn:uuid:7edca82f-054d-47f2-a032-9b2a5b5186c1'/>" +
+				"</rim:RegistryObjectList></lcm:SubmitObjectsRequest>" +
+				"</xdsb:ProvideAndRegisterDocumentSetRequest>");
+		assertEquals("", SchemaValidation.validate_local(pnr.getFirstElement(), MetadataTypes.METADATA_TYPE_Rb));
+	}
+}
@@ -0,0 +1,83 @@
+package gov.nist.registry.ws.sq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.openhealthtools.openxds.registry.dao.RegistryObjectDao;
+
+public class RegistryObjectIdFilterTest {
+
+	/**
+	 * A dao handing over the ids in batches of two, reusing the list
+	 * like the Hibernate one does.
+	 */
+	static class ListDao implements RegistryObjectDao {
+		List<String> ids;
+
+		ListDao(String... ids) {
+			this.ids = Arrays.asList(ids);
+		}
+
+		public int readRegistryObjectIds(IdHandler handler) {
+			List<String> batch = new ArrayList<String>();
+			for (String id : ids) {
+				batch.add(id);
+				if (batch.size() == 2) {
+					handler.handle(batch);
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty())
+				handler.handle(batch);
+			return ids.size();
+		}
+	}
+
+	@Test
+	public void loadFromDao() {
+		RegistryObjectIdFilter filter = new RegistryObjectIdFilter(1000, 0.01);
+		assertFalse(filter.isLoaded());
+
+		filter.load(new ListDao("urn:uuid:1", "urn:uuid:2", "urn:uuid:3"));
+
+		assertTrue(filter.isLoaded());
+		assertEquals(3, filter.getCount());
+		assertTrue(filter.mightContain("urn:uuid:1"));
+		assertTrue(filter.mightContain("urn:uuid:2"));
+		assertTrue(filter.mightContain("urn:uuid:3"));
+		assertFalse(filter.mightContain("urn:uuid:4"));
+	}
+
+	@Test
+	public void failedLoadLeavesFilterUnloaded() {
+		RegistryObjectIdFilter filter = new RegistryObjectIdFilter(1000, 0.01);
+		try {
+			filter.load(new RegistryObjectDao() {
+				public int readRegistryObjectIds(IdHandler handler) {
+					handler.handle(Arrays.asList("urn:uuid:1"));
+					throw new IllegalStateException("connection lost");
+				}
+			});
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertFalse(filter.isLoaded());
+	}
+
+	@Test
+	public void invalidate() {
+		RegistryObjectIdFilter filter = new RegistryObjectIdFilter(1000, 0.01);
+		filter.load(new ListDao("urn:uuid:1"));
+
+		filter.invalidate();
+
+		assertFalse(filter.isLoaded());
+		assertTrue(filter.mightContain("urn:uuid:1"));
+	}
+}
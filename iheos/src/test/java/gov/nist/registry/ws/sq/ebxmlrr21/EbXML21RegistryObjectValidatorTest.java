@@ -0,0 +1,102 @@
+package gov.nist.registry.ws.sq.ebxmlrr21;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import gov.nist.registry.common2.registry.storedquery.StoredQuerySupport;
+import gov.nist.registry.ws.sq.RegistryObjectIdFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EbXML21RegistryObjectValidatorTest {
+
+	/**
+	 * A validator looking the uuids up in a list instead of the registry,
+	 * and remembering what it looked up.
+	 */
+	static class Validator extends EbXML21RegistryObjectValidator {
+		List<String> registry = new ArrayList<String>();
+		List<String> lookedUp;
+
+		Validator(RegistryObjectIdFilter filter) {
+			super(new StoredQuerySupport(null, null), filter);
+		}
+
+		@Override
+		List<String> findExisting(List<String> uuids) {
+			lookedUp = new ArrayList<String>(uuids);
+			List<String> existing = new ArrayList<String>();
+			for (String uuid : uuids) {
+				if (registry.contains(uuid))
+					existing.add(uuid);
+			}
+			return existing;
+		}
+	}
+
+	@Test
+	public void unloadedFilterLooksUpAllUuids() throws Exception {
+		RegistryObjectIdFilter filter = new RegistryObjectIdFilter(1000, 0.01);
+		Validator validator = new Validator(filter);
+		validator.registry.add("urn:uuid:a");
+
+		List<String> existing = validator.validateNotExists(Arrays.asList("urn:uuid:a", "urn:uuid:b", "Document01"));
+
+		assertEquals(Arrays.asList("urn:uuid:a", "urn:uuid:b"), validator.lookedUp);
+		assertEquals(Arrays.asList("urn:uuid:a"), existing);
+	}
+
+	@Test
+	public void uuidsNotInFilterAreNotLookedUp() throws Exception {
+		RegistryObjectIdFilter filter = new RegistryObjectIdFilter(1000, 0.01);
+		filter.load(Arrays.asList("urn:uuid:a"));
+		Validator validator = new Validator(filter);
+
+		List<String> existing = validator.validateNotExists(Arrays.asList("urn:uuid:b", "urn:uuid:c"));
+
+		assertNull(validator.lookedUp);
+		assertTrue(existing.isEmpty());
+	}
+
+	@Test
+	public void falsePositiveIsRecheckedInRegistry() throws Exception {
+		// a small filter holding many ids, so that it claims to hold some others
+		RegistryObjectIdFilter filter = new RegistryObjectIdFilter(10, 0.5);
+		List<String> saved = new ArrayList<String>();
+		for (int i = 0; i < 100; i++)
+			saved.add("urn:uuid:saved-" + i);
+		filter.load(saved);
+		String falsePositive = null;
+		for (int i = 0; falsePositive == null; i++) {
+			if (filter.mightContain("urn:uuid:new-" + i))
+				falsePositive = "urn:uuid:new-" + i;
+		}
+		Validator validator = new Validator(filter);
+		validator.registry.addAll(saved);
+
+		List<String> existing = validator.validateNotExists(Arrays.asList(falsePositive));
+
+		assertEquals(Arrays.asList(falsePositive), validator.lookedUp);
+		assertTrue(existing.isEmpty());
+	}
+
+	@Test
+	public void uuidsAddedAfterCommitAreFound() throws Exception {
+		RegistryObjectIdFilter filter = new RegistryObjectIdFilter(1000, 0.01);
+		filter.load(new ArrayList<String>());
+		Validator validator = new Validator(filter);
+
+		// a submission is saved after the filter was loaded
+		validator.registry.add("urn:uuid:a");
+		filter.add(Arrays.asList("urn:uuid:a"));
+
+		List<String> existing = validator.validateNotExists(Arrays.asList("urn:uuid:a", "urn:uuid:b"));
+
+		assertEquals(Arrays.asList("urn:uuid:a"), validator.lookedUp);
+		assertEquals(Arrays.asList("urn:uuid:a"), existing);
+	}
+}
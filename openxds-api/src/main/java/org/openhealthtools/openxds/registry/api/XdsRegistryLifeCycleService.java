@@ -117,4 +117,22 @@ public interface XdsRegistryLifeCycleService {
      */    
 	public OMElement deprecateObjects(OMElement request, RegistryLifeCycleContext context) throws RegistryLifeCycleException;
 
+    /**
+     * Submits a list of Registry objects, approves them and deprecates the objects they
+     * replace in a single transaction. Either all the changes are saved to the Registry 
+     * database, or none of them is if any of the operations fails, so that the submitted 
+     * objects are never seen in the Submitted status.
+     *
+     * @param submitRequest the SubmitObjectsRequest, as for {@link #submitObjects}
+     * @param approveRequest the ApproveObjectsRequest, as for {@link #approveObjects}, 
+     * 		or null if no object is to be approved
+     * @param deprecateRequest the DeprecateObjectsRequest, as for {@link #deprecateObjects}, 
+     * 		or null if no object is to be deprecated
+     * @param context the {@link RegistryLifeCycleContext}
+     * @return a RegistryResponse in the format of {@link OMElement} 
+     * @throws RegistryLifeCycleException if any of the operations fails
+     */    
+	public OMElement registerObjects(OMElement submitRequest, OMElement approveRequest, OMElement deprecateRequest, 
+			RegistryLifeCycleContext context) throws RegistryLifeCycleException;
+
 }
@@ -52,6 +52,15 @@ public interface XdsRepositoryItem {
      */
     public int getSize() throws RepositoryException;
 
+    /**
+     * Sets the size of this repository item in bytes. This is used by the
+     * repository backends to record the size computed while the content 
+     * is being stored, so that the content does not need to be read again.
+     * 
+     * @param size the size of the repository item in bytes
+     */
+    public void setSize(int size);
+
     /**
      * Gets the Sha1 hash code of this repository item.
      * 
@@ -60,6 +69,15 @@ public interface XdsRepositoryItem {
      */
     public String getHash() throws RepositoryException;
 
+    /**
+     * Sets the Sha1 hash code of this repository item. This is used by the
+     * repository backends to record the hash computed while the content 
+     * is being stored, so that the content does not need to be read again.
+     * 
+     * @param hash the Sha1 hash code
+     */
+    public void setHash(String hash);
+
     /**
      * Gets the mimeType of this repository item.
      * 
@@ -43,9 +43,12 @@ public interface XdsRepositoryService {
      * @param item the {@link XdsRepositoryItem} to be inserted
      * @param context the {@link RepositoryRequestContext} associated with this request.
      * 
+     * @return <code>true</code> if the item was stored, <code>false</code> if the
+     * 		same document was already stored in the repository
+     * 
      * @throws RepositoryException if failed to insert
      */
-    public void insert(XdsRepositoryItem item, RepositoryRequestContext context) throws RepositoryException;
+    public boolean insert(XdsRepositoryItem item, RepositoryRequestContext context) throws RepositoryException;
 
     /**
      * Inserts a list of {@link XdsRepositoryItem}s. This is possible when a 
@@ -56,9 +59,12 @@ public interface XdsRepositoryService {
      * @param items a List of {@link XdsRepositoryItem}s to be inserted 
      * @param context the {@link RepositoryRequestContext} associated with this request.
      * 
+     * @return the document unique ids of the items which were stored, leaving out
+     * 		the documents which were already stored in the repository
+     * 
      * @throws RepositoryException if failed to insert any repository item
      */
-    public void insert(List<XdsRepositoryItem> items, RepositoryRequestContext context) throws RepositoryException;
+    public List<String> insert(List<XdsRepositoryItem> items, RepositoryRequestContext context) throws RepositoryException;
 
     /**
      * Returns the {@link XdsRepositoryItem} associated with the given document unique id.
@@ -75,11 +81,13 @@ public interface XdsRepositoryService {
     /**
      * Returns the List of {@link XdsRepositoryItem} associated with the given document unique ids.
      * The IHE XDS transaction ITI-43 allows for multiple document retrieval.
+     * Implementations should look up the documents together rather than one by one.
      * 
      * @param documentUniqueIds the document unique id whose {@link XdsRepositoryItem} item are desired
      * @param context the {@link RepositoryRequestContext} associated with this request.
      * 
-     * @return the List of {@link XdsRepositoryItem} instances that match specified ids
+     * @return the List of {@link XdsRepositoryItem} instances in the order of the specified ids,
+     * 		with a <code>null</code> entry for each document which is not found
      * 
      * @throws RegistryException if there are any processing errors getting repository items
      */
@@ -20,6 +20,8 @@
 
 package org.openhealthtools.openxds.configuration;
 
+import gov.nist.registry.common2.registry.validation.CodeIndex;
+
 import java.io.File;
 import java.util.Collection;
 
@@ -95,6 +97,8 @@ public class XdsConfigurationLoader extends ActorConfigurationLoader {
 		xdsBroker.unregisterXdsRepositories(controller);
 		xdsBroker.unregisterXcaIG(controller);
 		xdsBroker.unregisterXcaRG(controller);
+		// The code indexes of the old connections are rebuilt from the new ones
+		CodeIndex.clear();
         // Okay, nothing is installed
 		actorsInstalled.clear();
 	}
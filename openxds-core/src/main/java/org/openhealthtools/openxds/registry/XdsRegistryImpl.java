@@ -36,13 +36,18 @@ import org.openhealthtools.openexchange.actorconfig.net.IConnectionDescription;
 import org.openhealthtools.openexchange.audit.IheAuditTrail;
 import org.openhealthtools.openexchange.config.PropertyFacade;
 import org.openhealthtools.openxds.BaseIheActor;
+import org.openhealthtools.openxds.XdsFactory;
 import org.openhealthtools.openxds.registry.api.XdsRegistry;
 import org.openhealthtools.openxds.registry.api.XdsRegistryPatientService;
+import org.openhealthtools.openxds.registry.dao.RegistryObjectDao;
 
 import ca.uhn.hl7v2.app.Application;
 import ca.uhn.hl7v2.llp.LowerLayerProtocol;
 import ca.uhn.hl7v2.parser.PipeParser;
 
+import gov.nist.registry.ws.sq.RegistryObjectIdFilter;
+import gov.nist.registry.ws.wsbypass.LocalRegistry;
+
 /**
  * This class represents an XDS Registry actor.
  * 
@@ -131,6 +136,8 @@ public class XdsRegistryImpl extends BaseIheActor implements XdsRegistry {
 			    }
 	        }
 	        
+	        loadRegistryObjectIdFilter();
+
 	        ConfigurationContext configctx = ConfigurationContextFactory
 	        .createConfigurationContextFromFileSystem(axis2repopath,axis2xmlpath);
 	        registryServer = new IheHTTPServer(configctx, this); 		
@@ -145,6 +152,7 @@ public class XdsRegistryImpl extends BaseIheActor implements XdsRegistry {
 	            listenerManager.init(configctx);
 	        }
 	        listenerManager.addListener(trsIn, true);
+	        LocalRegistry.register(connection.getPort(), configctx, trsIn);
 	        isSuccess = true;
 		}catch(Exception e) {
         	log.fatal("Failed to start the XDS Registry server", e);			
@@ -153,6 +161,23 @@ public class XdsRegistryImpl extends BaseIheActor implements XdsRegistry {
         return isSuccess;
 	}
 	
+	/**
+	 * Loads the ids of the registry objects in the registry object id filter,
+	 * if it is enabled, before any submission is accepted. When this fails, the 
+	 * ids of the submissions are all looked up in the registry database.
+	 */
+	private void loadRegistryObjectIdFilter() {
+		RegistryObjectIdFilter filter = RegistryObjectIdFilter.getInstance();
+		if (filter == null)
+			return;
+		try {
+			RegistryObjectDao dao = (RegistryObjectDao) XdsFactory.getInstance().getBean("registryObjectDao");
+			filter.load(dao);
+		} catch (Exception e) {
+			log.error("Failed to load the registry object id filter, the ids are looked up in the registry instead", e);
+		}
+	}
+
 	/**
 	 * Starts a PIX Registry Server to accept PIX Feed messages. 
 	 * 
@@ -198,6 +223,7 @@ public class XdsRegistryImpl extends BaseIheActor implements XdsRegistry {
         log.info("PIX Registry stopped: " + pixRegistryConnection.getDescription() );
 
         //stop the Registry Server
+        LocalRegistry.unregister(connection.getPort());
         registryServer.stop();
         log.info("XDS Registry stopped: " + connection.getDescription() );
         
@@ -28,6 +28,7 @@ import org.apache.axis2.Constants;
 import org.apache.axis2.context.ConfigurationContext;
 import org.apache.axis2.context.ConfigurationContextFactory;
 import org.apache.axis2.description.TransportInDescription;
+import org.apache.axis2.engine.AxisConfiguration;
 import org.apache.axis2.engine.ListenerManager;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -50,6 +51,9 @@ public class XdsRepositoryImpl extends BaseIheActor implements XdsRepository {
     /** Logger for problems during SOAP exchanges */
     private static Log log = LogFactory.getLog(XdsRepositoryImpl.class);
 
+    /** The default size in bytes above which the attachments of a request are cached in files */
+    private static final int DEFAULT_ATTACHMENT_THRESHOLD = 1024 * 1024;
+
     /**The client side of XDS Registry connection*/
 	private IConnectionDescription registryClientConnection = null;
 
@@ -112,6 +116,7 @@ public class XdsRepositoryImpl extends BaseIheActor implements XdsRepository {
 	        }
 	        ConfigurationContext configctx = ConfigurationContextFactory
 	        .createConfigurationContextFromFileSystem(axis2repopath, axis2xmlpath);
+	        configureAttachmentCache(configctx.getAxisConfiguration());
 	        repositoryServer = new IheHTTPServer(configctx, this); 		
 	
 	        Runtime.getRuntime().addShutdownHook(new IheHTTPServer.ShutdownThread(repositoryServer));
@@ -131,6 +136,36 @@ public class XdsRepositoryImpl extends BaseIheActor implements XdsRepository {
 
         return isSuccess;
     }
+
+    /**
+     * Caches the MTOM/XOP attachments of the incoming requests in files once they
+     * are larger than the configured threshold, so that the documents of a large
+     * Provide and Register submission are streamed from disk to the repository 
+     * instead of being held in memory. A threshold of 0 or less leaves the attachment
+     * handling of axis2.xml as it is.
+     * 
+     * @param axisConfig the axis configuration of the Repository server
+     * @throws AxisFault if the parameters cannot be set
+     */
+    private void configureAttachmentCache(AxisConfiguration axisConfig) throws AxisFault {
+    	int threshold = PropertyFacade.getInteger("repository.attachment.threshold", DEFAULT_ATTACHMENT_THRESHOLD);
+    	if (threshold <= 0)
+    		return;
+    	
+    	String dir = PropertyFacade.getString("repository.attachment.dir");
+    	if (dir == null || dir.trim().equals(""))
+    		dir = System.getProperty("java.io.tmpdir");
+    	File attachmentDir = new File(dir);
+    	if (!attachmentDir.exists() && !attachmentDir.mkdirs()) {
+    		log.warn("Cannot create the attachment directory " + attachmentDir.getAbsolutePath() + ", attachments are kept in memory");
+    		return;
+    	}
+    	axisConfig.addParameter(Constants.Configuration.CACHE_ATTACHMENTS, Constants.VALUE_TRUE);
+    	axisConfig.addParameter(Constants.Configuration.ATTACHMENT_TEMP_DIR, attachmentDir.getAbsolutePath());
+    	axisConfig.addParameter(Constants.Configuration.FILE_SIZE_THRESHOLD, String.valueOf(threshold));
+    	if (log.isDebugEnabled())
+    		log.debug("Attachments larger than " + threshold + " bytes are cached in " + attachmentDir.getAbsolutePath());
+    }
     
     @Override
     public void stop() {
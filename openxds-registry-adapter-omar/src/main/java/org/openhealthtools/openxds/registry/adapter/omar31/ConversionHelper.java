@@ -21,14 +21,21 @@
 package org.openhealthtools.openxds.registry.adapter.omar31;
 
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.UnmarshallerHandler;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.axiom.om.OMAbstractFactory;
+import org.apache.axiom.om.OMElement;
 import org.apache.axiom.om.OMFactory;
 import org.apache.axiom.om.OMNamespace;
+import org.openhealthtools.common.utils.OMUtil;
+import org.openhealthtools.common.utils.StaxSaxEmitter;
+import org.xml.sax.SAXException;
 
 /**
  * This class is the helper class for the Registry Adapter
@@ -54,6 +61,7 @@ public class ConversionHelper {
   //  private static final String XDS_b_REGISTRY_SCHEMA_LOCATION = "urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0 ../schema/ebRS/lcm.xsd";
     private static final String XDS_b = "urn:ihe:iti:xds-b:2007";
     public JAXBContext jaxbContext = null;
+    private final ConcurrentLinkedQueue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<Unmarshaller>();
     public OMFactory omFactory = null;
     protected OMNamespace nsLcm = null;
     protected OMNamespace nsRim = null;
@@ -118,6 +126,46 @@ public class ConversionHelper {
 		return jaxbContext.createUnmarshaller();
 	}
 
+	/**
+	 * Unmarshals an Axiom element into its OMAR binding object. The OMAR 
+	 * bindings are a JAXB 1.0 context, which cannot read an 
+	 * <code>XMLStreamReader</code>, so the events of the element are replayed
+	 * as SAX events into an <code>UnmarshallerHandler</code>. The element is 
+	 * not serialized and parsed again. 
+	 * <p>
+	 * An <code>Unmarshaller</code> is not thread safe, so each call takes
+	 * one from a pool of unmarshallers and puts it back when done; the pool
+	 * grows to the number of concurrent calls.
+	 * 
+	 * @param element the element to unmarshal
+	 * @return the binding object of the element
+	 * @throws JAXBException
+	 */
+	public Object unmarshal(OMElement element) throws JAXBException {
+		Unmarshaller unmarshaller = unmarshallers.poll();
+		if (unmarshaller == null)
+			unmarshaller = getUnmarsheller();
+		boolean reusable = false;
+		try {
+			UnmarshallerHandler handler = unmarshaller.getUnmarshallerHandler();
+			new StaxSaxEmitter(handler, null, null).emit(element.getXMLStreamReader(), 
+					OMUtil.getInScopeNamespaces(element));
+			Object result = handler.getResult();
+			reusable = true;
+			return result;
+		} catch (XMLStreamException e) {
+			throw new JAXBException(e.getMessage(), e);
+		} catch (SAXException e) {
+			if (e.getException() instanceof JAXBException)
+				throw (JAXBException) e.getException();
+			throw new JAXBException(e.getMessage(), e);
+		} finally {
+			//An unmarshaller that failed may be left in the middle of a document
+			if (reusable)
+				unmarshallers.offer(unmarshaller);
+		}
+	}
+
 	/**
 	 * Gets OMFactory
 	 * @return OMFactory
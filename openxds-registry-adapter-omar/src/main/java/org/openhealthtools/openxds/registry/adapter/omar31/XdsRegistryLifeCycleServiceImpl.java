@@ -20,17 +20,28 @@
 
 package org.openhealthtools.openxds.registry.adapter.omar31;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.registry.RegistryException;
 
 import org.apache.axiom.om.OMElement;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.freebxml.omar.common.BindingUtility;
+import org.freebxml.omar.common.CommonProperties;
 import org.freebxml.omar.common.CommonRequestContext;
 import org.freebxml.omar.common.spi.LifeCycleManager;
 import org.freebxml.omar.common.spi.LifeCycleManagerFactory;
 import org.freebxml.omar.common.spi.RequestContext;
+import org.freebxml.omar.server.common.ServerRequestContext;
+import org.freebxml.omar.server.persistence.PersistenceManagerFactory;
 import org.freebxml.omar.server.security.authentication.AuthenticationServiceImpl;
+import org.freebxml.omar.server.security.authorization.AuthorizationResult;
+import org.freebxml.omar.server.security.authorization.AuthorizationServiceImpl;
+import org.oasis.ebxml.registry.bindings.lcm.ApproveObjectsRequest;
+import org.oasis.ebxml.registry.bindings.rim.ObjectRefType;
 import org.oasis.ebxml.registry.bindings.rs.RegistryRequestType;
 import org.oasis.ebxml.registry.bindings.rs.RegistryResponse;
 import org.openhealthexchange.openpixpdq.data.PatientIdentifier;
@@ -66,8 +77,7 @@ public class XdsRegistryLifeCycleServiceImpl implements XdsRegistryLifeCycleServ
 		
 		final String contextId = "org:openhealthexchange:openxds:registry:adapter:omar31:XdsRegistryLifeCycleManager:submitObjects:context";
 		try {
-			InputStream is = new ByteArrayInputStream(request.toString().getBytes("UTF-8"));
-			Object registryRequest = helper.getUnmarsheller().unmarshal(is);
+			Object registryRequest = helper.unmarshal(request);
 			//Creating context with request.
 			omarContext = new CommonRequestContext(contextId,(RegistryRequestType) registryRequest);
 			//Adding RegistryOperator role for the user.
@@ -102,12 +112,10 @@ public class XdsRegistryLifeCycleServiceImpl implements XdsRegistryLifeCycleServ
 	public OMElement approveObjects(OMElement request, RegistryLifeCycleContext context) throws RegistryLifeCycleException {
 		RequestContext omarContext;
 		RegistryResponse omarResponse = null;
-		InputStream is;
 		OMElement response;
 		final String contextId = "org:openhealthexchange:openxds:registry:adapter:omar31:XdsRegistryLifeCycleManager:approveObjects:context";
 		try {
-			is = new ByteArrayInputStream(request.toString().getBytes("UTF-8"));
-			Object registryRequest = helper.getUnmarsheller().unmarshal(is);
+			Object registryRequest = helper.unmarshal(request);
 			//Creating context with request.
 			omarContext = new CommonRequestContext(contextId,(RegistryRequestType) registryRequest);
 			//Adding RegistryOperator role for the user.
@@ -131,12 +139,10 @@ public class XdsRegistryLifeCycleServiceImpl implements XdsRegistryLifeCycleServ
 	public OMElement deprecateObjects(OMElement request, RegistryLifeCycleContext context) throws RegistryLifeCycleException {
 		RequestContext omarContext;
 		RegistryResponse omarResponse = null;
-		InputStream is;
 		OMElement response;
 		final String contextId = "org:openhealthexchange:openxds:registry:adapter:omar31:XdsRegistryLifeCycleManager:deprecateObjects:context";
 		try {
-			is = new ByteArrayInputStream(request.toString().getBytes("UTF-8"));
-			Object registryRequest = helper.getUnmarsheller().unmarshal(is);
+			Object registryRequest = helper.unmarshal(request);
 			//Creating context with request.
 			omarContext = new CommonRequestContext(contextId,(RegistryRequestType) registryRequest);
 			//Adding RegistryOperator role for the user.
@@ -156,6 +162,109 @@ public class XdsRegistryLifeCycleServiceImpl implements XdsRegistryLifeCycleServ
 
 		return response;
 	}
+	public OMElement registerObjects(OMElement submitRequest, OMElement approveRequest, OMElement deprecateRequest, 
+			RegistryLifeCycleContext context) throws RegistryLifeCycleException {
+		ServerRequestContext omarContext = null;
+		RegistryResponse omarResponse = null;
+		OMElement response;
+		final String contextId = "org:openhealthexchange:openxds:registry:adapter:omar31:XdsRegistryLifeCycleManager:registerObjects:context";
+		try {
+			RegistryRequestType submit = (RegistryRequestType) helper.unmarshal(submitRequest);
+			//Creating context with request.
+			omarContext = new ServerRequestContext(contextId, submit);
+			//Adding RegistryOperator role for the user.
+			omarContext.setUser(AuthenticationServiceImpl.getInstance().registryOperator);
+			
+			//OMAR only commits a context when its outermost request is done, so each 
+			//operation runs as a request nested in the submission and all of them are 
+			//committed together at the end.
+			omarContext.pushRegistryRequest(submit);
+			omarResponse = lcm.submitObjects(omarContext);
+			omarContext.popRegistryRequest();
+			if (isSuccess(omarResponse) && approveRequest != null) {
+				ApproveObjectsRequest approve = (ApproveObjectsRequest) helper.unmarshal(approveRequest);
+				omarContext.pushRegistryRequest(approve);
+				omarResponse = approveObjects(omarContext, approve);
+				omarContext.popRegistryRequest();
+			}
+			if (isSuccess(omarResponse) && deprecateRequest != null) {
+				omarContext.pushRegistryRequest((RegistryRequestType) helper.unmarshal(deprecateRequest));
+				omarResponse = lcm.deprecateObjects(omarContext);
+				omarContext.popRegistryRequest();
+			}
+			if (isSuccess(omarResponse))
+				omarContext.commit();
+			else 
+				omarContext.rollback();
+			
+			response = helper.omFactory().createOMElement("RegistryResponse", helper.nsRs);
+			response.declareNamespace(helper.nsRs);
+			response.declareNamespace(helper.nsXsi);
+			response.addAttribute("status", omarResponse.getStatus(), null);
+		
+		}  catch (Exception e) {
+			e.printStackTrace();
+			rollback(omarContext);
+			throw new RegistryLifeCycleException(e.getMessage());
+		}
+
+		return response;
+	}
+
+	/**
+	 * Approves the objects of a request in the given context, as the OMAR 
+	 * LifeCycleManager does: the request is authorized first, and the objects 
+	 * are those of the ObjectRefList and of the AdhocQuery of the request. 
+	 * Unlike the other operations of the OMAR LifeCycleManager, approveObjects 
+	 * always creates a context of its own, and so commits the approval separately.
+	 */
+	private RegistryResponse approveObjects(ServerRequestContext omarContext, ApproveObjectsRequest approve) 
+	throws RegistryException, JAXBException {
+		boolean noUserRegistrationRequired = Boolean.valueOf(CommonProperties.getInstance()
+				.getProperty("omar.common.noUserRegistrationRequired", "false")).booleanValue();
+		if (!noUserRegistrationRequired) {
+			AuthorizationServiceImpl.getInstance().checkAuthorization(omarContext)
+				.throwExceptionOn(AuthorizationResult.PERMIT_NONE | AuthorizationResult.PERMIT_SOME);
+		}
+
+		List<String> ids = new ArrayList<String>();
+		List refs = BindingUtility.getInstance().getObjectRefsFromObjectRefList(approve.getObjectRefList());
+		refs.addAll(omarContext.getObjectsRefsFromQueryResults(approve.getAdhocQuery()));
+		for (Object ref : refs) {
+			ids.add(((ObjectRefType) ref).getId());
+		}
+		PersistenceManagerFactory.getInstance().getPersistenceManager().updateStatus(omarContext, ids, 
+				BindingUtility.CANONICAL_STATUS_TYPE_ID_Approved);
+		
+		RegistryResponse omarResponse = helper.rsFac.createRegistryResponse();
+		omarResponse.setStatus(BindingUtility.CANONICAL_RESPONSE_STATUS_TYPE_ID_Success);
+		if (omarContext.getErrorList().getRegistryError().size() > 0) {
+			omarResponse.setRegistryErrorList(omarContext.getErrorList());
+		}
+		return omarResponse;
+	}
+
+	private boolean isSuccess(RegistryResponse omarResponse) {
+		return BindingUtility.CANONICAL_RESPONSE_STATUS_TYPE_ID_Success.equals(omarResponse.getStatus());
+	}
+
+	/**
+	 * Rolls back all the operations of the context, after a failure that may have 
+	 * left a nested request on it.
+	 */
+	private void rollback(ServerRequestContext omarContext) {
+		if (omarContext == null)
+			return;
+		try {
+			while (omarContext.getRegistryRequestStack().size() > 1) {
+				omarContext.popRegistryRequest();
+			}
+			omarContext.rollback();
+		} catch (RegistryException e) {
+			log.error("Cannot roll back the registry transaction", e);
+		}
+	}
+
 	public MergePatientDao getMergePatientDao() {
 		return mergePatientDao;
 	}
@@ -0,0 +1,51 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.registry.dao;
+
+import java.util.List;
+
+/**
+ * This interface defines the operations to read the registry objects
+ * in bulk, without going through the OMAR query manager.
+ */
+public interface RegistryObjectDao {
+
+	/**
+	 * Receives the ids read by {@link RegistryObjectDao#readRegistryObjectIds}.
+	 */
+	public interface IdHandler {
+		/**
+		 * @param ids the next batch of ids; the list is reused for the
+		 * 		following batch once this method returns
+		 */
+		public void handle(List<String> ids);
+	}
+
+	/**
+	 * Reads the ids of all the registry objects in one forward pass, handing
+	 * them over in batches so that they are never all held in memory.
+	 * 
+	 * @param handler the handler of the ids
+	 * @return the number of ids read
+	 */
+	public int readRegistryObjectIds(IdHandler handler);
+
+}
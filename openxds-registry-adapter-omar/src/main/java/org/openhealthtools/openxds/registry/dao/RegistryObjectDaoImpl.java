@@ -0,0 +1,74 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.registry.dao;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.springframework.orm.hibernate3.HibernateCallback;
+import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
+/**
+ * This class reads the registry objects in bulk from the RegistryObject 
+ * view of the registry database.
+ */
+public class RegistryObjectDaoImpl extends HibernateDaoSupport implements RegistryObjectDao {
+	private static final int BATCH_SIZE = 1000;
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.registry.dao.RegistryObjectDao#readRegistryObjectIds(org.openhealthtools.openxds.registry.dao.RegistryObjectDao.IdHandler)
+	 */
+	public int readRegistryObjectIds(final IdHandler handler) {
+		Integer count = (Integer) getHibernateTemplate().execute(new HibernateCallback() {
+			public Object doInHibernate(Session session) throws HibernateException, SQLException {
+				ScrollableResults results = session.createSQLQuery("SELECT id FROM RegistryObject")
+						.addScalar("id", Hibernate.STRING)
+						.setFetchSize(BATCH_SIZE)
+						.scroll(ScrollMode.FORWARD_ONLY);
+				int count = 0;
+				try {
+					List<String> ids = new ArrayList<String>(BATCH_SIZE);
+					while (results.next()) {
+						ids.add(results.getString(0));
+						if (ids.size() == BATCH_SIZE) {
+							handler.handle(ids);
+							count += ids.size();
+							ids.clear();
+						}
+					}
+					if (!ids.isEmpty()) {
+						handler.handle(ids);
+						count += ids.size();
+					}
+				} finally {
+					results.close();
+				}
+				return Integer.valueOf(count);
+			}
+		});
+		return count.intValue();
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.registry.adapter.omar31;
+
+import java.util.List;
+
+import javax.xml.bind.JAXBException;
+
+import junit.framework.TestCase;
+
+import org.apache.axiom.om.OMElement;
+import org.oasis.ebxml.registry.bindings.lcm.ApproveObjectsRequest;
+import org.oasis.ebxml.registry.bindings.lcm.DeprecateObjectsRequest;
+import org.oasis.ebxml.registry.bindings.lcm.SubmitObjectsRequest;
+import org.oasis.ebxml.registry.bindings.rim.ExtrinsicObjectType;
+import org.oasis.ebxml.registry.bindings.rim.LocalizedStringType;
+import org.oasis.ebxml.registry.bindings.rim.ObjectRefType;
+import org.oasis.ebxml.registry.bindings.rim.RegistryPackageType;
+import org.openhealthtools.common.utils.OMUtil;
+
+/**
+ * Unmarshals lifecycle requests built as Axiom trees into the OMAR bindings.
+ */
+public class ConversionHelperTest extends TestCase {
+	private static final String LCM = "urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0";
+	private static final String RIM = "urn:oasis:names:tc:ebxml-regrep:xsd:rim:3.0";
+
+	private static final String REGISTRY_OBJECT_LIST = 
+		"<rim:RegistryObjectList>" +
+		"<rim:ExtrinsicObject id='urn:uuid:b2f5c7a5-1c48-4a5e-9d3b-b63d8f12a2e1' mimeType='text/xml'" +
+		" objectType='urn:uuid:7edca82f-054d-47f2-a032-9b2a5b5186c1'>" +
+		"<rim:Name><rim:LocalizedString value='Referral summary'/></rim:Name>" +
+		"</rim:ExtrinsicObject>" +
+		"<rim:RegistryPackage id='urn:uuid:3a1f7c4e-2d5b-4f1e-8c9a-6e0d2b7f4a13'/>" +
+		"</rim:RegistryObjectList>";
+
+	private ConversionHelper helper = ConversionHelper.getInstance();
+
+	private void assertSubmitObjectsRequest(Object request) {
+		assertTrue(request instanceof SubmitObjectsRequest);
+		List<?> objects = ((SubmitObjectsRequest) request).getRegistryObjectList().getIdentifiable();
+		assertEquals(2, objects.size());
+		ExtrinsicObjectType document = (ExtrinsicObjectType) objects.get(0);
+		assertEquals("urn:uuid:b2f5c7a5-1c48-4a5e-9d3b-b63d8f12a2e1", document.getId());
+		assertEquals("text/xml", document.getMimeType());
+		LocalizedStringType name = (LocalizedStringType) document.getName().getLocalizedString().get(0);
+		assertEquals("Referral summary", name.getValue());
+		RegistryPackageType submissionSet = (RegistryPackageType) objects.get(1);
+		assertEquals("urn:uuid:3a1f7c4e-2d5b-4f1e-8c9a-6e0d2b7f4a13", submissionSet.getId());
+	}
+
+	public void testUnmarshalSubmitObjectsRequest() throws Exception {
+		OMElement request = OMUtil.xmlStringToOM(
+				"<lcm:SubmitObjectsRequest xmlns:lcm='" + LCM + "' xmlns:rim='" + RIM + "'>" +
+				REGISTRY_OBJECT_LIST +
+				"</lcm:SubmitObjectsRequest>");
+
+		assertSubmitObjectsRequest(helper.unmarshal(request));
+	}
+
+	public void testUnmarshalRequestInsideMessage() throws Exception {
+		// the prefixes of the request are declared on the message holding it
+		OMElement message = OMUtil.xmlStringToOM(
+				"<ProvideAndRegisterDocumentSetRequest xmlns='urn:ihe:iti:xds-b:2007'" +
+				" xmlns:lcm='" + LCM + "' xmlns:rim='" + RIM + "'>" +
+				"<lcm:SubmitObjectsRequest>" + REGISTRY_OBJECT_LIST + "</lcm:SubmitObjectsRequest>" +
+				"</ProvideAndRegisterDocumentSetRequest>");
+
+		assertSubmitObjectsRequest(helper.unmarshal(message.getFirstElement()));
+	}
+
+	public void testUnmarshalDeprecateObjectsRequest() throws Exception {
+		Object request = helper.unmarshal(OMUtil.xmlStringToOM(
+				"<lcm:DeprecateObjectsRequest xmlns:lcm='" + LCM + "' xmlns:rim='" + RIM + "'>" +
+				"<rim:ObjectRefList>" +
+				"<rim:ObjectRef id='urn:uuid:b2f5c7a5-1c48-4a5e-9d3b-b63d8f12a2e1'/>" +
+				"<rim:ObjectRef id='urn:uuid:3a1f7c4e-2d5b-4f1e-8c9a-6e0d2b7f4a13'/>" +
+				"</rim:ObjectRefList>" +
+				"</lcm:DeprecateObjectsRequest>"));
+
+		assertTrue(request instanceof DeprecateObjectsRequest);
+		List<?> refs = ((DeprecateObjectsRequest) request).getObjectRefList().getObjectRef();
+		assertEquals(2, refs.size());
+		assertEquals("urn:uuid:3a1f7c4e-2d5b-4f1e-8c9a-6e0d2b7f4a13", ((ObjectRefType) refs.get(1)).getId());
+	}
+
+	public void testUnmarshalAfterFailure() throws Exception {
+		try {
+			helper.unmarshal(OMUtil.xmlStringToOM("<lcm:Unknown xmlns:lcm='" + LCM + "'/>"));
+			fail("An unknown element was unmarshalled");
+		} catch (JAXBException e) {
+			// expected
+		}
+
+		Object request = helper.unmarshal(OMUtil.xmlStringToOM(
+				"<lcm:ApproveObjectsRequest xmlns:lcm='" + LCM + "' xmlns:rim='" + RIM + "'>" +
+				"<rim:ObjectRefList><rim:ObjectRef id='urn:uuid:b2f5c7a5-1c48-4a5e-9d3b-b63d8f12a2e1'/></rim:ObjectRefList>" +
+				"</lcm:ApproveObjectsRequest>"));
+
+		assertTrue(request instanceof ApproveObjectsRequest);
+		List<?> refs = ((ApproveObjectsRequest) request).getObjectRefList().getObjectRef();
+		assertEquals("urn:uuid:b2f5c7a5-1c48-4a5e-9d3b-b63d8f12a2e1", ((ObjectRefType) refs.get(0)).getId());
+	}
+}
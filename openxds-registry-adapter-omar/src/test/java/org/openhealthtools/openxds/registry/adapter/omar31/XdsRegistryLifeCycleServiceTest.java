@@ -26,6 +26,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+
+import javax.xml.namespace.QName;
 
 import junit.framework.TestCase;
 
@@ -34,8 +37,13 @@ import org.apache.axiom.om.OMElement;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.freebxml.omar.common.BindingUtility;
+import org.freebxml.omar.server.common.ServerRequestContext;
+import org.freebxml.omar.server.persistence.PersistenceManagerFactory;
+import org.freebxml.omar.server.security.authentication.AuthenticationServiceImpl;
+import org.oasis.ebxml.registry.bindings.rim.RegistryObjectType;
 import org.oasis.ebxml.registry.bindings.rs.RegistryResponse;
 import org.openhealthtools.openxds.registry.api.RegistryLifeCycleContext;
+import org.openhealthtools.openxds.registry.api.RegistryLifeCycleException;
 import org.openhealthtools.openxds.registry.api.XdsRegistryLifeCycleService;
 
 
@@ -151,6 +159,57 @@ public class XdsRegistryLifeCycleServiceTest extends TestCase{
 			
 		}
 	 
+	 /**
+	  * Test SubmitObjectsRequest and ApproveObjectsRequest in a single transaction
+	  */
+	 public void testRegisterObjects() throws Exception {
+			String docId = "urn:uuid:" + UUID.randomUUID();
+			String setId = "urn:uuid:" + UUID.randomUUID();
+			RegistryLifeCycleContext context = new RegistryLifeCycleContext();
+			OMElement response = registryManager.registerObjects(getsubmitObjectsRequest(docId, setId), 
+					getApproveObjectsRequest(docId, setId), null, context);
+
+			assertEquals(BindingUtility.CANONICAL_RESPONSE_STATUS_TYPE_ID_Success, response.getAttributeValue(new QName("status")));
+			assertEquals(BindingUtility.CANONICAL_STATUS_TYPE_ID_Approved, getStatus(docId, "ExtrinsicObject"));
+			assertEquals(BindingUtility.CANONICAL_STATUS_TYPE_ID_Approved, getStatus(setId, "RegistryPackage"));
+		}
+
+	 /**
+	  * Test that a failed DeprecateObjectsRequest rolls back the SubmitObjectsRequest 
+	  * and ApproveObjectsRequest of the same transaction
+	  */
+	 public void testRegisterObjectsRolledBack() throws Exception {
+			String docId = "urn:uuid:" + UUID.randomUUID();
+			String setId = "urn:uuid:" + UUID.randomUUID();
+			// neither object to deprecate is in the registry
+			OMElement deprecate = getDeprecateObjectsRequest("urn:uuid:" + UUID.randomUUID(), "urn:uuid:" + UUID.randomUUID());
+			RegistryLifeCycleContext context = new RegistryLifeCycleContext();
+			try {
+				OMElement response = registryManager.registerObjects(getsubmitObjectsRequest(docId, setId), 
+						getApproveObjectsRequest(docId, setId), deprecate, context);
+				assertFalse(BindingUtility.CANONICAL_RESPONSE_STATUS_TYPE_ID_Success.equals(response.getAttributeValue(new QName("status"))));
+			} catch (RegistryLifeCycleException e) {
+				// the deprecation of a missing object may fail either way
+			}
+
+			assertNull(getStatus(docId, "ExtrinsicObject"));
+			assertNull(getStatus(setId, "RegistryPackage"));
+		}
+
+	 /**
+	  * Gets the status of a registry object as committed, or null if it is not in the registry.
+	  */
+	 private String getStatus(String id, String type) throws Exception {
+			ServerRequestContext context = new ServerRequestContext("XdsRegistryLifeCycleServiceTest:getStatus", null);
+			context.setUser(AuthenticationServiceImpl.getInstance().registryOperator);
+			try {
+				RegistryObjectType ro = PersistenceManagerFactory.getInstance().getPersistenceManager().getRegistryObject(context, id, type);
+				return (ro == null) ? null : ro.getStatus();
+			} finally {
+				context.rollback();
+			}
+		}
+	 
 	 /**
 		 * Create a new SubmitObjectsRequest as an Axiom OMElement
 		 * 
@@ -165,6 +224,10 @@ public class XdsRegistryLifeCycleServiceTest extends TestCase{
 		 *             XML
 		 */
 	private OMElement getsubmitObjectsRequest() {
+		return getsubmitObjectsRequest("urn:uuid:0520abda-8944-4463-b715-844a6785f2ab", "urn:uuid:08e6330f-1a7d-4099-be06-96cf8e6edae2");
+	}
+
+	private OMElement getsubmitObjectsRequest(String docId, String setId) {
 		
 		OMElement submitObjectsRequest = helper.omFactory.createOMElement("SubmitObjectsRequest", helper.nsLcm);
 		submitObjectsRequest.declareNamespace(helper.ns);
@@ -176,9 +239,7 @@ public class XdsRegistryLifeCycleServiceTest extends TestCase{
 		try {
 			OMElement registryObjectList = helper.omFactory().createOMElement("RegistryObjectList", helper.nsRim);
 			submitObjectsRequest.addChild(registryObjectList);
-			String docId = "urn:uuid:0520abda-8944-4463-b715-844a6785f2ab";
 			registryObjectList.addChild(getExtrinsicObject(docId, "text/xml"));
-			String setId = "urn:uuid:08e6330f-1a7d-4099-be06-96cf8e6edae2";
 			registryObjectList.addChild(getRegistryPackage(setId));
 			RimAxiom.addRimClassificationElement(registryObjectList, "cl-ss0", setId, XDS_SUBMISSION_SET, helper.nsRim);
 			// Link the document entries to the submission set
@@ -295,14 +356,16 @@ public class XdsRegistryLifeCycleServiceTest extends TestCase{
 	}
 		
 	public OMElement getApproveObjectsRequest() {
+		return getApproveObjectsRequest("urn:uuid:0520abda-8944-4463-b715-844a6785f2ab", "urn:uuid:08e6330f-1a7d-4099-be06-96cf8e6edae2");
+	}
+
+	public OMElement getApproveObjectsRequest(String docId, String setId) {
 		OMElement req = helper.omFactory.createOMElement("ApproveObjectsRequest", helper.nsLcm);
 		req.declareNamespace(helper.ns);
 		req.declareNamespace(helper.nsXsi);
 		req.declareNamespace(helper.nsLcm);
 		req.declareNamespace(helper.nsRim);		
 		req.declareNamespace(helper.nsRs);
-		String docId = "urn:uuid:0520abda-8944-4463-b715-844a6785f2ab";
-		String setId = "urn:uuid:08e6330f-1a7d-4099-be06-96cf8e6edae2";
 		List<String> uuids = new ArrayList<String>();
 		uuids.add(docId);
 		uuids.add(setId);
@@ -311,14 +374,16 @@ public class XdsRegistryLifeCycleServiceTest extends TestCase{
 	}
 	
 	public OMElement getDeprecateObjectsRequest() {
+		return getDeprecateObjectsRequest("urn:uuid:0520abda-8944-4463-b715-844a6785f2ab", "urn:uuid:08e6330f-1a7d-4099-be06-96cf8e6edae2");
+	}
+
+	public OMElement getDeprecateObjectsRequest(String docId, String setId) {
 		OMElement req = helper.omFactory.createOMElement("DeprecateObjectsRequest", helper.nsLcm);
 		req.declareNamespace(helper.ns);
 		req.declareNamespace(helper.nsXsi);
 		req.declareNamespace(helper.nsLcm);
 		req.declareNamespace(helper.nsRim);		
 		req.declareNamespace(helper.nsRs);
-		String docId = "urn:uuid:0520abda-8944-4463-b715-844a6785f2ab";
-		String setId = "urn:uuid:08e6330f-1a7d-4099-be06-96cf8e6edae2";
 		List<String> uuids = new ArrayList<String>();
 		uuids.add(docId);
 		uuids.add(setId);
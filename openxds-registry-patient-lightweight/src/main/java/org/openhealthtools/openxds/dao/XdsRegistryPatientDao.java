@@ -20,6 +20,8 @@
 
 package org.openhealthtools.openxds.dao;
 
+import java.util.List;
+
 import org.openhealthtools.openxds.registry.PersonIdentifier;
 import org.openhealthtools.openxds.registry.api.RegistryPatientException;
 /**
@@ -36,6 +38,14 @@ public interface XdsRegistryPatientDao {
 	 */
 	public PersonIdentifier getPersonById(PersonIdentifier personId) throws RegistryPatientException;
 	
+	/**
+	 * Gets all the person identifiers that are not deleted.
+	 * 
+	 * @return the list of {@link PersonIdentifier}s
+	 * @throws RegistryPatientException
+	 */
+	public List<PersonIdentifier> getPersonIdentifiers() throws RegistryPatientException;
+	
 		
 	/* (non-Javadoc)
 	 * @see org.openhealthtools.openxds.registry.api.XdsRegistryPatientService#createPatient()
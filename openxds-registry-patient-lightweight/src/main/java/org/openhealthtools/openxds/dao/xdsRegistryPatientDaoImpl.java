@@ -45,7 +45,8 @@ public class xdsRegistryPatientDaoImpl extends HibernateDaoSupport implements Xd
 		String deletePatient = "N";
 		try{
 		list = this.getHibernateTemplate().find(
-				"from PersonIdentifier where patientid = '"+ personId +"' and assigningauthority ='" + assigningAuthority + "' and deleted ='" + deletePatient + "'");
+				"from PersonIdentifier where patientid = ? and assigningauthority = ? and deleted = ?", 
+				new Object[] {personId, assigningAuthority, deletePatient});
 		}catch (Exception e) {
 			log.error("Failed to retrieve person identifier from registry patient service",e);
 			throw new RegistryPatientException(e);
@@ -57,6 +58,16 @@ public class xdsRegistryPatientDaoImpl extends HibernateDaoSupport implements Xd
 	
 	}
 
+	@SuppressWarnings("unchecked")
+	public List<PersonIdentifier> getPersonIdentifiers() throws RegistryPatientException {
+		try {
+			return this.getHibernateTemplate().find("from PersonIdentifier where deleted = 'N'");
+		} catch (Exception e) {
+			log.error("Failed to retrieve person identifiers from registry patient service",e);
+			throw new RegistryPatientException(e);
+		}
+	}
+
 	public void mergePersonIdentifier(PersonIdentifier mergePersonIdentifier) throws RegistryPatientException{
 		try {
 			 this.getHibernateTemplate().update(mergePersonIdentifier);
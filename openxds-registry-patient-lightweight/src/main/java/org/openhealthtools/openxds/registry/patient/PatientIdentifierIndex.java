@@ -0,0 +1,89 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.registry.patient;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openhealthtools.openxds.registry.PersonIdentifier;
+
+/**
+ * An in-memory index of the patient identifiers known to the registry,
+ * that is the identifiers that are not deleted, keyed by patient id and
+ * assigning authority. It lets a registration check its patient id without
+ * going to the database.
+ */
+public class PatientIdentifierIndex {
+	private final Set<String> identifiers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private volatile boolean loaded = false;
+
+	/**
+	 * Adds the identifiers read from the database, and marks the index as loaded.
+	 * 
+	 * @param personIdentifiers the identifiers
+	 */
+	public void load(Collection<PersonIdentifier> personIdentifiers) {
+		for (PersonIdentifier identifier : personIdentifiers) {
+			update(identifier);
+		}
+		loaded = true;
+	}
+
+	/**
+	 * @return whether the index holds all the identifiers of the database
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * @return whether the identifier is known and not deleted
+	 */
+	public boolean contains(PersonIdentifier identifier) {
+		return identifiers.contains(key(identifier));
+	}
+
+	/**
+	 * Adds or removes an identifier after it has been saved, depending on 
+	 * whether it is deleted.
+	 * 
+	 * @param identifier the saved identifier
+	 */
+	public void update(PersonIdentifier identifier) {
+		if ("Y".equals(identifier.getDelete()))
+			identifiers.remove(key(identifier));
+		else
+			identifiers.add(key(identifier));
+	}
+
+	/**
+	 * @return the number of identifiers in the index
+	 */
+	public int size() {
+		return identifiers.size();
+	}
+
+	private static String key(PersonIdentifier identifier) {
+		return identifier.getPatientId() + "^^^" + identifier.getAssigningAuthority();
+	}
+}
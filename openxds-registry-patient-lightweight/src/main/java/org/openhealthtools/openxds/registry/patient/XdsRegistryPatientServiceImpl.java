@@ -31,11 +31,19 @@ import org.openhealthtools.openxds.registry.api.RegistryPatientException;
 import org.openhealthtools.openxds.registry.api.XdsRegistryPatientService;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * The class is the core of XDS Registry Patient Manager and 
  * provides the patient life cycle operations such as createPatient,
  * updatePatient, mergePatients and unmergePatients.
+ * <p>
+ * The identifiers of the known patients are kept in a {@link PatientIdentifierIndex},
+ * which is loaded by {@link #loadPatientIndex} and updated when a patient is created 
+ * or updated, so that checking the patient of a registration needs neither a database 
+ * query nor a transaction. An identifier missing from the index is still looked up in 
+ * the database, in case it was added by another registry sharing the database.
  *  
  * @author <a href="mailto:Rasakannu.Palaniyandi@misys.com">Raja</a>
  *
@@ -46,14 +54,35 @@ public class XdsRegistryPatientServiceImpl implements XdsRegistryPatientService
 	private static Log log = LogFactory.getLog(XdsRegistryPatientServiceImpl.class);
 	
 	public XdsRegistryPatientDao xdsRegistryPatientDao;
-	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	private final PatientIdentifierIndex patientIndex = new PatientIdentifierIndex();
+
+	/**
+	 * Loads the identifiers of all the known patients into the index. If they
+	 * cannot be read, patients are looked up in the database until they can.
+	 */
+	public synchronized void loadPatientIndex() {
+		if (patientIndex.isLoaded())
+			return;
+		try {
+			patientIndex.load(xdsRegistryPatientDao.getPersonIdentifiers());
+			log.info("Loaded " + patientIndex.size() + " patient identifiers");
+		} catch (Exception e) {
+			log.error("Failed to load the patient identifiers; patients are looked up in the database instead", e);
+		}
+	}
+
 	public boolean isValidPatient(PatientIdentifier pid, RegistryPatientContext context) throws RegistryPatientException {
 		try {
 			PersonIdentifier identifier = getPersonIdentifier(pid);	
+			if (!patientIndex.isLoaded()) 
+				loadPatientIndex();
+			if (patientIndex.contains(identifier))
+				return true;
 			PersonIdentifier personIdentifier = xdsRegistryPatientDao.getPersonById(identifier);
 			if (personIdentifier == null) {
 				return false;
 			}
+			patientIndex.update(personIdentifier);
 			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -74,6 +103,7 @@ public class XdsRegistryPatientServiceImpl implements XdsRegistryPatientService
 				}
 			}else{
 				xdsRegistryPatientDao.savePersonIdentifier(identifier);
+				updatePatientIndex(identifier);
 			} 
 		}
 		}
@@ -90,6 +120,7 @@ public class XdsRegistryPatientServiceImpl implements XdsRegistryPatientService
 			PersonIdentifier updateidentifier = getPersonIdentifier(personIdentifier,pid,patient.isDeathIndicator());			
 		try {
 			xdsRegistryPatientDao.updatePersonIdentifier(updateidentifier);
+			updatePatientIndex(updateidentifier);
 		} catch (Exception e) {
 			log.error("Failed while trying to update a patient record in the patient registry." + e, e);
 			throw new RegistryPatientException(e.getMessage());
@@ -146,6 +177,23 @@ public class XdsRegistryPatientServiceImpl implements XdsRegistryPatientService
 		}
 	}
 
+	/**
+	 * Updates the index with a saved identifier once the transaction that saved 
+	 * it is committed, or at once if there is no transaction. A merge does not change 
+	 * the index, as a merged identifier is still known to the registry.
+	 */
+	private void updatePatientIndex(final PersonIdentifier identifier) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				public void afterCommit() {
+					patientIndex.update(identifier);
+				}
+			});
+		} else {
+			patientIndex.update(identifier);
+		}
+	}
+
 	public XdsRegistryPatientDao getXdsRegistryPatientDao() {
 		return xdsRegistryPatientDao;
 	}
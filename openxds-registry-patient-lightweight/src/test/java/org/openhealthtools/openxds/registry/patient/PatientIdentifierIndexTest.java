@@ -0,0 +1,78 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.registry.patient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openhealthtools.openxds.registry.PersonIdentifier;
+
+/**
+ * This class tests the index of the known patient identifiers.
+ */
+public class PatientIdentifierIndexTest {
+	private static final String AUTHORITY = "&1.3.6.1.4.1.21367.2005.3.7&ISO";
+
+	@Test
+	public void testLoad() {
+		PatientIdentifierIndex index = new PatientIdentifierIndex();
+		assertFalse(index.isLoaded());
+		List<PersonIdentifier> identifiers = new ArrayList<PersonIdentifier>();
+		identifiers.add(getPersonIdentifier("1001", AUTHORITY, "N"));
+		identifiers.add(getPersonIdentifier("1002", AUTHORITY, "N"));
+		index.load(identifiers);
+		assertTrue(index.isLoaded());
+		assertEquals(2, index.size());
+		assertTrue(index.contains(getPersonIdentifier("1001", AUTHORITY, null)));
+		assertFalse(index.contains(getPersonIdentifier("1003", AUTHORITY, null)));
+	}
+
+	@Test
+	public void testAssigningAuthority() {
+		PatientIdentifierIndex index = new PatientIdentifierIndex();
+		index.update(getPersonIdentifier("1001", AUTHORITY, "N"));
+		assertFalse(index.contains(getPersonIdentifier("1001", "&1.3.6.1.4.1.21367.2005.3.8&ISO", null)));
+		assertFalse(index.contains(getPersonIdentifier("1001", null, null)));
+	}
+
+	@Test
+	public void testDelete() {
+		PatientIdentifierIndex index = new PatientIdentifierIndex();
+		index.update(getPersonIdentifier("1001", AUTHORITY, "N"));
+		assertTrue(index.contains(getPersonIdentifier("1001", AUTHORITY, null)));
+		index.update(getPersonIdentifier("1001", AUTHORITY, "Y"));
+		assertFalse(index.contains(getPersonIdentifier("1001", AUTHORITY, null)));
+		assertEquals(0, index.size());
+	}
+
+	private PersonIdentifier getPersonIdentifier(String patientId, String assigningAuthority, String deleted) {
+		PersonIdentifier identifier = new PersonIdentifier();
+		identifier.setPatientId(patientId);
+		identifier.setAssigningAuthority(assigningAuthority);
+		identifier.setDelete(deleted);
+		return identifier;
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Holds a copy of a document content whose length is needed before the
+ * content can be written, such as for a JDBC <code>setBinaryStream</code>.
+ * Content up to the memory threshold is kept in memory, larger content is
+ * spooled to a temporary file, so that the heap never holds more than the
+ * threshold whatever the size of the document.
+ */
+public class ContentSpool {
+
+	/** The default size up to which the content is kept in memory, 1MB */
+	public static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+	private final int memoryThreshold;
+	private final File directory;
+	private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+	private File file = null;
+	private long length = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param memoryThreshold the size in bytes up to which the content is
+	 * 		kept in memory
+	 */
+	public ContentSpool(int memoryThreshold) {
+		this(memoryThreshold, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param memoryThreshold the size in bytes up to which the content is
+	 * 		kept in memory
+	 * @param directory the folder of the temporary file, or null for the
+	 * 		default temporary folder. It should be on the same file system as
+	 * 		the target of {@link #moveTo(File)}.
+	 */
+	public ContentSpool(int memoryThreshold, File directory) {
+		this.memoryThreshold = memoryThreshold;
+		this.directory = directory;
+	}
+
+	/**
+	 * Reads the content to the end of the given stream. The stream is
+	 * closed when done.
+	 *
+	 * @param in the content to be spooled
+	 * @throws IOException if the content cannot be read or spooled
+	 */
+	public void spool(InputStream in) throws IOException {
+		OutputStream out = null;
+		try {
+			byte[] buf = new byte[DigestingInputStream.BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buf, 0, buf.length)) != -1) {
+				if (out == null && length + read > memoryThreshold) {
+					file = File.createTempFile("openxds", ".spool", directory);
+					out = new BufferedOutputStream(new FileOutputStream(file), DigestingInputStream.BUFFER_SIZE);
+					memory.writeTo(out);
+					memory = null;
+				}
+				if (out != null)
+					out.write(buf, 0, read);
+				else
+					memory.write(buf, 0, read);
+				length += read;
+			}
+		} catch (IOException e) {
+			if (out != null)
+				out.close();
+			out = null;
+			dispose();
+			throw e;
+		} finally {
+			if (out != null)
+				out.close();
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the length of the spooled content.
+	 *
+	 * @return the length in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Opens a new stream on the spooled content.
+	 *
+	 * @return the content stream
+	 * @throws IOException if the spooled file cannot be opened
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (file != null)
+			return new FileInputStream(file);
+		return new ByteArrayInputStream(memory.toByteArray());
+	}
+
+	/**
+	 * Moves the spooled content to the given file. Content spooled to a
+	 * temporary file is renamed rather than copied where the file system
+	 * allows it. The spool is disposed of afterwards.
+	 *
+	 * @param target the file to be written, which must not exist
+	 * @throws IOException if the content cannot be written
+	 */
+	public void moveTo(File target) throws IOException {
+		if (file != null && file.renameTo(target)) {
+			file = null;
+			dispose();
+			return;
+		}
+		InputStream in = getInputStream();
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(target);
+			byte[] buf = new byte[DigestingInputStream.BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buf, 0, buf.length)) != -1) {
+				out.write(buf, 0, read);
+			}
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			if (out != null)
+				out.close();
+			out = null;
+			if (!target.delete())
+				target.deleteOnExit();
+			throw e;
+		} finally {
+			if (out != null)
+				out.close();
+			in.close();
+		}
+		dispose();
+	}
+
+	/**
+	 * Releases the spooled content, removing its temporary file if any.
+	 */
+	public void dispose() {
+		memory = null;
+		if (file != null && !file.delete())
+			file.deleteOnExit();
+		file = null;
+	}
+}
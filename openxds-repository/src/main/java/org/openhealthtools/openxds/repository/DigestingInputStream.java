@@ -0,0 +1,161 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An <code>InputStream</code> wrapper which counts the bytes and computes the
+ * SHA1 hash of the document content while it is being read, so that the size
+ * and hash of a repository item are available once the content has been
+ * written to the repository backend, without reading the document again.
+ */
+public class DigestingInputStream extends FilterInputStream {
+
+	/** The buffer size used to copy the content to the repository backend */
+	public static final int BUFFER_SIZE = 8192;
+
+	private final MessageDigest digest;
+	private long size = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in the document content to be read
+	 */
+	public DigestingInputStream(InputStream in) {
+		super(in);
+		try {
+			digest = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA1 algorithm is not available", e);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b != -1) {
+			digest.update((byte)b);
+			size++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = in.read(b, off, len);
+		if (read > 0) {
+			digest.update(b, off, read);
+			size += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		//Skipped bytes would be missing from the hash, so they are read instead.
+		byte[] buf = new byte[(int)Math.min(n, BUFFER_SIZE)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buf, 0, (int)Math.min(buf.length, n - skipped));
+			if (read == -1)
+				break;
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Copies the remaining content of this stream to the given output stream.
+	 *
+	 * @param out the <code>OutputStream</code> to write to
+	 * @return the number of bytes copied
+	 * @throws IOException if the content cannot be read or written
+	 */
+	public long copyTo(OutputStream out) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		long copied = 0;
+		int read;
+		while ((read = read(buf, 0, buf.length)) != -1) {
+			out.write(buf, 0, read);
+			copied += read;
+		}
+		return copied;
+	}
+
+	/**
+	 * Reads the remaining content of this stream, discarding it. This is used
+	 * when only the size and hash of the content are needed.
+	 *
+	 * @throws IOException if the content cannot be read
+	 */
+	public void consume() throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		while (read(buf, 0, buf.length) != -1);
+	}
+
+	/**
+	 * Gets the number of bytes read so far.
+	 *
+	 * @return the size of the content read so far
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the hex encoded SHA1 hash of the content read so far. This method
+	 * should be called only once, after the content has been fully read.
+	 *
+	 * @return the SHA1 hash string
+	 */
+	public String getHash() {
+		return toHexString(digest.digest());
+	}
+
+	/**
+	 * Converts a hash value to the lower case hex format used in the
+	 * XDS metadata.
+	 *
+	 * @param hash the hash bytes
+	 * @return the hex encoded hash string
+	 */
+	public static String toHexString(byte[] hash) {
+		StringBuffer buf = new StringBuffer();
+		for (int i = 0; i < hash.length; i++) {
+			String h = Integer.toHexString(hash[i] & 0xff);
+			if (h.length() == 1) h = "0" + h;
+			buf.append(h);
+		}
+		return new String(buf);
+	}
+}
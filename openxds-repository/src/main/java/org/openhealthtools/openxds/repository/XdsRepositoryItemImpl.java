@@ -22,8 +22,8 @@ package org.openhealthtools.openxds.repository;
 
 
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
 
 import javax.activation.DataHandler;
 
@@ -46,6 +46,9 @@ public class XdsRepositoryItemImpl implements XdsRepositoryItem {
     private String id;
     private DataHandler handler;
     private String mimeType;
+    /** The size in bytes, or -1 if it has not been computed yet */
+    private int size = -1;
+    private String hash;
     
     public XdsRepositoryItemImpl(){   	
     }
@@ -69,7 +72,9 @@ public class XdsRepositoryItemImpl implements XdsRepositoryItem {
 	 */
 	public void setDataHandler(DataHandler dataHandler) {
 		this.handler = dataHandler;
-		
+		//The size and hash belong to the previous content
+		this.size = -1;
+		this.hash = null;
 	}
 
 	/* (non-Javadoc)
@@ -83,40 +88,42 @@ public class XdsRepositoryItemImpl implements XdsRepositoryItem {
 	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryItem#getHash()
 	 */
 	public String getHash() throws RepositoryException {
-		try {
-			return getSha1String();
-		}catch(Exception e) {
-			throw new RepositoryException( "Fail to get hash - " + e.getMessage(), e);
-		}
+		if (hash == null)
+			digest();
+		return hash;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryItem#setHash(java.lang.String)
+	 */
+	public void setHash(String hash) {
+		this.hash = hash;
 	}
 
     /**
-     * Getter for property sha1.
-     * @return Value of property sha1.
-     */
-    private byte[] getSha1() throws Exception {
-		InputStream is = this.getDataHandler().getInputStream();
-		byte[] inb = new byte[this.getSize()];
-		is.read(inb);
-		
-        MessageDigest md = MessageDigest.getInstance("SHA1"); 
-        byte[] result = md.digest(inb);
-        return result;
-    }
-    
-    /**
-     * Getter for property sha1String.
-     * @return Value of property sha1String.
+     * Reads the content once to compute both the size and the Sha1 hash. 
+     * This is only needed when the repository backend has not already 
+     * provided them while storing the content.
      */
-    private String getSha1String() throws Exception {
-        byte[] sha1 = getSha1();
-        StringBuffer buf = new StringBuffer();
-        for(int i=0; i<sha1.length; i++) {
-            String h = Integer.toHexString(sha1[i] & 0xff);
-            if(h.length() == 1) h = "0" + h;
-            buf.append(h);
-        }
-        return new String(buf);
+    private void digest() throws RepositoryException {
+		InputStream is = null;
+		try {
+			is = handler.getInputStream();
+			DigestingInputStream dis = new DigestingInputStream(is);
+			dis.consume();
+			this.size = (int)dis.getSize();
+			this.hash = dis.getHash();
+		} catch (Exception e) {
+			throw new RepositoryException( "Fail to get size and hash - " + e.getMessage(), e);
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+					log.warn("Fail to close the document stream", e);
+				}
+			}
+		}
     }
     
 	/* (non-Javadoc)
@@ -130,18 +137,18 @@ public class XdsRepositoryItemImpl implements XdsRepositoryItem {
 	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryItem#getSize()
 	 */
 	public int getSize() throws RepositoryException {
-        int size = 0;
-		try {
-			InputStream is = handler.getInputStream();
-	        while (is.read() != -1) {
-	            size++;
-	        }
-		} catch (Exception e) {
-			throw new RepositoryException(e);
-		}		
+		if (size < 0)
+			digest();
 		return size;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryItem#setSize(int)
+	 */
+	public void setSize(int size) {
+		this.size = size;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryItem#setDocumentUniqueId(java.lang.String)
 	 */
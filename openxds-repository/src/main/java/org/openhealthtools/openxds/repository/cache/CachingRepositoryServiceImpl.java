@@ -0,0 +1,543 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openhealthtools.openxds.repository.ByteArrayDataSource;
+import org.openhealthtools.openxds.repository.Utility;
+import org.openhealthtools.openxds.repository.XdsRepositoryItemImpl;
+import org.openhealthtools.openxds.repository.api.RepositoryException;
+import org.openhealthtools.openxds.repository.api.RepositoryRequestContext;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryItem;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryService;
+import org.openhealthtools.openxds.repository.relationaldb.DatabaseContentDataSource;
+
+/**
+ * This class provides an {@link XdsRepositoryService} decorator which keeps
+ * the content of recently retrieved documents in memory.
+ * <p>
+ * The cache is bounded by the total size of the cached documents rather than
+ * by their number, and documents larger than <code>maxItemSize</code> are
+ * never cached. Eviction follows a segmented LRU policy: a document enters
+ * the probationary segment, and moves to the protected segment when it is
+ * retrieved again, so that a burst of one-off retrievals cannot flush the
+ * documents which are retrieved repeatedly. Documents are evicted from the
+ * probationary segment first.
+ * <p>
+ * A document is removed from the cache when it is deleted or inserted
+ * through this service. A retrieval which misses the cache only caches the
+ * document if it has not been removed since the retrieval started, so that
+ * a retrieval racing with a delete cannot cache the deleted content again.
+ */
+public class CachingRepositoryServiceImpl implements XdsRepositoryService {
+	private static final Log log = LogFactory.getLog(CachingRepositoryServiceImpl.class);
+
+	/**The repository service whose documents are cached*/
+	private XdsRepositoryService target;
+
+	/**The maximal total size of the cached documents in bytes, 64MB by default*/
+	private long maxCacheSize = 64L * 1024 * 1024;
+
+	/**The maximal size of a cached document in bytes, 1MB by default*/
+	private int maxItemSize = 1024 * 1024;
+
+	/**The percentage of maxCacheSize used by the protected segment*/
+	private int protectedPercentage = 80;
+
+	/**Both segments are access ordered, the least recently used entry comes first*/
+	private final LinkedHashMap<String, CacheEntry> probation = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	private final LinkedHashMap<String, CacheEntry> protectedSegment = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	private long probationSize = 0;
+	private long protectedSize = 0;
+
+	/**The retrievals which missed the cache and are still running, by document*/
+	private final Map<String, Fill> fills = new HashMap<String, Fill>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Gets the repository service whose documents are cached.
+	 *
+	 * @return the target repository service
+	 */
+	public XdsRepositoryService getTarget() {
+		return target;
+	}
+
+	/**
+	 * Sets the repository service whose documents are cached.
+	 *
+	 * @param target the target repository service
+	 */
+	public void setTarget(XdsRepositoryService target) {
+		this.target = target;
+	}
+
+	/**
+	 * Sets the maximal total size of the cached documents.
+	 *
+	 * @param maxCacheSize the size in bytes
+	 */
+	public void setMaxCacheSize(long maxCacheSize) {
+		this.maxCacheSize = maxCacheSize;
+	}
+
+	public long getMaxCacheSize() {
+		return maxCacheSize;
+	}
+
+	/**
+	 * Sets the size above which a document is not cached.
+	 *
+	 * @param maxItemSize the size in bytes
+	 */
+	public void setMaxItemSize(int maxItemSize) {
+		this.maxItemSize = maxItemSize;
+	}
+
+	public int getMaxItemSize() {
+		return maxItemSize;
+	}
+
+	/**
+	 * Sets the share of the cache that is used by documents which
+	 * have been retrieved more than once.
+	 *
+	 * @param protectedPercentage a percentage between 0 and 100
+	 */
+	public void setProtectedPercentage(int protectedPercentage) {
+		if (protectedPercentage < 0 || protectedPercentage > 100)
+			throw new IllegalArgumentException("protectedPercentage must be between 0 and 100");
+		this.protectedPercentage = protectedPercentage;
+	}
+
+	public int getProtectedPercentage() {
+		return protectedPercentage;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryService#getRepositoryUniqueId()
+	 */
+	public String getRepositoryUniqueId() {
+		return target.getRepositoryUniqueId();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryService#insert(org.openhealthtools.openxds.repository.api.XdsRepositoryItem, org.openhealthtools.openxds.repository.api.RepositoryRequestContext)
+	 */
+	public boolean insert(XdsRepositoryItem item, RepositoryRequestContext context)
+			throws RepositoryException {
+		invalidate(item.getDocumentUniqueId());
+		return target.insert(item, context);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryService#insert(java.util.List, org.openhealthtools.openxds.repository.api.RepositoryRequestContext)
+	 */
+	public List<String> insert(List<XdsRepositoryItem> items, RepositoryRequestContext context)
+			throws RepositoryException {
+		if (items != null) {
+			for (XdsRepositoryItem item : items) {
+				invalidate(item.getDocumentUniqueId());
+			}
+		}
+		return target.insert(items, context);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryService#getRepositoryItem(java.lang.String, org.openhealthtools.openxds.repository.api.RepositoryRequestContext)
+	 */
+	public XdsRepositoryItem getRepositoryItem(String documentUniqueId, RepositoryRequestContext context)
+			throws RepositoryException {
+		String key = Utility.getInstance().stripId(documentUniqueId);
+		CacheEntry entry = lookup(key);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry.toRepositoryItem();
+		}
+		misses.incrementAndGet();
+
+		int generation = beginFill(key);
+		XdsRepositoryItem item = null;
+		boolean retrieved = false;
+		try {
+			item = target.getRepositoryItem(documentUniqueId, context);
+			retrieved = true;
+		} finally {
+			if (!retrieved)
+				endFill(key, generation);
+		}
+		return cache(key, item, generation);
+	}
+
+	/**
+	 * Caches the content of an item retrieved from the target repository,
+	 * unless the document was removed from the cache since its retrieval began.
+	 *
+	 * @param generation the generation of the document when its retrieval began
+	 * @return the item to hand out
+	 */
+	private XdsRepositoryItem cache(String key, XdsRepositoryItem item, int generation) throws RepositoryException {
+		CacheEntry entry = null;
+		boolean current;
+		try {
+			if (item == null || item.getDataHandler() == null)
+				return item;
+			byte[] content = readContent(item.getDataHandler());
+			if (content == null)
+				return item;
+			entry = new CacheEntry(item.getDocumentUniqueId(), item.getMimeType(),
+					item.getDataHandler().getContentType(), content);
+		} catch (IOException e) {
+			//The document is still served, just not cached
+			log.warn("Failed to cache document " + key, e);
+			return item;
+		} finally {
+			current = endFill(key, generation);
+		}
+		if (current)
+			store(key, entry);
+		//The content has been consumed, so hand out the cached copy
+		return entry.toRepositoryItem();
+	}
+
+	/**
+	 * Registers a retrieval of a document which missed the cache.
+	 *
+	 * @return the generation of the document, to be passed to {@link #endFill}
+	 */
+	private synchronized int beginFill(String key) {
+		Fill fill = fills.get(key);
+		if (fill == null) {
+			fill = new Fill();
+			fills.put(key, fill);
+		}
+		fill.pending++;
+		return fill.generation;
+	}
+
+	/**
+	 * Ends a retrieval registered by {@link #beginFill}.
+	 *
+	 * @return true if the document has not been removed from the cache since
+	 * 		the retrieval began, so that its content may be cached
+	 */
+	private synchronized boolean endFill(String key, int generation) {
+		Fill fill = fills.get(key);
+		if (--fill.pending == 0)
+			fills.remove(key);
+		return fill.generation == generation;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryService#getRepositoryItems(java.util.List, org.openhealthtools.openxds.repository.api.RepositoryRequestContext)
+	 */
+	public List<XdsRepositoryItem> getRepositoryItems(List<String> documentUniqueIds, RepositoryRequestContext context)
+			throws RepositoryException {
+		List<XdsRepositoryItem> repositoryItems = new ArrayList<XdsRepositoryItem>();
+		if (documentUniqueIds == null)
+			return repositoryItems;
+		//The documents which are not cached are retrieved from the target together
+		List<String> missed = new ArrayList<String>();
+		List<Integer> missedPositions = new ArrayList<Integer>();
+		for (String documentUniqueId : documentUniqueIds) {
+			CacheEntry entry = lookup(Utility.getInstance().stripId(documentUniqueId));
+			if (entry != null) {
+				hits.incrementAndGet();
+				repositoryItems.add(entry.toRepositoryItem());
+			} else {
+				misses.incrementAndGet();
+				missedPositions.add(repositoryItems.size());
+				missed.add(documentUniqueId);
+				repositoryItems.add(null);
+			}
+		}
+		if (missed.isEmpty())
+			return repositoryItems;
+		int[] generations = new int[missed.size()];
+		for (int i = 0; i < missed.size(); i++) {
+			generations[i] = beginFill(Utility.getInstance().stripId(missed.get(i)));
+		}
+		List<XdsRepositoryItem> retrieved = null;
+		try {
+			retrieved = target.getRepositoryItems(missed, context);
+		} finally {
+			if (retrieved == null) {
+				for (int i = 0; i < missed.size(); i++) {
+					endFill(Utility.getInstance().stripId(missed.get(i)), generations[i]);
+				}
+			}
+		}
+		for (int i = 0; i < missed.size(); i++) {
+			String key = Utility.getInstance().stripId(missed.get(i));
+			repositoryItems.set(missedPositions.get(i), cache(key, retrieved.get(i), generations[i]));
+		}
+		return repositoryItems;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryService#delete(java.lang.String, org.openhealthtools.openxds.repository.api.RepositoryRequestContext)
+	 */
+	public void delete(String documentUniqueId, RepositoryRequestContext context)
+			throws RepositoryException {
+		invalidate(documentUniqueId);
+		target.delete(documentUniqueId, context);
+		//A concurrent retrieval may have cached the document again meanwhile
+		invalidate(documentUniqueId);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.XdsRepositoryService#delete(java.util.List, org.openhealthtools.openxds.repository.api.RepositoryRequestContext)
+	 */
+	public void delete(List<String> ids, RepositoryRequestContext context)
+			throws RepositoryException {
+		if (ids != null) {
+			for (String id : ids) {
+				invalidate(id);
+			}
+		}
+		target.delete(ids, context);
+		if (ids != null) {
+			for (String id : ids) {
+				invalidate(id);
+			}
+		}
+	}
+
+	/**
+	 * Removes a document from the cache.
+	 *
+	 * @param documentUniqueId the document unique id
+	 */
+	public synchronized void invalidate(String documentUniqueId) {
+		if (documentUniqueId == null)
+			return;
+		String key = Utility.getInstance().stripId(documentUniqueId);
+		//The retrievals already running must not cache the document
+		Fill fill = fills.get(key);
+		if (fill != null)
+			fill.generation++;
+		CacheEntry entry = probation.remove(key);
+		if (entry != null)
+			probationSize -= entry.content.length;
+		entry = protectedSegment.remove(key);
+		if (entry != null)
+			protectedSize -= entry.content.length;
+	}
+
+	/**
+	 * Removes all documents from the cache.
+	 */
+	public synchronized void clear() {
+		for (Fill fill : fills.values()) {
+			fill.generation++;
+		}
+		probation.clear();
+		protectedSegment.clear();
+		probationSize = 0;
+		protectedSize = 0;
+	}
+
+	/**
+	 * Finds a cached document, promoting it to the protected segment
+	 * on its second retrieval.
+	 */
+	private synchronized CacheEntry lookup(String key) {
+		CacheEntry entry = protectedSegment.get(key);
+		if (entry != null)
+			return entry;
+
+		entry = probation.remove(key);
+		if (entry == null)
+			return null;
+		probationSize -= entry.content.length;
+		protectedSegment.put(key, entry);
+		protectedSize += entry.content.length;
+
+		//Demote the least recently used protected documents to probation
+		long maxProtectedSize = maxCacheSize * protectedPercentage / 100;
+		Iterator<Map.Entry<String, CacheEntry>> it = protectedSegment.entrySet().iterator();
+		while (protectedSize > maxProtectedSize && it.hasNext()) {
+			Map.Entry<String, CacheEntry> lru = it.next();
+			if (lru.getKey().equals(key))
+				break;
+			it.remove();
+			protectedSize -= lru.getValue().content.length;
+			probation.put(lru.getKey(), lru.getValue());
+			probationSize += lru.getValue().content.length;
+		}
+		evict();
+		return entry;
+	}
+
+	private synchronized void store(String key, CacheEntry entry) {
+		if (probation.containsKey(key) || protectedSegment.containsKey(key))
+			return;
+		probation.put(key, entry);
+		probationSize += entry.content.length;
+		evict();
+	}
+
+	/**
+	 * Evicts the least recently used documents until the cache fits
+	 * maxCacheSize, starting with the probationary segment.
+	 */
+	private void evict() {
+		evict(probation, true);
+		evict(protectedSegment, false);
+	}
+
+	private void evict(LinkedHashMap<String, CacheEntry> segment, boolean isProbation) {
+		Iterator<CacheEntry> it = segment.values().iterator();
+		while (probationSize + protectedSize > maxCacheSize && it.hasNext()) {
+			CacheEntry lru = it.next();
+			it.remove();
+			if (isProbation)
+				probationSize -= lru.content.length;
+			else
+				protectedSize -= lru.content.length;
+			evictions.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("Evicted document " + lru.documentUniqueId + " from the repository cache");
+		}
+	}
+
+	/**
+	 * Reads the document content into memory unless it is larger
+	 * than maxItemSize. The size of a file or database document is
+	 * checked before its content is read, so that an oversized document
+	 * is streamed from the target repository without being loaded. 
+	 * The target repository hands out re-readable data sources, so a 
+	 * document of unknown size which turns out to be too large can still 
+	 * be served from its DataHandler.
+	 *
+	 * @return the content, or null if the document is too large to be cached
+	 */
+	private byte[] readContent(DataHandler handler) throws IOException {
+		DataSource ds = handler.getDataSource();
+		if (ds instanceof FileDataSource && ((FileDataSource)ds).getFile().length() > maxItemSize)
+			return null;
+		if (ds instanceof DatabaseContentDataSource && ((DatabaseContentDataSource)ds).getSize() > maxItemSize)
+			return null;
+
+		InputStream is = handler.getInputStream();
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = is.read(buf)) != -1) {
+				baos.write(buf, 0, read);
+				if (baos.size() > maxItemSize)
+					return null;
+			}
+			return baos.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * @return the number of retrievals served from the cache
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of retrievals passed to the target repository
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of documents evicted to stay within maxCacheSize
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of cached documents
+	 */
+	public synchronized int getItemCount() {
+		return probation.size() + protectedSegment.size();
+	}
+
+	/**
+	 * @return the total size of the cached documents in bytes
+	 */
+	public synchronized long getCacheSize() {
+		return probationSize + protectedSize;
+	}
+
+	/**
+	 * The retrievals of a document which missed the cache. The generation
+	 * changes whenever the document is removed from the cache.
+	 */
+	private static class Fill {
+		private int pending = 0;
+		private int generation = 0;
+	}
+
+	/**
+	 * A cached document.
+	 */
+	private static class CacheEntry {
+		private final String documentUniqueId;
+		private final String mimeType;
+		private final String contentType;
+		private final byte[] content;
+
+		CacheEntry(String documentUniqueId, String mimeType, String contentType, byte[] content) {
+			this.documentUniqueId = documentUniqueId;
+			this.mimeType = mimeType;
+			this.contentType = contentType;
+			this.content = content;
+		}
+
+		XdsRepositoryItem toRepositoryItem() {
+			XdsRepositoryItemImpl item = new XdsRepositoryItemImpl(documentUniqueId,
+					new DataHandler(new ByteArrayDataSource(content, contentType)));
+			item.setMimeType(mimeType);
+			item.setSize(content.length);
+			return item;
+		}
+	}
+}
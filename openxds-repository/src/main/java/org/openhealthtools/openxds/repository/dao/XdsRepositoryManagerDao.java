@@ -20,6 +20,9 @@
 
 package org.openhealthtools.openxds.repository.dao;
 
+import java.io.InputStream;
+import java.util.List;
+
 import org.openhealthtools.openxds.repository.Repository;
 import org.openhealthtools.openxds.repository.api.RepositoryException;
 /**
@@ -43,6 +46,43 @@ public interface XdsRepositoryManagerDao {
 	
 	public Repository getXdsRepositoryBean(String documentUniqueId) throws RepositoryException;
 	
+	/**
+     * Returns the Repository associated with the given document unique id,
+     * without its binary content.
+     *
+     * @param documentUniqueId the document unique id whose Repository bean is desired     
+     * 
+     * @return the Repository instance without content, or null if there is none
+     * 
+     * @throws RepositoryException
+     */
+	public Repository getXdsRepositoryMetadata(String documentUniqueId) throws RepositoryException;
+	
+	/**
+     * Opens a stream on the content of the given document. The stream holds
+     * a database connection of its own until it is closed, so it can be read
+     * after the transaction which looked up the document has completed.
+     *
+     * @param documentUniqueId the document unique id whose content is desired     
+     * 
+     * @return the content stream, or null if the document does not exist
+     * 
+     * @throws RepositoryException
+     */
+	public InputStream openContentStream(String documentUniqueId) throws RepositoryException;
+	
+	/**
+     * Returns the Repositories associated with the given document unique ids,
+     * without their binary content, in a single query.
+     *
+     * @param documentUniqueIds the document unique ids whose Repository beans are desired     
+     * 
+     * @return the Repository instances found, without content
+     * 
+     * @throws RepositoryException
+     */
+	public List<Repository> getXdsRepositoryMetadata(List<String> documentUniqueIds) throws RepositoryException;
+	
 	 /**
      * Inserts an Repository object.
      *
@@ -54,6 +94,29 @@ public interface XdsRepositoryManagerDao {
      */
 	public void insert(Repository bean) throws RepositoryException;
 	
+	 /**
+     * Inserts an Repository object, streaming its content into the database
+     * instead of taking it from the binary content of the bean.
+     *
+     * @param bean the Reposiotry bean to be inserted, without content     
+     * @param content the document content
+     * @param length the length of the content in bytes
+     * 
+     * @throws RepositoryException
+     */
+	public void insert(Repository bean, InputStream content, long length) throws RepositoryException;
+	
+	 /**
+     * Inserts Repository objects in one JDBC batch, streaming their content 
+     * into the database. The size of each bean must be the length of its content.
+     *
+     * @param beans the Reposiotry beans to be inserted, without content     
+     * @param contents the document contents, in the order of the beans
+     * 
+     * @throws RepositoryException
+     */
+	public void insert(List<Repository> beans, List<InputStream> contents) throws RepositoryException;
+	
 	 /**
      * Deletes the repository associated with the given document unique id.
      *
@@ -65,4 +128,16 @@ public interface XdsRepositoryManagerDao {
      */
 	public void delete(String documentUniqueId) throws RepositoryException;
 	
+	 /**
+     * Deletes the repositories associated with the given document unique ids,
+     * without loading them.
+     *
+     * @param documentUniqueIds the document unique ids whose repository items are to be deleted
+     * 
+     * @return the number of repository items deleted
+     * 
+     * @throws RepositoryException
+     */
+	public int delete(List<String> documentUniqueIds) throws RepositoryException;
+	
 }
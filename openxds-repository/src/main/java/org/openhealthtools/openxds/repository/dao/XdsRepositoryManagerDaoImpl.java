@@ -20,9 +20,18 @@
 
 package org.openhealthtools.openxds.repository.dao;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 
+import javax.sql.DataSource;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.HibernateException;
@@ -30,7 +39,9 @@ import org.hibernate.Query;
 import org.hibernate.Session;
 import org.openhealthtools.openxds.repository.Repository;
 import org.openhealthtools.openxds.repository.api.RepositoryException;
+import org.springframework.jdbc.datasource.DataSourceUtils;
 import org.springframework.orm.hibernate3.HibernateCallback;
+import org.springframework.orm.hibernate3.SessionFactoryUtils;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 
 /**
@@ -43,6 +54,15 @@ public class XdsRepositoryManagerDaoImpl extends HibernateDaoSupport implements
 	
 	private static final Log log = LogFactory.getLog(XdsRepositoryManagerDaoImpl.class);
 
+	/**The content is written and read with plain JDBC, so that it can be streamed*/
+	private static final String INSERT_SQL = 
+		"insert into repository (documentuniqueid, mimetype, documentsize, hash, content) values (?, ?, ?, ?, ?)";
+	private static final String SELECT_CONTENT_SQL = 
+		"select content from repository where documentuniqueid = ?";
+
+	/**The maximal number of ids bound to a single in clause*/
+	private static final int MAX_IN_CLAUSE_SIZE = 500;
+
 	/* (non-Javadoc)
 	 * @see org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao#insert()
 	 */
@@ -55,6 +75,204 @@ public class XdsRepositoryManagerDaoImpl extends HibernateDaoSupport implements
 	        }
 		}
 	
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao#insert(Repository, InputStream, long)
+	 */
+	public void insert(final Repository bean, final InputStream content, final long length) throws RepositoryException{
+		try {
+			//The statement runs on the connection of the current Hibernate session
+			//so that it takes part in the same transaction.
+			this.getHibernateTemplate().execute(new HibernateCallback() {
+				public Object doInHibernate(Session session) throws HibernateException, SQLException {
+					PreparedStatement ps = session.connection().prepareStatement(INSERT_SQL);
+					try {
+						ps.setString(1, bean.getDocumentUniqueId());
+						ps.setString(2, bean.getMimeType());
+						ps.setInt(3, bean.getSize());
+						ps.setString(4, bean.getHash());
+						ps.setBinaryStream(5, content, (int)length);
+						ps.executeUpdate();
+					} finally {
+						ps.close();
+					}
+					return null;
+				}
+			});
+		} catch (Exception e){
+			log.error("Failed to insert Repository bean",e);
+			throw new RepositoryException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao#insert(List, List)
+	 */
+	public void insert(final List<Repository> beans, final List<InputStream> contents) throws RepositoryException{
+		if (beans.isEmpty())
+			return;
+		try {
+			this.getHibernateTemplate().execute(new HibernateCallback() {
+				public Object doInHibernate(Session session) throws HibernateException, SQLException {
+					PreparedStatement ps = session.connection().prepareStatement(INSERT_SQL);
+					try {
+						for (int i = 0; i < beans.size(); i++) {
+							Repository bean = beans.get(i);
+							ps.setString(1, bean.getDocumentUniqueId());
+							ps.setString(2, bean.getMimeType());
+							ps.setInt(3, bean.getSize());
+							ps.setString(4, bean.getHash());
+							ps.setBinaryStream(5, contents.get(i), bean.getSize());
+							ps.addBatch();
+						}
+						ps.executeBatch();
+					} finally {
+						ps.close();
+					}
+					return null;
+				}
+			});
+		} catch (Exception e){
+			log.error("Failed to insert Repository beans",e);
+			throw new RepositoryException(e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao#getXdsRepositoryMetadata(List)
+	 */
+	public List<Repository> getXdsRepositoryMetadata(final List<String> documentUniqueIds) throws RepositoryException{
+		List<Repository> beans = new ArrayList<Repository>();
+		if (documentUniqueIds == null || documentUniqueIds.isEmpty())
+			return beans;
+		List<?> rows = null;
+		try {
+			rows = this.getHibernateTemplate().executeFind(new HibernateCallback() {
+				public Object doInHibernate(Session session) throws HibernateException, SQLException {
+					List<Object> result = new ArrayList<Object>();
+					for (int i = 0; i < documentUniqueIds.size(); i += MAX_IN_CLAUSE_SIZE) {
+						List<String> ids = documentUniqueIds.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, documentUniqueIds.size()));
+						Query query = session.createQuery(
+								"select r.documentUniqueId, r.mimeType, r.size, r.hash from Repository r where r.documentUniqueId in (:ids)");
+						query.setParameterList("ids", ids);
+						result.addAll(query.list());
+					}
+					return result;
+				}
+			});
+		} catch (Exception e) {
+			log.error("Failed to retrieve Repository beans from repository",e);
+			throw new RepositoryException(e);
+		}
+		for (Object o : rows) {
+			Object[] row = (Object[]) o;
+			Repository bean = new Repository();
+			bean.setDocumentUniqueId((String) row[0]);
+			bean.setMimeType((String) row[1]);
+			if (row[2] != null)
+				bean.setSize(((Number) row[2]).intValue());
+			bean.setHash((String) row[3]);
+			beans.add(bean);
+		}
+		return beans;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao#getXdsRepositoryMetadata()
+	 */
+	public Repository getXdsRepositoryMetadata(String documentUniqueId) throws RepositoryException{
+		List<?> list = null;
+		String parameters[] = {documentUniqueId};
+		try{
+		list = this.getHibernateTemplate().find(
+				"select r.mimeType, r.size, r.hash from Repository r where r.documentUniqueId=?", parameters);
+		}catch (Exception e) {
+			log.error("Failed to retrieve Repository bean from repository",e);
+			throw new RepositoryException(e);
+		}
+		if (list.size() == 0)
+			return null;
+		Object[] row = (Object[]) list.get(0);
+		Repository xdsRepositoryBean = new Repository();
+		xdsRepositoryBean.setDocumentUniqueId(documentUniqueId);
+		xdsRepositoryBean.setMimeType((String) row[0]);
+		if (row[1] != null)
+			xdsRepositoryBean.setSize(((Number) row[1]).intValue());
+		xdsRepositoryBean.setHash((String) row[2]);
+		return xdsRepositoryBean;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao#openContentStream()
+	 */
+	public InputStream openContentStream(String documentUniqueId) throws RepositoryException{
+		DataSource dataSource = SessionFactoryUtils.getDataSource(getSessionFactory());
+		if (dataSource == null)
+			throw new RepositoryException("The repository session factory is not configured with a DataSource");
+		Connection connection = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			connection = DataSourceUtils.getConnection(dataSource);
+			ps = connection.prepareStatement(SELECT_CONTENT_SQL);
+			ps.setString(1, documentUniqueId);
+			rs = ps.executeQuery();
+			InputStream content = rs.next() ? rs.getBinaryStream(1) : null;
+			if (content == null) {
+				close(rs, ps, connection, dataSource);
+				return null;
+			}
+			return new ContentInputStream(content, rs, ps, connection, dataSource);
+		} catch (Exception e) {
+			close(rs, ps, connection, dataSource);
+			log.error("Failed to read the content of document " + documentUniqueId, e);
+			throw new RepositoryException(e);
+		}
+	}
+
+	private static void close(ResultSet rs, PreparedStatement ps, Connection connection, DataSource dataSource) {
+		try {
+			if (rs != null)
+				rs.close();
+			if (ps != null)
+				ps.close();
+		} catch (SQLException e) {
+			log.warn("Failed to close the content statement", e);
+		} finally {
+			DataSourceUtils.releaseConnection(connection, dataSource);
+		}
+	}
+
+	/**
+	 * A content stream which releases its database connection when it is closed.
+	 */
+	private static class ContentInputStream extends FilterInputStream {
+		private final ResultSet rs;
+		private final PreparedStatement ps;
+		private final Connection connection;
+		private final DataSource dataSource;
+		private boolean closed = false;
+
+		ContentInputStream(InputStream in, ResultSet rs, PreparedStatement ps, Connection connection, DataSource dataSource) {
+			super(in);
+			this.rs = rs;
+			this.ps = ps;
+			this.connection = connection;
+			this.dataSource = dataSource;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				XdsRepositoryManagerDaoImpl.close(rs, ps, connection, dataSource);
+			}
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao#getXdsRepositoryBean()
 	 */
@@ -81,13 +299,40 @@ public class XdsRepositoryManagerDaoImpl extends HibernateDaoSupport implements
 	public void delete(final String documentUniqueId) throws RepositoryException{
 		
 		try {
-			Repository repository = getXdsRepositoryBean(documentUniqueId);
-			if(repository != null)
-			this.getHibernateTemplate().delete(repository);			
+			//Deleted by id, so that the content is not loaded first
+			this.getHibernateTemplate().bulkUpdate(
+					"delete from Repository r where r.documentUniqueId=?", documentUniqueId);
 		} catch (Exception e) {
 			log.error("Failed to delete Repository bean in repository",e);
 			throw new RepositoryException(e);
 		}
 		
 	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao#delete(List)
+	 */
+	public int delete(final List<String> documentUniqueIds) throws RepositoryException{
+		if (documentUniqueIds == null || documentUniqueIds.isEmpty())
+			return 0;
+		try {
+			Integer deleted = (Integer) this.getHibernateTemplate().execute(new HibernateCallback() {
+				public Object doInHibernate(Session session) throws HibernateException, SQLException {
+					int count = 0;
+					//Some databases limit the number of values in an in clause
+					for (int i = 0; i < documentUniqueIds.size(); i += MAX_IN_CLAUSE_SIZE) {
+						List<String> ids = documentUniqueIds.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, documentUniqueIds.size()));
+						Query query = session.createQuery("delete from Repository r where r.documentUniqueId in (:ids)");
+						query.setParameterList("ids", ids);
+						count += query.executeUpdate();
+					}
+					return new Integer(count);
+				}
+			});
+			return deleted.intValue();
+		} catch (Exception e) {
+			log.error("Failed to delete Repository beans in repository",e);
+			throw new RepositoryException(e);
+		}
+	}
 }
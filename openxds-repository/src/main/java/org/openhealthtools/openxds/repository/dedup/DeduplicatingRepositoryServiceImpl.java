@@ -0,0 +1,739 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository.dedup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openhealthtools.openxds.repository.ContentSpool;
+import org.openhealthtools.openxds.repository.DigestingInputStream;
+import org.openhealthtools.openxds.repository.Utility;
+import org.openhealthtools.openxds.repository.XdsRepositoryItemImpl;
+import org.openhealthtools.openxds.repository.api.RepositoryException;
+import org.openhealthtools.openxds.repository.api.RepositoryRequestContext;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryItem;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryService;
+import org.openhealthtools.openxds.repository.filesystem.FileSystemRepositoryServiceImpl;
+
+/**
+ * This class provides a file system based repository manager implementation
+ * which stores each distinct document content only once. It is meant for
+ * repositories receiving many byte-identical documents under different
+ * document ids, such as re-sent reports or the same attachment submitted
+ * for several encounters.
+ * <p>
+ * A content is stored in the <code>content</code> folder under the name of
+ * its SHA1 hash, which is the hash computed while the document is written and
+ * reported in the metadata of the submission. Each document id is mapped to
+ * the hash of its content by a small reference file in the
+ * <code>references</code> folder. The references are counted in memory, and
+ * a content is removed once the last document referring to it is deleted.
+ * The counts are rebuilt from the reference files when the repository is
+ * opened, and contents left without a reference by an interrupted insert or
+ * delete are removed at that time.
+ * <p>
+ * A document is spooled, in memory up to <code>memoryThreshold</code> bytes
+ * and otherwise to the <code>tmp</code> folder, while its hash is computed.
+ * The spooled content is discarded if the same content is already stored,
+ * and moved into the <code>content</code> folder otherwise. The files are
+ * written outside of the repository lock, which only guards the reference
+ * counts and the index.
+ * <p>
+ * The content file of a retrieved document is only opened when the document
+ * is written out, so that an item which is never read, such as one of a failed
+ * retrieval, holds no open file. A document deleted between its lookup and
+ * its write-out can no longer be read.
+ */
+public class DeduplicatingRepositoryServiceImpl implements XdsRepositoryService {
+	private static final Log log = LogFactory.getLog(DeduplicatingRepositoryServiceImpl.class);
+
+	private static final String CONTENT_FOLDER = "content";
+	private static final String REFERENCE_FOLDER = "references";
+	private static final String TEMP_FOLDER = "tmp";
+	private static final String REFERENCE_EXT = ".ref";
+	private static final String TEMP_EXT = ".tmp";
+
+	/**The repository root folder*/
+	private String repositoryRoot = null;
+
+	/**The repository unique Id that represents this Repository.*/
+	private String repositoryUniqueId = null;
+
+	/**The number of hash-prefix folder levels of the reference files*/
+	private int directoryLevels = 2;
+
+	/**The size up to which an inserted document is spooled in memory*/
+	private int memoryThreshold = ContentSpool.DEFAULT_MEMORY_THRESHOLD;
+
+	/**Whether inserted documents are forced to the disk before insert returns*/
+	private boolean syncOnWrite = false;
+
+	/**The references by document id*/
+	private final Map<String, Reference> index = new ConcurrentHashMap<String, Reference>();
+
+	/**The stored contents by hash, guarded by lock*/
+	private final Map<String, Content> contents = new HashMap<String, Content>();
+
+	/**The document ids being inserted, guarded by lock*/
+	private final Set<String> pending = new HashSet<String>();
+
+	/**Serializes the changes to the stored contents and their references*/
+	private final Object lock = new Object();
+
+	private long logicalSize = 0;
+	private long storedSize = 0;
+	private final AtomicLong deduplicated = new AtomicLong();
+	private volatile boolean opened = false;
+
+	/**
+	 * The content a document id refers to.
+	 */
+	private static class Reference {
+		final String hash;
+		final long size;
+		final String mimeType;
+
+		Reference(String hash, long size, String mimeType) {
+			this.hash = hash;
+			this.size = size;
+			this.mimeType = mimeType;
+		}
+	}
+
+	/**
+	 * A stored content. The references are guarded by the repository lock,
+	 * while the content file is created under the lock of the content itself,
+	 * by the first insert which finds it missing.
+	 */
+	private static class Content {
+		final long size;
+		int references = 0;
+		boolean stored;
+
+		Content(long size, boolean stored) {
+			this.size = size;
+			this.stored = stored;
+		}
+	}
+
+	/**
+	 * Gets the repository unique Id that represents this repository.
+	 *
+	 * @return the repository unique Id
+	 */
+	public String getRepositoryUniqueId() {
+		return this.repositoryUniqueId;
+	}
+
+	/**
+	 * Sets the repository unique id that represents this repository.
+	 *
+	 * @param repositoryUniqueId the repository unique Id to be set.
+	 */
+	public void setRepositoryUniqueId(String repositoryUniqueId) {
+		this.repositoryUniqueId = repositoryUniqueId;
+	}
+
+	/**
+	 * Gets the root folder of this repository.
+	 *
+	 * @return repositoryRoot folder
+	 */
+	public String getRepositoryRoot() {
+		return repositoryRoot;
+	}
+
+	/**
+	 * Sets the root folder of this repository.
+	 *
+	 * @param repositoryRoot the root folder
+	 */
+	public void setRepositoryRoot(String repositoryRoot) {
+		this.repositoryRoot = repositoryRoot;
+	}
+
+	/**
+	 * Gets the number of hash-prefix folder levels of the reference files.
+	 *
+	 * @return the number of folder levels
+	 */
+	public int getDirectoryLevels() {
+		return directoryLevels;
+	}
+
+	/**
+	 * Sets the number of hash-prefix folder levels of the reference files,
+	 * as for {@link FileSystemRepositoryServiceImpl#setDirectoryLevels(int)}.
+	 * The contents are always stored in two levels of folders named after
+	 * the leading digits of their hash.
+	 *
+	 * @param directoryLevels the number of folder levels
+	 */
+	public void setDirectoryLevels(int directoryLevels) {
+		if (directoryLevels < 0 || directoryLevels > FileSystemRepositoryServiceImpl.MAX_DIRECTORY_LEVELS)
+			throw new IllegalArgumentException("directoryLevels must be between 0 and " + FileSystemRepositoryServiceImpl.MAX_DIRECTORY_LEVELS);
+		this.directoryLevels = directoryLevels;
+	}
+
+	/**
+	 * Gets the size up to which an inserted document is spooled in memory.
+	 *
+	 * @return the size in bytes
+	 */
+	public int getMemoryThreshold() {
+		return memoryThreshold;
+	}
+
+	/**
+	 * Sets the size up to which an inserted document is spooled in memory
+	 * while its hash is computed. Larger documents are spooled to the
+	 * <code>tmp</code> folder, from which they are renamed into place.
+	 *
+	 * @param memoryThreshold the size in bytes
+	 */
+	public void setMemoryThreshold(int memoryThreshold) {
+		this.memoryThreshold = memoryThreshold;
+	}
+
+	/**
+	 * Whether inserted documents are forced to the disk before insert returns.
+	 *
+	 * @return true if inserts are synced
+	 */
+	public boolean isSyncOnWrite() {
+		return syncOnWrite;
+	}
+
+	/**
+	 * Sets whether inserted documents, both their content and their
+	 * reference file, are forced to the disk before insert returns.
+	 *
+	 * @param syncOnWrite true to sync inserts
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
+	 */
+	public boolean insert(XdsRepositoryItem item, RepositoryRequestContext context)
+			throws RepositoryException {
+		return !insert(Collections.singletonList(item), context).isEmpty();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
+	 */
+	public List<String> insert(List<XdsRepositoryItem> items,
+			RepositoryRequestContext context) throws RepositoryException {
+		List<String> insertedIds = new ArrayList<String>();
+		if (items == null || items.isEmpty())
+			return insertedIds;
+		open();
+		List<String> stored = new ArrayList<String>(items.size());
+		try {
+			for (XdsRepositoryItem item : items) {
+				stored.add(store(item));
+				insertedIds.add(item.getDocumentUniqueId());
+			}
+		} catch (RepositoryException e) {
+			//Either all the documents are stored or none of them
+			for (String id : stored) {
+				try {
+					remove(id);
+				} catch (RepositoryException re) {
+					log.warn("Failed to remove document " + id, re);
+				}
+			}
+			throw e;
+		}
+		return insertedIds;
+	}
+
+	/**
+	 * Stores a document, adding a reference to its content if the same
+	 * content is already stored.
+	 *
+	 * @return the document id, with "urn:uuid:" stripped off
+	 */
+	private String store(XdsRepositoryItem item) throws RepositoryException {
+		String id = item.getDocumentUniqueId();
+		if (id == null)
+			throw new RepositoryException("Invalid document");
+		// Strip off the "urn:uuid:"
+		id = Utility.getInstance().stripId(id);
+		if (index.containsKey(id))
+			throw duplicate(id);
+
+		ContentSpool spool = new ContentSpool(memoryThreshold, new File(repositoryRoot, TEMP_FOLDER));
+		Reference reference = null;
+		try {
+			DigestingInputStream dis = new DigestingInputStream(item.getDataHandler().getInputStream());
+			spool.spool(dis);
+			String mimeType = item.getDataHandler().getContentType();
+			reference = new Reference(dis.getHash(), dis.getSize(), mimeType == null ? "" : mimeType);
+
+			//Reserve the document id, and a reference to the content so that
+			//it is not removed while it is being written
+			Content content = null;
+			synchronized (lock) {
+				if (index.containsKey(id) || !pending.add(id))
+					throw duplicate(id);
+				content = contents.get(reference.hash);
+				if (content == null) {
+					content = new Content(reference.size, false);
+					contents.put(reference.hash, content);
+					storedSize += content.size;
+				}
+				content.references++;
+			}
+
+			boolean added = false;
+			synchronized (content) {
+				if (!content.stored) {
+					File file = getContentFile(reference.hash);
+					file.getParentFile().mkdirs();
+					spool.moveTo(file);
+					if (syncOnWrite)
+						sync(file);
+					content.stored = true;
+					added = true;
+				}
+			}
+			writeReference(id, reference);
+
+			synchronized (lock) {
+				pending.remove(id);
+				index.put(id, reference);
+				logicalSize += reference.size;
+			}
+			if (!added)
+				deduplicated.incrementAndGet();
+			item.setSize((int)reference.size);
+			item.setHash(reference.hash);
+			return id;
+		} catch (IOException e) {
+			if (reference != null) {
+				synchronized (lock) {
+					if (pending.remove(id))
+						release(reference.hash);
+				}
+			}
+			throw new RepositoryException("Failed to write repository item " + id, e);
+		} finally {
+			spool.dispose();
+		}
+	}
+
+	private RepositoryException duplicate(String id) {
+		String errmsg = "RepositoryItem already exist, id=" + id;
+		log.error(errmsg);
+		return new RepositoryException(errmsg);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#getRepositoryItem()
+	 */
+	public XdsRepositoryItem getRepositoryItem(String documentUniqueId, RepositoryRequestContext context)
+			throws RepositoryException {
+		open();
+		// Strip off the "urn:uuid:"
+		String id = Utility.getInstance().stripId(documentUniqueId);
+		XdsRepositoryItem repositoryItem = findRepositoryItem(id);
+		if (repositoryItem == null) {
+			String errmsg = "Cannot find the repository document with document id:" + id;
+			log.error(errmsg);
+			throw new RepositoryException(errmsg);
+		}
+		return repositoryItem;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#getRepositoryItem()
+	 */
+	public List<XdsRepositoryItem> getRepositoryItems(
+			List<String> documentUniqueIds, RepositoryRequestContext context) throws RepositoryException {
+		List<XdsRepositoryItem> repositoryItems = new ArrayList<XdsRepositoryItem>();
+		if (documentUniqueIds == null || documentUniqueIds.isEmpty())
+			return repositoryItems;
+		open();
+		for (String documentUniqueId : documentUniqueIds) {
+			repositoryItems.add(findRepositoryItem(Utility.getInstance().stripId(documentUniqueId)));
+		}
+		return repositoryItems;
+	}
+
+	/**
+	 * Looks up a repository item. The content file is opened and read when
+	 * the item is written out.
+	 *
+	 * @param id the document id, with "urn:uuid:" stripped off
+	 * @return the repository item, or null if the document does not exist
+	 */
+	private XdsRepositoryItem findRepositoryItem(String id) throws RepositoryException {
+		Reference reference = index.get(id);
+		if (reference == null)
+			return null;
+		File file = getContentFile(reference.hash);
+		if (!file.exists()) {
+			//The document may have been deleted since it was looked up
+			Reference current = index.get(id);
+			if (current == null)
+				return null;
+			if (current != reference)
+				return findRepositoryItem(id);
+			throw new RepositoryException("The content of document " + id + " is missing");
+		}
+		DataHandler contentDataHandler = new DataHandler(
+				new ContentDataSource(file, reference.mimeType, id));
+		XdsRepositoryItemImpl repositoryItem = new XdsRepositoryItemImpl(id, contentDataHandler);
+		repositoryItem.setMimeType(reference.mimeType);
+		repositoryItem.setSize((int)reference.size);
+		repositoryItem.setHash(reference.hash);
+		return repositoryItem;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#delete()
+	 */
+	public void delete(String documentUniqueId, RepositoryRequestContext context) throws RepositoryException {
+		open();
+		String id = Utility.getInstance().stripId(documentUniqueId);
+		if (!remove(id)) {
+			String errmsg = "The repository does not contain a document with document id:" + documentUniqueId;
+			log.error(errmsg);
+			throw new RepositoryException(errmsg);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#delete()
+	 */
+	public void delete(List<String> ids, RepositoryRequestContext context) throws RepositoryException {
+		if (ids == null)
+			return;
+		for (String id : ids) {
+			delete(id, context);
+		}
+	}
+
+	/**
+	 * Removes the reference of a document, and its content if no other
+	 * document refers to it.
+	 *
+	 * @param id the document id, with "urn:uuid:" stripped off
+	 * @return false if the document does not exist
+	 */
+	private boolean remove(String id) throws RepositoryException {
+		synchronized (lock) {
+			Reference reference = index.get(id);
+			if (reference == null)
+				return false;
+			File file = getReferenceFile(id);
+			if (!file.delete() && file.exists())
+				throw new RepositoryException("Failed to remove reference file " + file.getPath());
+			index.remove(id);
+			logicalSize -= reference.size;
+			release(reference.hash);
+			return true;
+		}
+	}
+
+	/**
+	 * Drops a reference to a content, removing the content with its last
+	 * reference. A content file which cannot be removed here is removed when
+	 * the repository is opened again. The caller must hold the lock.
+	 */
+	private void release(String hash) {
+		Content content = contents.get(hash);
+		if (content == null || --content.references > 0)
+			return;
+		contents.remove(hash);
+		storedSize -= content.size;
+		//No insert can be writing the file, since it would hold a reference
+		File file = getContentFile(hash);
+		if (content.stored && !file.delete())
+			log.warn("Failed to remove content file " + file.getPath());
+	}
+
+	/**
+	 * Opens the repository, counting the references of the stored contents
+	 * from the reference files found in the root folder.
+	 */
+	private void open() throws RepositoryException {
+		if (opened)
+			return;
+		synchronized (lock) {
+			if (opened)
+				return;
+			if (repositoryRoot == null)
+				throw new RepositoryException("Configuration Error: repositoryRoot is not set");
+			File root = new File(repositoryRoot);
+			File contentFolder = new File(root, CONTENT_FOLDER);
+			File referenceFolder = new File(root, REFERENCE_FOLDER);
+			File tempFolder = new File(root, TEMP_FOLDER);
+			for (File folder : new File[] {contentFolder, referenceFolder, tempFolder}) {
+				if (!folder.exists() && !folder.mkdirs())
+					throw new RepositoryException("Cannot create repository folder " + folder.getPath());
+			}
+			File[] spooled = tempFolder.listFiles();
+			if (spooled != null) {
+				for (File file : spooled) {
+					file.delete();
+				}
+			}
+			try {
+				loadReferences(referenceFolder);
+			} catch (IOException e) {
+				index.clear();
+				contents.clear();
+				logicalSize = 0;
+				storedSize = 0;
+				throw new RepositoryException("Failed to open repository " + root.getPath(), e);
+			}
+			removeUnreferencedContents(contentFolder);
+			opened = true;
+			log.info("Opened repository " + root.getPath() + " with " + index.size() + " documents sharing "
+					+ contents.size() + " contents");
+		}
+	}
+
+	private void loadReferences(File folder) throws IOException {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isDirectory()) {
+				loadReferences(file);
+			} else if (name.endsWith(TEMP_EXT)) {
+				//An interrupted insert
+				file.delete();
+			} else if (name.endsWith(REFERENCE_EXT)) {
+				String id = name.substring(0, name.length() - REFERENCE_EXT.length());
+				Reference reference = readReference(file);
+				if (!getContentFile(reference.hash).exists()) {
+					log.error("The content of document " + id + " is missing, hash=" + reference.hash);
+					continue;
+				}
+				Content content = contents.get(reference.hash);
+				if (content == null) {
+					content = new Content(reference.size, true);
+					contents.put(reference.hash, content);
+					storedSize += content.size;
+				}
+				content.references++;
+				index.put(id, reference);
+				logicalSize += reference.size;
+			}
+		}
+	}
+
+	private void removeUnreferencedContents(File folder) {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				removeUnreferencedContents(file);
+			} else if (!contents.containsKey(file.getName())) {
+				log.info("Removing unreferenced content file " + file.getPath());
+				if (!file.delete())
+					log.warn("Failed to remove content file " + file.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Gets the file of a content, in two levels of folders named after the
+	 * leading digits of its hash.
+	 */
+	private File getContentFile(String hash) {
+		File dir = new File(new File(new File(repositoryRoot, CONTENT_FOLDER), hash.substring(0, 2)), hash.substring(2, 4));
+		return new File(dir, hash);
+	}
+
+	private File getReferenceFile(String id) {
+		File dir = FileSystemRepositoryServiceImpl.getItemDirectory(new File(repositoryRoot, REFERENCE_FOLDER), id, directoryLevels);
+		return new File(dir, id + REFERENCE_EXT);
+	}
+
+	/**
+	 * Writes the reference file of a document, as a single line holding the
+	 * hash, the size and the mime type of its content. The file is written
+	 * under a temporary name and then renamed, so that it is never found
+	 * partially written.
+	 */
+	private void writeReference(String id, Reference reference) throws IOException {
+		File file = getReferenceFile(id);
+		File dir = file.getParentFile();
+		if (!dir.exists())
+			dir.mkdirs();
+		File temp = new File(dir, id + TEMP_EXT);
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			String line = reference.hash + " " + reference.size + " " + reference.mimeType + "\n";
+			fos.write(line.getBytes("UTF-8"));
+			if (syncOnWrite)
+				fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Failed to create reference file " + file.getPath());
+		}
+	}
+
+	private Reference readReference(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			String[] fields = (line == null) ? new String[0] : line.split(" ", 3);
+			if (fields.length != 3)
+				throw new IOException("Invalid reference file " + file.getPath());
+			return new Reference(fields[0], Long.parseLong(fields[1]), fields[2]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid reference file " + file.getPath());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Forces the content of a file to the disk.
+	 */
+	private void sync(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the number of stored documents
+	 */
+	public int getDocumentCount() {
+		return index.size();
+	}
+
+	/**
+	 * @return the number of distinct contents stored
+	 */
+	public int getContentCount() {
+		synchronized (lock) {
+			return contents.size();
+		}
+	}
+
+	/**
+	 * @return the number of inserted documents whose content was already stored
+	 */
+	public long getDeduplicatedCount() {
+		return deduplicated.get();
+	}
+
+	/**
+	 * @return the total size of the stored documents in bytes
+	 */
+	public long getLogicalSize() {
+		synchronized (lock) {
+			return logicalSize;
+		}
+	}
+
+	/**
+	 * @return the total size of the stored contents in bytes
+	 */
+	public long getStoredSize() {
+		synchronized (lock) {
+			return storedSize;
+		}
+	}
+
+	/**
+	 * Gets the deduplication ratio, that is the total size of the documents
+	 * divided by the size they take on the disk. A ratio of 2 means that the
+	 * documents take half the space they would take without deduplication.
+	 *
+	 * @return the deduplication ratio, 1 if no document is stored
+	 */
+	public double getDeduplicationRatio() {
+		synchronized (lock) {
+			return (storedSize == 0) ? 1.0 : (double)logicalSize / storedSize;
+		}
+	}
+
+	/**
+	 * A file <code>DataSource</code> with the mime type of the document,
+	 * rather than the type guessed from the name of the content file. Each
+	 * stream opens the content file anew.
+	 */
+	private static class ContentDataSource extends FileDataSource {
+		private final String contentType;
+		private final String documentUniqueId;
+
+		ContentDataSource(File file, String contentType, String documentUniqueId) {
+			super(file);
+			this.contentType = contentType;
+			this.documentUniqueId = documentUniqueId;
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			try {
+				return super.getInputStream();
+			} catch (FileNotFoundException e) {
+				throw new FileNotFoundException("The content of document " + documentUniqueId 
+						+ " has been deleted since it was looked up");
+			}
+		}
+	}
+}
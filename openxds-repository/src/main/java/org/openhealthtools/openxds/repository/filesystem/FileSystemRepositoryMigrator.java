@@ -0,0 +1,128 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository.filesystem;
+
+import java.io.File;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * This class moves the documents of a flat file system repository into the
+ * hash-prefix folders used by {@link FileSystemRepositoryServiceImpl}.
+ * <p>
+ * The migration can run while the repository is online: each document is
+ * moved with a single rename within the same file system, and the repository
+ * keeps looking up documents in the root folder as long as its legacy
+ * <code>flatLayoutFallback</code> mode is set. Once the migration has 
+ * completed, <code>flatLayoutFallback</code> should be turned off.
+ * <p>
+ * Usage: <code>FileSystemRepositoryMigrator &lt;repositoryRoot&gt; [directoryLevels]</code>
+ */
+public class FileSystemRepositoryMigrator {
+	private static final Log log = LogFactory.getLog(FileSystemRepositoryMigrator.class);
+
+	private final File root;
+	private final int directoryLevels;
+	private int moved = 0;
+	private int skipped = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param repositoryRoot the repository root folder
+	 * @param directoryLevels the number of hash-prefix folder levels, which must
+	 * 		match the <code>directoryLevels</code> of the repository
+	 */
+	public FileSystemRepositoryMigrator(String repositoryRoot, int directoryLevels) {
+		if (directoryLevels < 1 || directoryLevels > FileSystemRepositoryServiceImpl.MAX_DIRECTORY_LEVELS)
+			throw new IllegalArgumentException("directoryLevels must be between 1 and " + FileSystemRepositoryServiceImpl.MAX_DIRECTORY_LEVELS);
+		this.root = new File(repositoryRoot);
+		this.directoryLevels = directoryLevels;
+	}
+
+	/**
+	 * Moves every document found directly in the root folder to its
+	 * hash-prefix folder.
+	 *
+	 * @return the number of documents moved
+	 */
+	public int migrate() {
+		String[] names = root.list();
+		if (names == null)
+			throw new IllegalArgumentException("Repository root folder " + root.getPath() + " cannot be read");
+		moved = 0;
+		skipped = 0;
+
+		for (String name : names) {
+			File file = new File(root, name);
+			int dot = name.lastIndexOf('.');
+			if (dot <= 0 || !file.isFile())
+				continue;
+			migrate(file, name.substring(0, dot));
+		}
+		log.info("Repository migration completed: " + moved + " documents moved, " + skipped + " skipped");
+		return moved;
+	}
+
+	private void migrate(File file, String id) {
+		File dir = FileSystemRepositoryServiceImpl.getItemDirectory(root, id, directoryLevels);
+		if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+			log.error("Cannot create folder " + dir.getPath() + ", " + file.getName() + " not moved");
+			skipped++;
+			return;
+		}
+		File target = new File(dir, file.getName());
+		if (target.exists()) {
+			log.warn("Document " + target.getPath() + " already exists, " + file.getName() + " not moved");
+			skipped++;
+			return;
+		}
+		if (file.renameTo(target)) {
+			moved++;
+			if (log.isDebugEnabled())
+				log.debug("Moved " + file.getName() + " to " + target.getPath());
+		} else {
+			log.error("Failed to move " + file.getPath() + " to " + target.getPath());
+			skipped++;
+		}
+	}
+
+	/**
+	 * Gets the number of documents which could not be moved by the last migration.
+	 *
+	 * @return the number of documents skipped
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: FileSystemRepositoryMigrator <repositoryRoot> [directoryLevels]");
+			System.exit(1);
+		}
+		int levels = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+		FileSystemRepositoryMigrator migrator = new FileSystemRepositoryMigrator(args[0], levels);
+		int moved = migrator.migrate();
+		System.out.println(moved + " documents moved, " + migrator.getSkipped() + " skipped");
+	}
+}
@@ -20,9 +20,24 @@
 
 package org.openhealthtools.openxds.repository.filesystem;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -34,6 +49,7 @@ import org.apache.commons.logging.LogFactory;
 import org.openhealthtools.openexchange.actorconfig.net.CodeSet;
 import org.openhealthtools.openexchange.actorconfig.net.IConnectionDescription;
 import org.openhealthtools.openexchange.utils.Pair;
+import org.openhealthtools.openxds.repository.DigestingInputStream;
 import org.openhealthtools.openxds.repository.Utility;
 import org.openhealthtools.openxds.repository.XdsRepositoryItemImpl;
 import org.openhealthtools.openxds.repository.api.RepositoryException;
@@ -53,12 +69,43 @@ public class FileSystemRepositoryServiceImpl implements XdsRepositoryService {
 	private static final Log log = LogFactory
 			.getLog(FileSystemRepositoryServiceImpl.class);
 	
+	/**Each level adds two hex digits of the MD5 of the document id*/
+	public static final int MAX_DIRECTORY_LEVELS = 4;
+	
 	/**The repository root folder*/
 	private String repositoryRoot = null;
     
 	/**The repository unique Id that represents this Repository.*/
 	private String repositoryUniqueId = null;
 	
+	/**The number of hash-prefix folder levels under the root folder, 0 for the flat layout*/
+	private int directoryLevels = 2;
+	
+	/**Whether a document missing from its hash-prefix folder is also looked up in the root folder*/
+	private boolean flatLayoutFallback = false;
+	
+	/**Whether inserted documents are forced to the disk before insert returns*/
+	private boolean syncOnWrite = false;
+	
+	/**File.toPath and FileChannel.open with the READ option, or null before Java 7*/
+	private static Method toPath = null;
+	private static Method openChannel = null;
+	private static Object readOption = null;
+	static {
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+			Object options = Array.newInstance(optionClass, 1);
+			Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+			toPath = File.class.getMethod("toPath");
+			openChannel = FileChannel.class.getMethod("open", pathClass, options.getClass());
+			readOption = options;
+		} catch (Exception e) {
+			log.info("Repository folders are not synced, since this runtime cannot open a folder");
+			openChannel = null;
+		}
+	}
+	
 	/**
 	 * Gets the repository unique Id that represents this repository.
 	 * 
@@ -94,16 +141,130 @@ public class FileSystemRepositoryServiceImpl implements XdsRepositoryService {
 	public void setRepositoryRoot(String repositoryRoot) {
 		this.repositoryRoot = repositoryRoot;
 	}
+
+	/**
+	 * Gets the number of hash-prefix folder levels. 
+	 * 
+	 * @return the number of folder levels, 0 for the flat layout
+	 */
+	public int getDirectoryLevels() {
+		return directoryLevels;
+	}
+
+	/**
+	 * Sets the number of hash-prefix folder levels. Each level fans out
+	 * into 256 folders, so the default of 2 levels stores a document at 
+	 * <code>ab/cd/&lt;id&gt;.&lt;ext&gt;</code> under the root folder. 0 keeps 
+	 * every document directly in the root folder.
+	 * 
+	 * @param directoryLevels the number of folder levels
+	 */
+	public void setDirectoryLevels(int directoryLevels) {
+		if (directoryLevels < 0 || directoryLevels > MAX_DIRECTORY_LEVELS)
+			throw new IllegalArgumentException("directoryLevels must be between 0 and " + MAX_DIRECTORY_LEVELS);
+		this.directoryLevels = directoryLevels;
+	}
+
+	/**
+	 * Whether documents missing from their hash-prefix folder are also 
+	 * looked up in the root folder.
+	 * 
+	 * @return true if the flat layout is looked up as well
+	 */
+	public boolean isFlatLayoutFallback() {
+		return flatLayoutFallback;
+	}
+
+	/**
+	 * Sets whether documents missing from their hash-prefix folder are also 
+	 * looked up in the root folder. This legacy mode is only needed for a 
+	 * repository stored flat by an earlier release, while it is being migrated 
+	 * by {@link FileSystemRepositoryMigrator}, and should be turned off once 
+	 * the migration has completed. Off by default.
+	 * 
+	 * @param flatLayoutFallback true to look up the flat layout as well
+	 */
+	public void setFlatLayoutFallback(boolean flatLayoutFallback) {
+		this.flatLayoutFallback = flatLayoutFallback;
+	}
+
+	/**
+	 * Whether inserted documents are forced to the disk before insert returns.
+	 * 
+	 * @return true if inserts are synced
+	 */
+	public boolean isSyncOnWrite() {
+		return syncOnWrite;
+	}
+
+	/**
+	 * Sets whether inserted documents are forced to the disk before insert 
+	 * returns. When a list of documents is inserted, all of them are written 
+	 * first and then synced together, followed by each folder they were 
+	 * written to, so that their directory entries are durable as well.
+	 * 
+	 * @param syncOnWrite true to sync inserts
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
 	
 	/* (non-Javadoc)
 	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
 	 */
-	public void insert(XdsRepositoryItem item, RepositoryRequestContext context)
+	public boolean insert(XdsRepositoryItem item, RepositoryRequestContext context)
 			throws RepositoryException {
+		File itemFile = store(item, getMimeTypeCodeSet(context));
+		if (syncOnWrite)
+			sync(Collections.singletonList(itemFile));
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
+	 */
+	public List<String> insert(List<XdsRepositoryItem> items,
+			RepositoryRequestContext context) throws RepositoryException {
+		List<String> stored = new ArrayList<String>();
+		if (items == null || items.isEmpty())
+			return stored;
+		CodeSet mimeTypeCodeSet = getMimeTypeCodeSet(context);
+		List<File> itemFiles = new ArrayList<File>(items.size());
+		try {
+			for (XdsRepositoryItem item : items) {
+				itemFiles.add(store(item, mimeTypeCodeSet));
+				stored.add(item.getDocumentUniqueId());
+			}
+			//The files are synced together once all of them have been written
+			if (syncOnWrite)
+				sync(itemFiles);
+		} catch (RepositoryException e) {
+			//Either all the documents are stored or none of them
+			for (File itemFile : itemFiles) {
+				if (!itemFile.delete())
+					log.warn("Failed to remove repository file " + itemFile.getPath());
+			}
+			throw e;
+		}
+		return stored;
+	}
+
+	private CodeSet getMimeTypeCodeSet(RepositoryRequestContext context) throws RepositoryException {
 		IConnectionDescription connection = context.getConnection();
+		if (connection == null) {
+			throw new RepositoryException("Missing required ConnectionDescription in RepositoryRequestContext");
+		}
 		CodeSet mimeTypeCodeSet = connection.getCodeSet("mimeType");		
 		if (mimeTypeCodeSet == null) throw new RepositoryException("Configuration Error: Cannot find mime type table");
-		
+		return mimeTypeCodeSet;
+	}
+
+	/**
+	 * Writes a repository item to its file.
+	 * 
+	 * @return the file written
+	 */
+	private File store(XdsRepositoryItem item, CodeSet mimeTypeCodeSet) throws RepositoryException {
 		try {
 			String id = item.getDocumentUniqueId();
     		String mimeTypeCode = item.getDataHandler().getContentType();
@@ -120,44 +281,85 @@ public class FileSystemRepositoryServiceImpl implements XdsRepositoryService {
 
 			File itemFile = new File(itemPath);
 
-			if (itemFile.exists()) {
+			if (findItemFile(id, mimeTypeCodeSet) != null) {
+				String errmsg = "RepositoryItem already exist, id=" + id;
+				log.error(errmsg);
+				throw new RepositoryException(errmsg);
+			}
+			//Another insert of the same document may have created the file since the lookup
+			if (!itemFile.createNewFile()) {
 				String errmsg = "RepositoryItem already exist, id=" + id;
 				log.error(errmsg);
 				throw new RepositoryException(errmsg);
 			}
-			itemFile.createNewFile();
-			//Writing out the RepositoryItem itself			
-			FileOutputStream fos = new FileOutputStream(itemPath);
-			item.getDataHandler().writeTo(fos);
-			fos.flush();
-			fos.close();
+			//Writing out the RepositoryItem itself, computing its size and hash
+			//in the same pass so that the content is read only once.
+			writeItem(item, itemFile);
+			return itemFile;
 
+		} catch (RepositoryException e) {
+			throw e;
 		} catch (Exception e) {
 			log.error(e);
 			throw new RepositoryException(e);
 		}
-
 	}
 
-	/* (non-Javadoc)
-	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
+	/**
+	 * Forces a batch of repository files to the disk, and then each folder 
+	 * holding them, up to the root folder, once. A folder has to be synced 
+	 * for a new file, or a new hash-prefix folder, to survive a crash.
 	 */
-	public void insert(List<XdsRepositoryItem> items,
-			RepositoryRequestContext context) throws RepositoryException {
-
-		try {
-			if (items != null) {
-				Iterator<XdsRepositoryItem> item = items.iterator();
-				while (item.hasNext()) {
-					XdsRepositoryItem repositoryItem = item.next();
-					insert(repositoryItem, context);
-				}
+	private void sync(List<File> itemFiles) throws RepositoryException {
+		File root = new File(repositoryRoot).getAbsoluteFile();
+		Set<File> dirs = new LinkedHashSet<File>();
+		for (File itemFile : itemFiles) {
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(itemFile, "rw");
+				raf.getFD().sync();
+			} catch (IOException e) {
+				throw new RepositoryException("Failed to sync repository file " + itemFile.getName(), e);
+			} finally {
+				closeQuietly(raf);
 			}
-		} catch (Exception e) {
-			log.error(e);
-			throw new RepositoryException(e);
+			File dir = itemFile.getAbsoluteFile().getParentFile();
+			while (dir != null && dirs.add(dir) && !dir.equals(root)) {
+				dir = dir.getParentFile();
+			}
+		}
+		for (File dir : dirs) {
+			syncDirectory(dir);
 		}
+	}
 
+	/**
+	 * Forces the entries of a folder to the disk. A folder can only be opened 
+	 * for this by the NIO file API of Java 7, which is looked up at run time; 
+	 * on older runtimes, and on platforms where a folder cannot be opened, 
+	 * the folders are not synced.
+	 */
+	private void syncDirectory(File dir) throws RepositoryException {
+		if (openChannel == null)
+			return;
+		FileChannel channel = null;
+		try {
+			Object path = toPath.invoke(dir);
+			channel = (FileChannel)openChannel.invoke(null, path, readOption);
+		} catch (InvocationTargetException e) {
+			if (log.isDebugEnabled())
+				log.debug("Cannot open folder " + dir.getPath() + " to sync it: " + e.getCause());
+			return;
+		} catch (IllegalAccessException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} catch (IOException e) {
+			throw new RepositoryException("Failed to sync repository folder " + dir.getPath(), e);
+		} finally {
+			closeQuietly(channel);
+		}
 	}
 
 	/* (non-Javadoc)
@@ -165,52 +367,15 @@ public class FileSystemRepositoryServiceImpl implements XdsRepositoryService {
 	 */
 	public XdsRepositoryItem getRepositoryItem(String documentUniqueId, RepositoryRequestContext context)
 			throws RepositoryException {
-		XdsRepositoryItemImpl repositoryItem = null;
 		// Strip off the "urn:uuid:"
 		documentUniqueId = Utility.getInstance().stripId(documentUniqueId);		
-		try {
-			IConnectionDescription connection = context.getConnection();
-			if (connection == null) {
-				throw new RepositoryException("Missing required ConnectionDescription in RepositoryRequestContext");
-			}
-			
-			CodeSet mimeTypeCodeSet = connection.getCodeSet("mimeType");
-			Set<Pair> mimeTypes = mimeTypeCodeSet.getCodeSetKeys();
-			String targetFileMimeType = null;
-			File targetFile = null;
-			
-			//look up the file
-			for (Pair code : mimeTypes) {
-				String mimeType = (String)code._first;
-				String ext = mimeTypeCodeSet.getExt(mimeType, null);
-				File file = new File(repositoryRoot, documentUniqueId + "." + ext);
-				if (file.exists()) {
-					targetFileMimeType = mimeType;
-					targetFile = file;
-					if (log.isDebugEnabled())
-						log.debug("Repository File " + file.getPath() + " found");
-				} else
-					if (log.isDebugEnabled())
-						log.debug("Repository File " + file.getPath() + " does not exist");
-			}
-
-			if (targetFile == null) {
-				String errmsg = "Cannot find the repository file with document id:" + documentUniqueId;
-				log.error(errmsg);
-				throw new RepositoryException(errmsg);
-			}
-
-			DataHandler contentDataHandler = new DataHandler(
-					new FileDataSource(targetFile));
-			repositoryItem = new XdsRepositoryItemImpl(documentUniqueId,
-					contentDataHandler);
-			repositoryItem.setMimeType(targetFileMimeType);
-
-		} catch (Exception e) {
-			throw new RepositoryException(e);
+		XdsRepositoryItem repositoryItem = findRepositoryItem(documentUniqueId, getMimeTypeCodeSet(context));
+		if (repositoryItem == null) {
+			String errmsg = "Cannot find the repository file with document id:" + documentUniqueId;
+			log.error(errmsg);
+			throw new RepositoryException(errmsg);
 		}
 		return repositoryItem;
-
 	}
 
 	/* (non-Javadoc)
@@ -218,23 +383,44 @@ public class FileSystemRepositoryServiceImpl implements XdsRepositoryService {
 	 */
 	public List<XdsRepositoryItem> getRepositoryItems(
 			List<String> documentUniqueIds, RepositoryRequestContext context) throws RepositoryException {
-		List<XdsRepositoryItem> repositoryItems = null;
+		List<XdsRepositoryItem> repositoryItems = new ArrayList<XdsRepositoryItem>();
+		if (documentUniqueIds == null || documentUniqueIds.isEmpty())
+			return repositoryItems;
+		//The items only hold a handle on their file, which is read when
+		//the response is written, so the lookups need not run in parallel.
+		CodeSet mimeTypeCodeSet = getMimeTypeCodeSet(context);
+		for (String documentUniqueId : documentUniqueIds) {
+			repositoryItems.add(findRepositoryItem(Utility.getInstance().stripId(documentUniqueId), mimeTypeCodeSet));
+		}
+		return repositoryItems;
+	}
+
+	/**
+	 * Looks up a repository item. Its content is served through a plain 
+	 * <code>FileDataSource</code>: Axiom writes MTOM attachments to the 
+	 * OutputStream of the Axis2 transport, which gives no access to the 
+	 * socket channel, so a FileChannel transfer could not reach the socket.
+	 * 
+	 * @param documentUniqueId the document id, with "urn:uuid:" stripped off
+	 * @return the repository item, or null if the document does not exist
+	 */
+	private XdsRepositoryItem findRepositoryItem(String documentUniqueId, CodeSet mimeTypeCodeSet) throws RepositoryException {
 		try {
-			if (documentUniqueIds != null) {
-				Iterator<String> item = documentUniqueIds.iterator();
-				while (item.hasNext()) {
-					String repositoryItem = item.next();
-					XdsRepositoryItem xdsRepositoryItem = getRepositoryItem(repositoryItem, context);
-					if (xdsRepositoryItem != null)
-						repositoryItems.add(xdsRepositoryItem);
-				}
+			File targetFile = findItemFile(documentUniqueId, mimeTypeCodeSet);
+			if (targetFile == null)
+				return null;
+			if (log.isDebugEnabled())
+				log.debug("Repository File " + targetFile.getPath() + " found");
 
-			}
+			DataHandler contentDataHandler = new DataHandler(
+					new FileDataSource(targetFile));
+			XdsRepositoryItemImpl repositoryItem = new XdsRepositoryItemImpl(documentUniqueId,
+					contentDataHandler);
+			repositoryItem.setMimeType(getMimeType(targetFile, mimeTypeCodeSet));
+			return repositoryItem;
 		} catch (Exception e) {
-			log.error(e);
 			throw new RepositoryException(e);
 		}
-		return repositoryItems;
 	}
 
 	/* (non-Javadoc)
@@ -248,23 +434,9 @@ public class FileSystemRepositoryServiceImpl implements XdsRepositoryService {
 			throw new RepositoryException("Missing required ConnectionDescription in RepositoryRequestContext");
 		}
 
-		CodeSet mimeTypeCodeSet = connection.getCodeSet("mimeType");
-		Set<Pair> mimeTypes = mimeTypeCodeSet.getCodeSetKeys();
-		File targetFile = null;
-		
-		//look up the file
-		for (Pair code : mimeTypes) {
-			String mimeType = (String)code._first;
-			String ext = mimeTypeCodeSet.getExt(mimeType, null);
-			File file = new File(repositoryRoot, documentUniqueId + "." + ext);
-			if (file.exists()) {
-				targetFile = file;
-				if (log.isDebugEnabled())
-					log.debug("Repository File " + file.getPath() + " found");
-			} else
-				if (log.isDebugEnabled())
-					log.debug("Repository File " + file.getPath() + " does not exist");
-		}
+		File targetFile = findItemFile(id, getMimeTypeCodeSet(context));
+		if (targetFile != null && log.isDebugEnabled())
+			log.debug("Repository File " + targetFile.getPath() + " found");
 		
 		if (targetFile == null) {
 			String errmsg = "The repository does not contain a file with document id:" + documentUniqueId;
@@ -301,6 +473,47 @@ public class FileSystemRepositoryServiceImpl implements XdsRepositoryService {
 		}
 	}
 
+	/**
+	 * Streams the content of a repository item to the given file, and sets 
+	 * the size and hash of the item computed while the content is written.
+	 * The partially written file is removed if the content cannot be stored.
+	 * 
+	 * @param item the repository item to be written
+	 * @param itemFile the target file
+	 */
+	private void writeItem(XdsRepositoryItem item, File itemFile) throws RepositoryException {
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = item.getDataHandler().getInputStream();
+			DigestingInputStream dis = new DigestingInputStream(is);
+			os = new BufferedOutputStream(new FileOutputStream(itemFile), DigestingInputStream.BUFFER_SIZE);
+			dis.copyTo(os);
+			os.flush();
+			os.close();
+			os = null;
+			item.setSize((int)dis.getSize());
+			item.setHash(dis.getHash());
+		} catch (IOException e) {
+			closeQuietly(os);
+			if (!itemFile.delete()) 
+				log.warn("Failed to remove partially written file " + itemFile.getPath());
+			throw new RepositoryException("Failed to write repository item " + itemFile.getName(), e);
+		} finally {
+			closeQuietly(is);
+		}
+	}
+
+	private void closeQuietly(Closeable closeable) {
+		if (closeable == null) 
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			log.warn("Failed to close stream", e);
+		}
+	}
+
 	/**
 	 * Gets the path for a RepositoryItem given its id.
 	 * @param id - Document Id
@@ -309,11 +522,111 @@ public class FileSystemRepositoryServiceImpl implements XdsRepositoryService {
 	private String getRepositoryItemPath(String id,String ext){
 		//Strip urn:uuid since that is not part of file name
 		id = Utility.getInstance().stripId(id);
-		File file = new File(repositoryRoot);
-		if (!file.exists())
-			file.mkdirs();
-		String repositoryItemPath = repositoryRoot + "/" + id + "." +ext;
-		return repositoryItemPath;
+		File dir = getItemDirectory(new File(repositoryRoot), id, directoryLevels);
+		if (!dir.exists())
+			dir.mkdirs();
+		return new File(dir, id + "." + ext).getPath();
+	}
+
+	/**
+	 * Gets the hash-prefix folder of a document. The prefix is taken from the
+	 * MD5 digest of the id rather than from the id itself, since OIDs and 
+	 * UUIDs share long common prefixes and would not spread evenly.
+	 * 
+	 * @param root the repository root folder
+	 * @param id the document id, with "urn:uuid:" stripped off
+	 * @param levels the number of hash-prefix folder levels
+	 * @return the folder in which the document is stored
+	 */
+	public static File getItemDirectory(File root, String id, int levels) {
+		if (levels == 0)
+			return root;
+		String hash = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			hash = DigestingInputStream.toHexString(md.digest(id.getBytes("UTF-8")));
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to compute the folder of document " + id, e);
+		}
+		File dir = root;
+		for (int i = 0; i < levels; i++) {
+			dir = new File(dir, hash.substring(2 * i, 2 * i + 2));
+		}
+		return dir;
+	}
+
+	/**
+	 * Finds the file of a document in one directory scan of its hash-prefix 
+	 * folder, instead of probing one file name per configured mime type. 
+	 * With the flat layout, the root folder holds every document and is not 
+	 * scanned; one file name is probed per mime type instead. Documents which 
+	 * have not been migrated from the flat layout yet are looked up in the 
+	 * root folder if {@link #isFlatLayoutFallback()} is set. 
+	 * 
+	 * @param id the document id, with "urn:uuid:" stripped off
+	 * @param mimeTypeCodeSet the configured mime types
+	 * @return the document file, or null if the document does not exist
+	 */
+	private File findItemFile(String id, CodeSet mimeTypeCodeSet) {
+		File root = new File(repositoryRoot);
+		if (directoryLevels == 0)
+			return probeItemFile(root, id, mimeTypeCodeSet);
+		File file = findItemFile(getItemDirectory(root, id, directoryLevels), id);
+		if (file == null && flatLayoutFallback) {
+			file = probeItemFile(root, id, mimeTypeCodeSet);
+			//The migrator may have moved the file between the two lookups
+			if (file == null)
+				file = findItemFile(getItemDirectory(root, id, directoryLevels), id);
+		}
+		return file;
+	}
+
+	/**
+	 * Probes one file name per configured mime type, so that a lookup in the 
+	 * root folder of a large flat repository does not list the whole folder.
+	 */
+	private static File probeItemFile(File dir, String id, CodeSet mimeTypeCodeSet) {
+		for (Pair code : mimeTypeCodeSet.getCodeSetKeys()) {
+			String ext = mimeTypeCodeSet.getExt((String)code._first, null);
+			if (ext == null)
+				continue;
+			File file = new File(dir, id + "." + ext);
+			if (file.exists())
+				return file;
+		}
+		return null;
+	}
+
+	private static File findItemFile(File dir, final String id) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				//The extension never contains a dot, while an OID id does
+				return name.startsWith(id) && name.lastIndexOf('.') == id.length();
+			}
+		});
+		if (files == null || files.length == 0)
+			return null;
+		if (files.length > 1)
+			log.warn("More than one repository file found for document id " + id + ", using " + files[0].getName());
+		return files[0];
+	}
+
+	/**
+	 * Resolves the mime type of a document file from its extension.
+	 * 
+	 * @param file the document file
+	 * @param mimeTypeCodeSet the configured mime types
+	 * @return the mime type, or null if the extension is not configured
+	 */
+	private String getMimeType(File file, CodeSet mimeTypeCodeSet) {
+		String name = file.getName();
+		String ext = name.substring(name.lastIndexOf('.') + 1);
+		for (Pair code : mimeTypeCodeSet.getCodeSetKeys()) {
+			String mimeType = (String)code._first;
+			if (ext.equals(mimeTypeCodeSet.getExt(mimeType, null))) 
+				return mimeType;
+		}
+		return null;
 	}
 	
 }
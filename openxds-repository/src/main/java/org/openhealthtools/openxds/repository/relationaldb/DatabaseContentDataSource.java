@@ -0,0 +1,94 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository.relationaldb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+
+import org.openhealthtools.openxds.repository.api.RepositoryException;
+import org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao;
+
+/**
+ * A <code>DataSource</code> which reads a document content from the
+ * repository database only when its input stream is requested. Each stream
+ * holds a database connection until it is closed, which
+ * <code>DataHandler.writeTo</code> does once the content has been written.
+ */
+public class DatabaseContentDataSource implements DataSource {
+
+	private final XdsRepositoryManagerDao dao;
+	private final String documentUniqueId;
+	private final String contentType;
+	private final long size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dao the repository DAO
+	 * @param documentUniqueId the document unique id, with "urn:uuid:" stripped off
+	 * @param contentType the mime type of the document
+	 * @param size the size of the content in bytes as stored in the metadata
+	 */
+	public DatabaseContentDataSource(XdsRepositoryManagerDao dao, String documentUniqueId, String contentType, long size) {
+		this.dao = dao;
+		this.documentUniqueId = documentUniqueId;
+		this.contentType = contentType;
+		this.size = size;
+	}
+
+	/**
+	 * Gets the size of the content without reading it from the database.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		InputStream content = null;
+		try {
+			content = dao.openContentStream(documentUniqueId);
+		} catch (RepositoryException e) {
+			IOException ioe = new IOException("Failed to read the content of document " + documentUniqueId);
+			ioe.initCause(e);
+			throw ioe;
+		}
+		if (content == null)
+			throw new IOException("The repository does not contain document " + documentUniqueId);
+		return content;
+	}
+
+	public String getName() {
+		return documentUniqueId;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("The repository content cannot be written through its DataSource");
+	}
+}
@@ -20,17 +20,19 @@
 
 package org.openhealthtools.openxds.repository.relationaldb;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.activation.DataHandler;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openhealthtools.openxds.repository.ByteArrayDataSource;
+import org.openhealthtools.openxds.repository.ContentSpool;
+import org.openhealthtools.openxds.repository.DigestingInputStream;
 import org.openhealthtools.openxds.repository.Repository;
 import org.openhealthtools.openxds.repository.Utility;
 import org.openhealthtools.openxds.repository.XdsRepositoryItemImpl;
@@ -56,6 +58,12 @@ public class RelationalDBRepositoryServiceImpl implements XdsRepositoryService {
 	private XdsRepositoryManagerDao xdsRepositoryManagerDao;
 	
 	private String repositoryUniqueId;
+	
+	/**The size up to which an inserted document is held in memory rather than spooled to a temporary file*/
+	private int memoryThreshold = ContentSpool.DEFAULT_MEMORY_THRESHOLD;
+	
+	/**The maximal number of documents inserted in one JDBC batch*/
+	private int batchSize = 20;
     
 	public XdsRepositoryManagerDao getXdsRepositoryManagerDao() {
 		return xdsRepositoryManagerDao;
@@ -74,30 +82,53 @@ public class RelationalDBRepositoryServiceImpl implements XdsRepositoryService {
 		return repositoryUniqueId;
 	}
 
+	public int getMemoryThreshold() {
+		return memoryThreshold;
+	}
+
+	/**
+	 * Sets the size up to which the content of an inserted document is held 
+	 * in memory. Larger documents are spooled to a temporary file before 
+	 * they are streamed into the database.
+	 * 
+	 * @param memoryThreshold the size in bytes
+	 */
+	public void setMemoryThreshold(int memoryThreshold) {
+		this.memoryThreshold = memoryThreshold;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximal number of documents inserted in one JDBC batch when
+	 * a list of documents is inserted. The content of a whole batch is held
+	 * in memory or in temporary files until the batch is executed.
+	 * 
+	 * @param batchSize the number of documents per batch
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		this.batchSize = batchSize;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#getRepositoryItem()
 	 */
 	@Transactional(propagation = Propagation.REQUIRES_NEW)
 	public XdsRepositoryItem getRepositoryItem(String documentUniqueId,
 			RepositoryRequestContext context) throws RepositoryException {
-		XdsRepositoryItemImpl repositoryItem = null;
 		// Strip off the "urn:uuid:"
 		String id = Utility.getInstance().stripId(documentUniqueId);		
 		try {
-			Repository repository = xdsRepositoryManagerDao.getXdsRepositoryBean(id);
-			if(repository != null){
-	        DataHandler contentDataHandler = new DataHandler(new ByteArrayDataSource(repository.getBinaryContent(), repository.getMimeType()));
-			repositoryItem = new XdsRepositoryItemImpl();
-			repositoryItem.setDataHandler(contentDataHandler);
-			repositoryItem.setDocumentUniqueId(repository.getDocumentUniqueId());
-			repositoryItem.setMimeType(repository.getMimeType());
-			}
+			Repository repository = xdsRepositoryManagerDao.getXdsRepositoryMetadata(id);
+			return (repository == null) ? null : createRepositoryItem(repository);
 		} catch (Exception e) {
 			log.error(e);
 			throw new RepositoryException(e);
 		}
-		return repositoryItem;
-	
 	}
 
 	/* (non-Javadoc)
@@ -107,17 +138,23 @@ public class RelationalDBRepositoryServiceImpl implements XdsRepositoryService {
 	public List<XdsRepositoryItem> getRepositoryItems(
 			List<String> documentUniqueIds, RepositoryRequestContext context)
 			throws RepositoryException {
-		List<XdsRepositoryItem> repositoryItems = null;
+		List<XdsRepositoryItem> repositoryItems = new ArrayList<XdsRepositoryItem>();
+		if (documentUniqueIds == null || documentUniqueIds.isEmpty())
+			return repositoryItems;
+		List<String> ids = new ArrayList<String>(documentUniqueIds.size());
+		for (String documentUniqueId : documentUniqueIds) {
+			// Strip off the "urn:uuid:"
+			ids.add(Utility.getInstance().stripId(documentUniqueId));
+		}
 		try {
-			if (documentUniqueIds != null) {
-				Iterator<String> item = documentUniqueIds.iterator();
-				while (item.hasNext()) {
-					String repositoryItem = item.next();
-					XdsRepositoryItem xdsRepositoryItem = getRepositoryItem(repositoryItem, context);
-					if (xdsRepositoryItem != null)
-						repositoryItems.add(xdsRepositoryItem);
-				}
-
+			//All the documents are looked up in one query
+			Map<String, Repository> repositories = new HashMap<String, Repository>();
+			for (Repository repository : xdsRepositoryManagerDao.getXdsRepositoryMetadata(ids)) {
+				repositories.put(repository.getDocumentUniqueId(), repository);
+			}
+			for (String id : ids) {
+				Repository repository = repositories.get(id);
+				repositoryItems.add((repository == null) ? null : createRepositoryItem(repository));
 			}
 		} catch (Exception e) {
 			log.error(e);
@@ -125,65 +162,182 @@ public class RelationalDBRepositoryServiceImpl implements XdsRepositoryService {
 		}
 		return repositoryItems;
 	}
+
+	/**
+	 * Creates the repository item of a document. The content is not loaded
+	 * here; it is streamed from the database when the DataHandler is written out.
+	 */
+	private XdsRepositoryItem createRepositoryItem(Repository repository) {
+		DataHandler contentDataHandler = new DataHandler(new DatabaseContentDataSource(xdsRepositoryManagerDao,
+				repository.getDocumentUniqueId(), repository.getMimeType(), repository.getSize()));
+		XdsRepositoryItemImpl repositoryItem = new XdsRepositoryItemImpl();
+		repositoryItem.setDataHandler(contentDataHandler);
+		repositoryItem.setDocumentUniqueId(repository.getDocumentUniqueId());
+		repositoryItem.setMimeType(repository.getMimeType());
+		repositoryItem.setSize(repository.getSize());
+		repositoryItem.setHash(repository.getHash());
+		return repositoryItem;
+	}
 	
 	/* (non-Javadoc)
 	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
 	 */
 	@Transactional(propagation = Propagation.REQUIRED)
-	public void insert(XdsRepositoryItem item, RepositoryRequestContext context)
+	public boolean insert(XdsRepositoryItem item, RepositoryRequestContext context)
 			throws RepositoryException {
 		Repository bean =null;
-		byte contentBytes[]= null;
-		// get the mime type of the document.
-		String mimeTypeCode = item.getMimeType();
 		
 		// Strip off the "urn:uuid:"
         String id = Utility.getInstance().stripId(item.getDocumentUniqueId());
         
-		//check whether document unique id is already exists in repository or not
-		bean = xdsRepositoryManagerDao.getXdsRepositoryBean(id); 
-		if(bean != null){
-		    
-			String newHash = item.getHash();
-			if (bean.getHash().equals(newHash)) {
-				//The same document is saved previously. Allow it to proceed.
-				return ;
+		//check whether document unique id is already exists in repository or not,
+		//without loading the content of the existing document
+		bean = xdsRepositoryManagerDao.getXdsRepositoryMetadata(id); 
+		//Read the content once, computing its size and hash on the way. The 
+		//length must be known before the content is streamed to the database,
+		//so large documents are spooled to a temporary file first.
+		ContentSpool spool = spool(item);
+		try {
+			if(bean != null){
+				//The hash has been computed while spooling
+				if (bean.getHash().equals(item.getHash())) {
+					//The same document is saved previously. Allow it to proceed.
+					return false;
+				}
+				log.debug("document unique id already exist");
+				throw new RepositoryException("document unique id already exist in repository");
 			}
-			log.debug("document unique id already exist");
-			throw new RepositoryException("document unique id already exist in repository");
+	        InputStream content = null;
+	        try {
+	        	content = spool.getInputStream();
+	        	xdsRepositoryManagerDao.insert(createBean(item, id), content, spool.getLength());
+	        } catch (IOException e) {
+	        	throw new RepositoryException(e);
+	        } finally {
+	        	closeQuietly(content);
+	        }
+		} finally {
+			spool.dispose();
 		}
-		try {
-			contentBytes = readBytes(item.getDataHandler().getInputStream());
-		} catch (Exception e) {
-			log.error(e);
-		    throw new RepositoryException("error while converting datahandler object into byte array");
-		}		     
-        bean = new Repository();
-        bean.setDocumentUniqueId(id);
-        bean.setBinaryContent(contentBytes);
-        bean.setMimeType(mimeTypeCode);
-        bean.setSize(item.getSize());
-        bean.setHash(item.getHash());
-		xdsRepositoryManagerDao.insert(bean);		
+		return true;
 	}
 	
 	/* (non-Javadoc)
 	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
 	 */
 	@Transactional(propagation = Propagation.REQUIRED)
-	public void insert(List<XdsRepositoryItem> items,
+	public List<String> insert(List<XdsRepositoryItem> items,
 			RepositoryRequestContext context) throws RepositoryException {
+		List<String> stored = new ArrayList<String>();
+		if (items == null || items.isEmpty())
+			return stored;
+		List<String> ids = new ArrayList<String>(items.size());
+		for (XdsRepositoryItem item : items) {
+			// Strip off the "urn:uuid:"
+			ids.add(Utility.getInstance().stripId(item.getDocumentUniqueId()));
+		}
+		//check in one query which documents already exist, without loading their content
+		Map<String, String> storedHashes = new HashMap<String, String>();
+		for (Repository bean : xdsRepositoryManagerDao.getXdsRepositoryMetadata(ids)) {
+			storedHashes.put(bean.getDocumentUniqueId(), bean.getHash());
+		}
+
+		List<Repository> beans = new ArrayList<Repository>();
+		List<ContentSpool> spools = new ArrayList<ContentSpool>();
 		try {
-			if (items != null) {
-				Iterator<XdsRepositoryItem> item = items.iterator();
-				while (item.hasNext()) {
-					XdsRepositoryItem repositoryItem = item.next();
-					insert(repositoryItem, context);
+			for (int i = 0; i < items.size(); i++) {
+				XdsRepositoryItem item = items.get(i);
+				String id = ids.get(i);
+				//The hash is computed while spooling, so that the content is read once
+				ContentSpool spool = spool(item);
+				String storedHash = storedHashes.get(id);
+				if (storedHash != null) {
+					spool.dispose();
+					if (storedHash.equals(item.getHash())) {
+						//The same document is saved previously. Allow it to proceed.
+						continue;
+					}
+					log.debug("document unique id already exist");
+					throw new RepositoryException("document unique id already exist in repository");
 				}
+				spools.add(spool);
+				beans.add(createBean(item, id));
+				stored.add(item.getDocumentUniqueId());
+				//A document listed twice is only stored once
+				storedHashes.put(id, item.getHash());
+				if (beans.size() >= batchSize)
+					insertBatch(beans, spools);
+			}
+			insertBatch(beans, spools);
+		} finally {
+			for (ContentSpool spool : spools) {
+				spool.dispose();
 			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Reads the content of an item into a spool, setting the size and hash 
+	 * of the item computed on the way.
+	 */
+	private ContentSpool spool(XdsRepositoryItem item) throws RepositoryException {
+		ContentSpool spool = new ContentSpool(memoryThreshold);
+		DigestingInputStream dis = null;
+		try {
+			dis = new DigestingInputStream(item.getDataHandler().getInputStream());
+			spool.spool(dis);
 		} catch (Exception e) {
 			log.error(e);
+		    throw new RepositoryException("error while reading the datahandler content");
+		}		     
+		item.setSize((int)dis.getSize());
+		item.setHash(dis.getHash());
+		return spool;
+	}
+
+	private Repository createBean(XdsRepositoryItem item, String id) throws RepositoryException {
+        Repository bean = new Repository();
+        bean.setDocumentUniqueId(id);
+        bean.setMimeType(item.getMimeType());
+        bean.setSize(item.getSize());
+        bean.setHash(item.getHash());
+        return bean;
+	}
+
+	/**
+	 * Inserts the given beans in one JDBC batch, then releases their spools.
+	 */
+	private void insertBatch(List<Repository> beans, List<ContentSpool> spools) throws RepositoryException {
+		if (beans.isEmpty())
+			return;
+		List<InputStream> contents = new ArrayList<InputStream>(spools.size());
+		try {
+			for (ContentSpool spool : spools) {
+				contents.add(spool.getInputStream());
+			}
+			xdsRepositoryManagerDao.insert(beans, contents);
+		} catch (IOException e) {
 			throw new RepositoryException(e);
+		} finally {
+			for (InputStream content : contents) {
+				closeQuietly(content);
+			}
+		}
+		for (ContentSpool spool : spools) {
+			spool.dispose();
+		}
+		beans.clear();
+		spools.clear();
+	}
+
+	private void closeQuietly(InputStream is) {
+		if (is == null)
+			return;
+		try {
+			is.close();
+		} catch (IOException e) {
+			log.warn("Failed to close stream", e);
 		}
 	}
 	
@@ -211,14 +365,17 @@ public class RelationalDBRepositoryServiceImpl implements XdsRepositoryService {
 	@Transactional(propagation = Propagation.REQUIRES_NEW)
 	public void delete(List<String> ids, RepositoryRequestContext context)
 			throws RepositoryException {
+		if (ids == null || ids.isEmpty())
+			return;
+		List<String> strippedIds = new ArrayList<String>(ids.size());
+		for (String id : ids) {
+			// Strip off the "urn:uuid:"
+			strippedIds.add(Utility.getInstance().stripId(id));
+		}
 		try {
-			if (ids != null) {
-				Iterator<String> item = ids.iterator();
-				while (item.hasNext()) {
-					String repositoryItem = item.next();
-					delete(repositoryItem, context);
-				}
-			}
+			int deleted = xdsRepositoryManagerDao.delete(strippedIds);
+			if (log.isDebugEnabled())
+				log.debug(deleted + " of " + ids.size() + " Reposiotry beans deleted successfully");
 		} catch (Exception e) {
 			log.error(e);
 			throw new RepositoryException(e);
@@ -226,22 +383,4 @@ public class RelationalDBRepositoryServiceImpl implements XdsRepositoryService {
 		
 	}
 	
-	/**
-     * Reads bytes from InputStream until the end of the stream.
-     *
-     * @param in The InputStream to be read.
-     * @return the read bytes
-     * @throws Exception 
-     */
-    private byte[] readBytes(InputStream in) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        InputStreamReader inr = new InputStreamReader(in);
-        byte bbuf[] = new byte[1024];
-        int read;
-        while ((read = in.read(bbuf)) > 0) {
-            baos.write(bbuf, 0, read);
-        }
-        return baos.toByteArray();
-    }
-	
 }
@@ -0,0 +1,482 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository.segment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openhealthtools.openxds.repository.DigestingInputStream;
+
+/**
+ * A segment file of the {@link SegmentRepositoryServiceImpl}.
+ * <p>
+ * A segment is a sequence of records. A document record is made of a header
+ * holding the document id, its mime type, the CRC-32 of its content and its
+ * content length, followed by the content itself. The checksum is verified
+ * whenever the content is read. A deletion record holds the document id only. Records
+ * are only ever appended to the active segment; once a segment is full it is
+ * sealed, and the offsets of its records are written to an index file next
+ * to it, so that the segment does not have to be scanned when the repository
+ * is opened again.
+ */
+class Segment {
+	private static final Log log = LogFactory.getLog(Segment.class);
+
+	static final byte DOCUMENT = 1;
+	static final byte DELETED = 2;
+
+	private static final int RECORD_MAGIC = 0x58445352;
+	private static final int INDEX_MAGIC = 0x58445349;
+
+	/**The content length of a record whose content is still being written*/
+	private static final long INCOMPLETE = -1;
+
+	private final int number;
+	private final File file;
+	private final File indexFile;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	/**The number of bytes used by the records of this segment*/
+	private long size;
+
+	/**The number of bytes used by records which have been deleted or superseded*/
+	private long garbage = 0;
+
+	/**The records of the active segment, written to the index file when it is sealed*/
+	private List<Record> records = new ArrayList<Record>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * A record of a segment.
+	 */
+	static class Record {
+		final byte type;
+		final String id;
+		final String mimeType;
+		/**The position of the record in the segment*/
+		final long offset;
+		/**The position of the content in the segment*/
+		final long contentOffset;
+		final long length;
+		/**The CRC-32 of the content*/
+		final int crc;
+
+		Record(byte type, String id, String mimeType, long offset, long contentOffset, long length, int crc) {
+			this.type = type;
+			this.id = id;
+			this.mimeType = mimeType;
+			this.offset = offset;
+			this.contentOffset = contentOffset;
+			this.length = length;
+			this.crc = crc;
+		}
+
+		/**
+		 * Gets the number of bytes used by this record, including its header.
+		 */
+		long getRecordLength() {
+			return contentOffset - offset + length;
+		}
+	}
+
+	Segment(File dir, int number) throws IOException {
+		this.number = number;
+		this.file = new File(dir, getFileName(number, ".dat"));
+		this.indexFile = new File(dir, getFileName(number, ".idx"));
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		this.size = channel.size();
+	}
+
+	static String getFileName(int number, String ext) {
+		return "segment-" + String.format("%08d", number) + ext;
+	}
+
+	/**
+	 * Gets the segment number from a segment file name.
+	 *
+	 * @return the segment number, or -1 if this is not a segment file
+	 */
+	static int getNumber(String fileName) {
+		if (!fileName.startsWith("segment-") || !fileName.endsWith(".dat"))
+			return -1;
+		try {
+			return Integer.parseInt(fileName.substring(8, fileName.length() - 4));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	int getNumber() {
+		return number;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	synchronized long getGarbage() {
+		return garbage;
+	}
+
+	synchronized void addGarbage(long bytes) {
+		garbage += bytes;
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Appends a document record, streaming the content from the given input
+	 * stream. The segment is truncated back to its previous size if the
+	 * content cannot be read.
+	 *
+	 * @param force whether the content is forced to the disk before the 
+	 * 		record is completed by writing its checksum and length
+	 */
+	Record appendDocument(String id, String mimeType, DigestingInputStream content, boolean force) throws IOException {
+		long offset = size;
+		byte[] header = createHeader(DOCUMENT, id, mimeType, 0, INCOMPLETE);
+		try {
+			write(ByteBuffer.wrap(header), offset);
+			channel.position(offset + header.length);
+			//The stream is not closed, as this would close the channel.
+			CheckedOutputStream out = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 
+					DigestingInputStream.BUFFER_SIZE), new CRC32());
+			long length = content.copyTo(out);
+			out.flush();
+			int crc = (int)out.getChecksum().getValue();
+			//The checksum and length are only set once the content is complete,
+			//and on the disk, so that a crash cannot leave a complete looking record
+			//in front of missing content
+			if (force)
+				channel.force(false);
+			ByteBuffer buffer = ByteBuffer.allocate(12);
+			buffer.putInt(crc).putLong(length).flip();
+			write(buffer, offset + header.length - 12);
+			size = offset + header.length + length;
+			return add(new Record(DOCUMENT, id, mimeType, offset, offset + header.length, length, crc));
+		} catch (IOException e) {
+			channel.truncate(offset);
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends a document record, copying the content from another segment.
+	 */
+	Record appendDocument(Segment source, Record record) throws IOException {
+		long offset = size;
+		byte[] header = createHeader(DOCUMENT, record.id, record.mimeType, record.crc, record.length);
+		try {
+			write(ByteBuffer.wrap(header), offset);
+			long position = 0;
+			while (position < record.length) {
+				long transferred = source.channel.transferTo(record.contentOffset + position,
+						record.length - position, channel.position(offset + header.length + position));
+				if (transferred <= 0)
+					throw new IOException("Failed to copy document " + record.id + " from " + source.file.getName());
+				position += transferred;
+			}
+			size = offset + header.length + record.length;
+			return add(new Record(DOCUMENT, record.id, record.mimeType, offset, offset + header.length, record.length, record.crc));
+		} catch (IOException e) {
+			channel.truncate(offset);
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends a deletion record.
+	 */
+	Record appendDeleted(String id) throws IOException {
+		long offset = size;
+		byte[] header = createHeader(DELETED, id, "", 0, 0);
+		try {
+			write(ByteBuffer.wrap(header), offset);
+			size = offset + header.length;
+			return add(new Record(DELETED, id, null, offset, size, 0, 0));
+		} catch (IOException e) {
+			channel.truncate(offset);
+			throw e;
+		}
+	}
+
+	private Record add(Record record) {
+		records.add(record);
+		return record;
+	}
+
+	/**
+	 * Removes the records appended from the given position on, truncating
+	 * the segment back to it.
+	 *
+	 * @param offset the size of the segment to go back to
+	 */
+	void truncate(long offset) throws IOException {
+		channel.truncate(offset);
+		size = offset;
+		for (Iterator<Record> it = records.iterator(); it.hasNext();) {
+			if (it.next().offset >= offset)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Forces the appended records to the disk.
+	 */
+	void sync() throws IOException {
+		channel.force(false);
+	}
+
+	/**
+	 * Reads the content of a document record, verifying its checksum.
+	 */
+	byte[] read(Record record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int)record.length);
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, record.contentOffset + buffer.position());
+			if (read < 0)
+				throw new EOFException("Unexpected end of " + file.getName() + " reading document " + record.id);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array());
+		if ((int)crc.getValue() != record.crc)
+			throw new IOException("Checksum mismatch in " + file.getName() + " reading document " + record.id);
+		return buffer.array();
+	}
+
+	/**
+	 * Reads the records of this segment, from its index file if the segment
+	 * has been sealed, or else by scanning the segment. A record left
+	 * incomplete by a crash at the end of the segment is removed, and a
+	 * document whose content does not match its checksum is left out.
+	 */
+	List<Record> readRecords() throws IOException {
+		if (indexFile.exists()) {
+			try {
+				List<Record> sealed = readIndex();
+				records = null;
+				return sealed;
+			} catch (IOException e) {
+				log.warn("Failed to read " + indexFile.getName() + ", scanning " + file.getName() + " instead", e);
+			}
+		}
+		records = scan();
+		return new ArrayList<Record>(records);
+	}
+
+	private List<Record> scan() throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		long fileSize = channel.size();
+		long offset = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), DigestingInputStream.BUFFER_SIZE));
+		try {
+			while (offset < fileSize) {
+				Record record = null;
+				try {
+					if (in.readInt() != RECORD_MAGIC)
+						break;
+					byte type = in.readByte();
+					String id = readString(in);
+					String mimeType = readString(in);
+					int crc = in.readInt();
+					long length = in.readLong();
+					long contentOffset = offset + 4 + 1 + 2 + utf8Length(id) + 2 + utf8Length(mimeType) + 4 + 8;
+					if (length < 0 || contentOffset + length > fileSize)
+						break;
+					record = new Record(type, id, type == DOCUMENT ? mimeType : null, offset, contentOffset, length, crc);
+				} catch (EOFException e) {
+					break;
+				}
+				if (checksum(in, record.length) == record.crc) {
+					records.add(record);
+				} else {
+					log.error("Checksum mismatch for document " + record.id + " at position " + offset + " of " + file.getName() + ", skipping it");
+					addGarbage(record.getRecordLength());
+				}
+				offset = record.contentOffset + record.length;
+			}
+		} finally {
+			in.close();
+		}
+		if (offset < fileSize) {
+			log.warn("Removing an incomplete record at position " + offset + " of " + file.getName());
+			channel.truncate(offset);
+		}
+		size = offset;
+		return records;
+	}
+
+	private List<Record> readIndex() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), DigestingInputStream.BUFFER_SIZE));
+		try {
+			if (in.readInt() != INDEX_MAGIC)
+				throw new IOException("Invalid index file " + indexFile.getName());
+			int count = in.readInt();
+			List<Record> records = new ArrayList<Record>(count);
+			for (int i = 0; i < count; i++) {
+				byte type = in.readByte();
+				String id = readString(in);
+				String mimeType = readString(in);
+				long offset = in.readLong();
+				long contentOffset = in.readLong();
+				long length = in.readLong();
+				int crc = in.readInt();
+				records.add(new Record(type, id, type == DOCUMENT ? mimeType : null, offset, contentOffset, length, crc));
+			}
+			return records;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Seals this segment by forcing it to the disk and writing its index file.
+	 * No record can be appended to a sealed segment.
+	 */
+	void seal() throws IOException {
+		sync();
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, DigestingInputStream.BUFFER_SIZE));
+			out.writeInt(INDEX_MAGIC);
+			out.writeInt(records.size());
+			for (Record record : records) {
+				out.writeByte(record.type);
+				writeString(out, record.id);
+				writeString(out, record.mimeType == null ? "" : record.mimeType);
+				out.writeLong(record.offset);
+				out.writeLong(record.contentOffset);
+				out.writeLong(record.length);
+				out.writeInt(record.crc);
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(indexFile)) {
+			tmp.delete();
+			throw new IOException("Failed to write " + indexFile.getName());
+		}
+		records = null;
+	}
+
+	boolean isSealed() {
+		return records == null;
+	}
+
+	void close() {
+		closed = true;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			log.warn("Failed to close " + file.getName(), e);
+		}
+	}
+
+	/**
+	 * Closes and removes this segment along with its index file.
+	 */
+	void delete() {
+		close();
+		if (indexFile.exists() && !indexFile.delete())
+			log.warn("Failed to delete " + indexFile.getPath());
+		if (!file.delete())
+			log.warn("Failed to delete " + file.getPath());
+	}
+
+	private void write(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private static byte[] createHeader(byte type, String id, String mimeType, int crc, long length) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(RECORD_MAGIC);
+		out.writeByte(type);
+		writeString(out, id);
+		writeString(out, mimeType);
+		out.writeInt(crc);
+		out.writeLong(length);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedShort()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static int utf8Length(String value) throws IOException {
+		return value.getBytes("UTF-8").length;
+	}
+
+	/**
+	 * Reads the next n bytes of the stream, computing their CRC-32.
+	 */
+	private static int checksum(InputStream in, long n) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[DigestingInputStream.BUFFER_SIZE];
+		while (n > 0) {
+			int read = in.read(buffer, 0, (int)Math.min(buffer.length, n));
+			if (read < 0)
+				throw new EOFException();
+			crc.update(buffer, 0, read);
+			n -= read;
+		}
+		return (int)crc.getValue();
+	}
+}
@@ -0,0 +1,622 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository.segment;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.activation.DataHandler;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openhealthtools.openxds.repository.ByteArrayDataSource;
+import org.openhealthtools.openxds.repository.DigestingInputStream;
+import org.openhealthtools.openxds.repository.Utility;
+import org.openhealthtools.openxds.repository.XdsRepositoryItemImpl;
+import org.openhealthtools.openxds.repository.api.RepositoryException;
+import org.openhealthtools.openxds.repository.api.RepositoryRequestContext;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryItem;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryService;
+
+/**
+ * This class provides a repository manager implementation which appends
+ * documents to large segment files, instead of storing one file per
+ * document as {@link org.openhealthtools.openxds.repository.filesystem.FileSystemRepositoryServiceImpl}
+ * does. It is meant for repositories holding many small documents, where the
+ * cost of creating, opening and syncing one file per document dominates.
+ * <p>
+ * Documents are appended to the active segment and located through an
+ * in-memory index of their segment offsets, which is rebuilt from the index
+ * files of the sealed segments when the repository is opened. The documents
+ * inserted in one call are appended to the same segment and only indexed
+ * once all of them are written; if any of them fails, the segment is 
+ * truncated back to its previous size. A deleted
+ * document is recorded by a deletion record; once the deleted or superseded
+ * records of a sealed segment reach <code>compactionThreshold</code> percent
+ * of its size, its remaining documents are copied to the active segment in
+ * the background and the segment is removed.
+ * <p>
+ * The content of a retrieved document is read into memory, so this
+ * repository is not suited for large documents.
+ */
+public class SegmentRepositoryServiceImpl implements XdsRepositoryService {
+	private static final Log log = LogFactory.getLog(SegmentRepositoryServiceImpl.class);
+
+	/**The repository root folder*/
+	private String repositoryRoot = null;
+
+	/**The repository unique Id that represents this Repository.*/
+	private String repositoryUniqueId = null;
+
+	/**The size in bytes above which the active segment is sealed, 64MB by default*/
+	private long maxSegmentSize = 64L * 1024 * 1024;
+
+	/**The percentage of deleted records above which a sealed segment is compacted*/
+	private int compactionThreshold = 50;
+
+	/**Whether every insert and delete is forced to the disk before it returns*/
+	private boolean syncOnWrite = true;
+
+	/**The segments by ascending number, the last one is the active segment*/
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+	/**The document records by document id*/
+	private final Map<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+	/**Serializes the appends to the active segment*/
+	private final Object appendLock = new Object();
+
+	/**Guards the reads against the removal of a compacted segment*/
+	private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+	/**Serializes the compactions*/
+	private final Object compactLock = new Object();
+
+	private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+	private ExecutorService compactor = null;
+	private volatile boolean opened = false;
+
+	/**
+	 * The location of a document record.
+	 */
+	private static class Location {
+		final Segment segment;
+		final Segment.Record record;
+
+		Location(Segment segment, Segment.Record record) {
+			this.segment = segment;
+			this.record = record;
+		}
+	}
+
+	/**
+	 * Gets the repository unique Id that represents this repository.
+	 *
+	 * @return the repository unique Id
+	 */
+	public String getRepositoryUniqueId() {
+		return this.repositoryUniqueId;
+	}
+
+	/**
+	 * Sets the repository unique id that represents this repository.
+	 *
+	 * @param repositoryUniqueId the repository unique Id to be set.
+	 */
+	public void setRepositoryUniqueId(String repositoryUniqueId) {
+		this.repositoryUniqueId = repositoryUniqueId;
+	}
+
+	/**
+	 * Gets the folder holding the segment files of this repository.
+	 *
+	 * @return repositoryRoot folder
+	 */
+	public String getRepositoryRoot() {
+		return repositoryRoot;
+	}
+
+	/**
+	 * Sets the folder holding the segment files of this repository.
+	 *
+	 * @param repositoryRoot the root folder
+	 */
+	public void setRepositoryRoot(String repositoryRoot) {
+		this.repositoryRoot = repositoryRoot;
+	}
+
+	/**
+	 * Gets the size above which the active segment is sealed.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	/**
+	 * Sets the size above which the active segment is sealed and a new
+	 * segment is started. A document larger than this size is still stored
+	 * in a single segment.
+	 *
+	 * @param maxSegmentSize the size in bytes
+	 */
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * Gets the percentage of deleted records above which a sealed segment
+	 * is compacted.
+	 *
+	 * @return the percentage of the segment size
+	 */
+	public int getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the percentage of deleted records above which a sealed segment
+	 * is compacted.
+	 *
+	 * @param compactionThreshold the percentage of the segment size, between 1 and 100
+	 */
+	public void setCompactionThreshold(int compactionThreshold) {
+		if (compactionThreshold < 1 || compactionThreshold > 100)
+			throw new IllegalArgumentException("compactionThreshold must be between 1 and 100");
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Whether every insert and delete is forced to the disk before it returns.
+	 *
+	 * @return true if writes are synced
+	 */
+	public boolean isSyncOnWrite() {
+		return syncOnWrite;
+	}
+
+	/**
+	 * Sets whether every insert and delete is forced to the disk before it
+	 * returns. The content of each inserted document is forced to the disk
+	 * before its record is completed, and a list of documents inserted or 
+	 * deleted in one call is then forced to the disk once.
+	 *
+	 * @param syncOnWrite true to sync writes
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
+	 */
+	public boolean insert(XdsRepositoryItem item, RepositoryRequestContext context)
+			throws RepositoryException {
+		return !insert(Collections.singletonList(item), context).isEmpty();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#insert()
+	 */
+	public List<String> insert(List<XdsRepositoryItem> items,
+			RepositoryRequestContext context) throws RepositoryException {
+		List<String> stored = new ArrayList<String>();
+		if (items == null || items.isEmpty())
+			return stored;
+		open();
+		synchronized (appendLock) {
+			//The documents of one call are appended to the same segment, so that
+			//the segment can be truncated back if any of them cannot be stored
+			Segment segment = null;
+			long start = 0;
+			Map<String, Location> appended = new LinkedHashMap<String, Location>();
+			try {
+				segment = getActiveSegment();
+				start = segment.getSize();
+				for (XdsRepositoryItem item : items) {
+					append(segment, item, appended);
+					stored.add(item.getDocumentUniqueId());
+				}
+				if (syncOnWrite)
+					segment.sync();
+			} catch (Exception e) {
+				//Either all the documents are stored or none of them
+				if (segment != null && segment.getSize() > start) {
+					try {
+						segment.truncate(start);
+					} catch (IOException te) {
+						log.error("Failed to truncate segment " + segment.getNumber(), te);
+					}
+				}
+				if (e instanceof RepositoryException)
+					throw (RepositoryException)e;
+				throw new RepositoryException("Failed to write repository items", e);
+			}
+			//The documents only become visible once all of them are stored
+			index.putAll(appended);
+		}
+		return stored;
+	}
+
+	private void append(Segment segment, XdsRepositoryItem item, Map<String, Location> appended) throws RepositoryException {
+		String id = item.getDocumentUniqueId();
+		if (id == null)
+			throw new RepositoryException("Invalid document");
+		// Strip off the "urn:uuid:"
+		id = Utility.getInstance().stripId(id);
+		if (index.containsKey(id) || appended.containsKey(id)) {
+			String errmsg = "RepositoryItem already exist, id=" + id;
+			log.error(errmsg);
+			throw new RepositoryException(errmsg);
+		}
+		InputStream is = null;
+		try {
+			is = item.getDataHandler().getInputStream();
+			DigestingInputStream dis = new DigestingInputStream(is);
+			String mimeType = item.getDataHandler().getContentType();
+			Segment.Record record = segment.appendDocument(id, mimeType == null ? "" : mimeType, dis, syncOnWrite);
+			item.setSize((int)dis.getSize());
+			item.setHash(dis.getHash());
+			appended.put(id, new Location(segment, record));
+		} catch (IOException e) {
+			throw new RepositoryException("Failed to write repository item " + id, e);
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+					log.warn("Failed to close stream", e);
+				}
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#getRepositoryItem()
+	 */
+	public XdsRepositoryItem getRepositoryItem(String documentUniqueId, RepositoryRequestContext context)
+			throws RepositoryException {
+		open();
+		// Strip off the "urn:uuid:"
+		String id = Utility.getInstance().stripId(documentUniqueId);
+		XdsRepositoryItem repositoryItem = findRepositoryItem(id);
+		if (repositoryItem == null) {
+			String errmsg = "Cannot find the repository document with document id:" + id;
+			log.error(errmsg);
+			throw new RepositoryException(errmsg);
+		}
+		return repositoryItem;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#getRepositoryItem()
+	 */
+	public List<XdsRepositoryItem> getRepositoryItems(
+			List<String> documentUniqueIds, RepositoryRequestContext context) throws RepositoryException {
+		List<XdsRepositoryItem> repositoryItems = new ArrayList<XdsRepositoryItem>();
+		if (documentUniqueIds == null || documentUniqueIds.isEmpty())
+			return repositoryItems;
+		open();
+		for (String documentUniqueId : documentUniqueIds) {
+			repositoryItems.add(findRepositoryItem(Utility.getInstance().stripId(documentUniqueId)));
+		}
+		return repositoryItems;
+	}
+
+	/**
+	 * Reads a document into memory.
+	 *
+	 * @param id the document id, with "urn:uuid:" stripped off
+	 * @return the repository item, or null if the document does not exist
+	 */
+	private XdsRepositoryItem findRepositoryItem(String id) throws RepositoryException {
+		byte[] content = null;
+		Location location = null;
+		segmentLock.readLock().lock();
+		try {
+			location = index.get(id);
+			if (location == null)
+				return null;
+			content = location.segment.read(location.record);
+		} catch (IOException e) {
+			throw new RepositoryException(e);
+		} finally {
+			segmentLock.readLock().unlock();
+		}
+
+		String mimeType = location.record.mimeType;
+		XdsRepositoryItemImpl repositoryItem = new XdsRepositoryItemImpl(id,
+				new DataHandler(new ByteArrayDataSource(content, mimeType)));
+		repositoryItem.setMimeType(mimeType);
+		repositoryItem.setSize(content.length);
+		return repositoryItem;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#delete()
+	 */
+	public void delete(String documentUniqueId, RepositoryRequestContext context) throws RepositoryException {
+		delete(Collections.singletonList(documentUniqueId), context);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.openhealthtools.openxds.repository.api.IXdsRepositoryManager#delete()
+	 */
+	public void delete(List<String> ids, RepositoryRequestContext context) throws RepositoryException {
+		if (ids == null || ids.isEmpty())
+			return;
+		open();
+		synchronized (appendLock) {
+			try {
+				for (String documentUniqueId : ids) {
+					String id = Utility.getInstance().stripId(documentUniqueId);
+					Location location = index.get(id);
+					if (location == null) {
+						String errmsg = "The repository does not contain a document with document id:" + documentUniqueId;
+						log.error(errmsg);
+						throw new RepositoryException(errmsg);
+					}
+					Segment segment = getActiveSegment();
+					Segment.Record deleted = segment.appendDeleted(id);
+					index.remove(id);
+					location.segment.addGarbage(location.record.getRecordLength());
+					segment.addGarbage(deleted.getRecordLength());
+				}
+			} catch (IOException e) {
+				throw new RepositoryException(e);
+			} finally {
+				sync();
+			}
+		}
+		scheduleCompaction();
+	}
+
+	/**
+	 * Opens the repository, loading the index of the segment files found in
+	 * the root folder.
+	 */
+	private void open() throws RepositoryException {
+		if (opened)
+			return;
+		synchronized (appendLock) {
+			if (opened)
+				return;
+			if (repositoryRoot == null)
+				throw new RepositoryException("Configuration Error: repositoryRoot is not set");
+			File root = new File(repositoryRoot);
+			if (!root.exists() && !root.mkdirs())
+				throw new RepositoryException("Cannot create repository folder " + root.getPath());
+
+			List<Integer> numbers = new ArrayList<Integer>();
+			String[] names = root.list();
+			if (names != null) {
+				for (String name : names) {
+					int number = Segment.getNumber(name);
+					if (number >= 0)
+						numbers.add(number);
+				}
+			}
+			Collections.sort(numbers);
+			try {
+				for (int number : numbers) {
+					Segment segment = new Segment(root, number);
+					segments.add(segment);
+					load(segment);
+				}
+				if (segments.isEmpty())
+					segments.add(new Segment(root, 1));
+				//Only the last segment can be appended to
+				for (int i = 0; i < segments.size() - 1; i++) {
+					if (!segments.get(i).isSealed())
+						segments.get(i).seal();
+				}
+			} catch (IOException e) {
+				closeSegments();
+				throw new RepositoryException("Failed to open repository " + root.getPath(), e);
+			}
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "SegmentRepositoryCompactor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			opened = true;
+			log.info("Opened repository " + root.getPath() + " with " + index.size() + " documents in " + segments.size() + " segments");
+		}
+		scheduleCompaction();
+	}
+
+	/**
+	 * Applies the records of a segment to the index, in the order they were
+	 * appended. A document copied by an interrupted compaction may be found in
+	 * two segments, in which case the later copy is kept.
+	 */
+	private void load(Segment segment) throws IOException {
+		for (Segment.Record record : segment.readRecords()) {
+			Location previous = null;
+			if (record.type == Segment.DOCUMENT) {
+				previous = index.put(record.id, new Location(segment, record));
+			} else {
+				previous = index.remove(record.id);
+				segment.addGarbage(record.getRecordLength());
+			}
+			if (previous != null)
+				previous.segment.addGarbage(previous.record.getRecordLength());
+		}
+	}
+
+	/**
+	 * Gets the segment to append to, sealing the active segment once it is full.
+	 */
+	private Segment getActiveSegment() throws IOException {
+		Segment active = segments.get(segments.size() - 1);
+		if (active.getSize() < maxSegmentSize && !active.isSealed())
+			return active;
+		if (!active.isSealed())
+			active.seal();
+		Segment segment = new Segment(new File(repositoryRoot), active.getNumber() + 1);
+		segments.add(segment);
+		if (log.isDebugEnabled())
+			log.debug("Started segment " + segment.getNumber());
+		return segment;
+	}
+
+	private void sync() throws RepositoryException {
+		if (!syncOnWrite)
+			return;
+		try {
+			segments.get(segments.size() - 1).sync();
+		} catch (IOException e) {
+			throw new RepositoryException("Failed to sync repository", e);
+		}
+	}
+
+	private boolean isCompactable(Segment segment) {
+		return segment.isSealed() && segment.getGarbage() * 100 >= segment.getSize() * compactionThreshold;
+	}
+
+	private void scheduleCompaction() {
+		boolean compactable = false;
+		for (Segment segment : segments) {
+			compactable |= isCompactable(segment);
+		}
+		if (!compactable || compactor == null || !compactionScheduled.compareAndSet(false, true))
+			return;
+		compactor.execute(new Runnable() {
+			public void run() {
+				compactionScheduled.set(false);
+				try {
+					synchronized (compactLock) {
+						//The repository may have been closed in the meantime
+						if (opened)
+							compactSegments();
+					}
+				} catch (RepositoryException e) {
+					log.error("Failed to compact repository " + repositoryRoot, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Compacts the sealed segments whose deleted records reach the compaction
+	 * threshold: their remaining documents are copied to the active segment
+	 * and the segments are removed. This normally runs in the background
+	 * after documents have been deleted.
+	 *
+	 * @return the number of segments removed
+	 * @throws RepositoryException if a segment cannot be compacted
+	 */
+	public int compact() throws RepositoryException {
+		open();
+		synchronized (compactLock) {
+			return compactSegments();
+		}
+	}
+
+	private int compactSegments() throws RepositoryException {
+		int compacted = 0;
+		for (Segment segment : segments) {
+			if (segment.isClosed() || !isCompactable(segment))
+				continue;
+			try {
+				compact(segment);
+				compacted++;
+			} catch (IOException e) {
+				throw new RepositoryException("Failed to compact segment " + segment.getNumber(), e);
+			}
+		}
+		return compacted;
+	}
+
+	private void compact(Segment segment) throws IOException, RepositoryException {
+		boolean oldest = segments.get(0) == segment;
+		int copied = 0;
+		for (Segment.Record record : segment.readRecords()) {
+			//Each record is copied separately so that inserts are not held up
+			synchronized (appendLock) {
+				Location location = index.get(record.id);
+				if (record.type == Segment.DOCUMENT) {
+					if (location == null || location.record.offset != record.offset || location.segment != segment)
+						continue;
+					Segment active = getActiveSegment();
+					index.put(record.id, new Location(active, active.appendDocument(segment, record)));
+					copied++;
+				} else if (location == null && !oldest) {
+					//A deletion record is still needed while an older segment may hold the document
+					Segment active = getActiveSegment();
+					active.addGarbage(active.appendDeleted(record.id).getRecordLength());
+				}
+			}
+		}
+		synchronized (appendLock) {
+			segments.get(segments.size() - 1).sync();
+		}
+		segmentLock.writeLock().lock();
+		try {
+			segments.remove(segment);
+			segment.delete();
+		} finally {
+			segmentLock.writeLock().unlock();
+		}
+		log.info("Compacted segment " + segment.getNumber() + ", " + copied + " documents copied");
+	}
+
+	/**
+	 * Closes the segment files of this repository.
+	 */
+	public void close() {
+		synchronized (compactLock) {
+			synchronized (appendLock) {
+				if (compactor != null) {
+					compactor.shutdownNow();
+					compactor = null;
+				}
+				closeSegments();
+				opened = false;
+			}
+		}
+	}
+
+	private void closeSegments() {
+		for (Segment segment : segments) {
+			segment.close();
+		}
+		segments.clear();
+		index.clear();
+	}
+}
@@ -0,0 +1,237 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.activation.DataHandler;
+
+import junit.framework.TestCase;
+
+import org.openhealthtools.openxds.repository.api.RepositoryException;
+import org.openhealthtools.openxds.repository.api.RepositoryRequestContext;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryItem;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryService;
+import org.openhealthtools.openxds.repository.cache.CachingRepositoryServiceImpl;
+import org.openhealthtools.openxds.repository.dao.XdsRepositoryManagerDao;
+import org.openhealthtools.openxds.repository.relationaldb.DatabaseContentDataSource;
+
+/**
+ * This class tests the in-memory document cache in front of a repository.
+ *
+ */
+public class CachingRepositoryServiceTest extends TestCase {
+
+	private InMemoryRepository target;
+	private CachingRepositoryServiceImpl cache;
+	private RepositoryRequestContext context = new RepositoryRequestContext();
+
+	protected void setUp() throws Exception {
+		target = new InMemoryRepository();
+		cache = new CachingRepositoryServiceImpl();
+		cache.setTarget(target);
+		cache.setMaxCacheSize(1000);
+		cache.setMaxItemSize(400);
+	}
+
+	public void testHitAndMiss() throws Exception {
+		target.put("1.1", 100);
+		assertEquals(100, cache.getRepositoryItem("1.1", context).getSize());
+		assertEquals(100, cache.getRepositoryItem("1.1", context).getSize());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, target.reads);
+		assertEquals(100, cache.getCacheSize());
+	}
+
+	public void testLargeDocumentNotCached() throws Exception {
+		target.put("1.2", 500);
+		cache.getRepositoryItem("1.2", context);
+		cache.getRepositoryItem("1.2", context);
+		assertEquals(2, target.reads);
+		assertEquals(0, cache.getItemCount());
+	}
+
+	public void testLargeDatabaseDocumentNotRead() throws Exception {
+		target.putInDatabase("1.3", 500);
+		target.putInDatabase("1.4", 100);
+		XdsRepositoryItem item = cache.getRepositoryItem("1.3", context);
+		//The oversized document is streamed from the database when it is written out
+		assertEquals(0, target.contentReads);
+		assertEquals(0, cache.getItemCount());
+		assertEquals(500, readFully(item).length);
+		assertEquals(1, target.contentReads);
+
+		cache.getRepositoryItem("1.4", context);
+		assertEquals(2, target.contentReads);
+		assertEquals(1, cache.getItemCount());
+	}
+
+	public void testByteBudgetAndScanResistance() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			target.put("2." + i, 300);
+		}
+		//2.0 is retrieved twice, so it is protected from the scan below
+		cache.getRepositoryItem("2.0", context);
+		cache.getRepositoryItem("2.0", context);
+		for (int i = 1; i < 10; i++) {
+			cache.getRepositoryItem("2." + i, context);
+			assertTrue(cache.getCacheSize() <= 1000);
+		}
+		assertTrue(cache.getEvictionCount() > 0);
+		int reads = target.reads;
+		cache.getRepositoryItem("2.0", context);
+		assertEquals(reads, target.reads);
+	}
+
+	public void testDeleteInvalidates() throws Exception {
+		target.put("3.1", 100);
+		cache.getRepositoryItem("3.1", context);
+		cache.delete("3.1", context);
+		assertEquals(0, cache.getItemCount());
+		assertNull(cache.getRepositoryItem("3.1", context));
+	}
+
+	public void testRetrievalRacingDeleteNotCached() throws Exception {
+		target.put("3.2", 100);
+		//The document is deleted after the target served it, but before it is cached
+		target.onRead = new Runnable() {
+			public void run() {
+				try {
+					cache.delete("3.2", context);
+				} catch (RepositoryException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		assertEquals(100, cache.getRepositoryItem("3.2", context).getSize());
+		assertEquals(0, cache.getItemCount());
+		assertNull(cache.getRepositoryItem("3.2", context));
+	}
+
+	public void testGetRepositoryItems() throws Exception {
+		target.put("4.1", 100);
+		target.put("4.2", 100);
+		cache.getRepositoryItem("4.1", context);
+		List<XdsRepositoryItem> items = cache.getRepositoryItems(Arrays.asList("4.2", "4.3", "4.1"), context);
+		assertEquals(3, items.size());
+		assertEquals("4.2", items.get(0).getDocumentUniqueId());
+		assertNull(items.get(1));
+		assertEquals("4.1", items.get(2).getDocumentUniqueId());
+		assertEquals(2, target.reads);
+		assertEquals(2, cache.getItemCount());
+	}
+
+	private static byte[] readFully(XdsRepositoryItem item) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		item.getDataHandler().writeTo(baos);
+		return baos.toByteArray();
+	}
+
+	private static class InMemoryRepository implements XdsRepositoryService {
+		private Map<String, byte[]> documents = new HashMap<String, byte[]>();
+		private Map<String, byte[]> databaseDocuments = new HashMap<String, byte[]>();
+		int reads = 0;
+		int contentReads = 0;
+		/**Run once, when the content of the next document has been served*/
+		Runnable onRead = null;
+
+		/**A DAO which only serves the content of the database documents*/
+		private final XdsRepositoryManagerDao dao = (XdsRepositoryManagerDao)Proxy.newProxyInstance(
+				XdsRepositoryManagerDao.class.getClassLoader(), new Class[] {XdsRepositoryManagerDao.class}, 
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (!method.getName().equals("openContentStream"))
+							throw new UnsupportedOperationException(method.getName());
+						contentReads++;
+						return new ByteArrayInputStream(databaseDocuments.get(args[0]));
+					}
+				});
+
+		void put(String id, int size) {
+			documents.put(id, new byte[size]);
+		}
+
+		void putInDatabase(String id, int size) {
+			databaseDocuments.put(id, new byte[size]);
+		}
+
+		public String getRepositoryUniqueId() {
+			return "1.3.6.1.4.1.21367.2009.1.2.701";
+		}
+
+		public XdsRepositoryItem getRepositoryItem(String documentUniqueId, RepositoryRequestContext context) {
+			if (databaseDocuments.containsKey(documentUniqueId)) {
+				reads++;
+				XdsRepositoryItemImpl item = new XdsRepositoryItemImpl(documentUniqueId, new DataHandler(
+						new DatabaseContentDataSource(dao, documentUniqueId, "text/xml", databaseDocuments.get(documentUniqueId).length)));
+				item.setMimeType("text/xml");
+				return item;
+			}
+			byte[] content = documents.get(documentUniqueId);
+			if (content == null)
+				return null;
+			reads++;
+			XdsRepositoryItemImpl item = new XdsRepositoryItemImpl(documentUniqueId,
+					new DataHandler(new ByteArrayDataSource(content, "text/xml")));
+			item.setMimeType("text/xml");
+			if (onRead != null) {
+				Runnable action = onRead;
+				onRead = null;
+				action.run();
+			}
+			return item;
+		}
+
+		public List<XdsRepositoryItem> getRepositoryItems(List<String> documentUniqueIds, RepositoryRequestContext context) {
+			List<XdsRepositoryItem> items = new ArrayList<XdsRepositoryItem>();
+			for (String id : documentUniqueIds)
+				items.add(getRepositoryItem(id, context));
+			return items;
+		}
+
+		public boolean insert(XdsRepositoryItem item, RepositoryRequestContext context) throws RepositoryException {
+			throw new RepositoryException("not supported");
+		}
+
+		public List<String> insert(List<XdsRepositoryItem> items, RepositoryRequestContext context) throws RepositoryException {
+			throw new RepositoryException("not supported");
+		}
+
+		public void delete(String documentUniqueId, RepositoryRequestContext context) {
+			documents.remove(documentUniqueId);
+		}
+
+		public void delete(List<String> ids, RepositoryRequestContext context) {
+			for (String id : ids)
+				delete(id, context);
+		}
+	}
+}
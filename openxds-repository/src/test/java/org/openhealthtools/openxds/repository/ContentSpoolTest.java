@@ -0,0 +1,68 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests the spooling of document content to memory or to a 
+ * temporary file.
+ *
+ */
+public class ContentSpoolTest extends TestCase {
+
+	public void testSmallContent() throws Exception {
+		byte[] content = "abc".getBytes("UTF-8");
+		ContentSpool spool = new ContentSpool(1024);
+		spool.spool(new ByteArrayInputStream(content));
+		assertEquals(3, spool.getLength());
+		assertTrue(Arrays.equals(content, read(spool.getInputStream())));
+		spool.dispose();
+	}
+
+	public void testLargeContent() throws Exception {
+		byte[] content = new byte[20000];
+		for (int i = 0; i < content.length; i++)
+			content[i] = (byte)i;
+		ContentSpool spool = new ContentSpool(100);
+		spool.spool(new ByteArrayInputStream(content));
+		assertEquals(content.length, spool.getLength());
+		//the content can be read more than once
+		assertTrue(Arrays.equals(content, read(spool.getInputStream())));
+		assertTrue(Arrays.equals(content, read(spool.getInputStream())));
+		spool.dispose();
+	}
+
+	private byte[] read(InputStream is) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int n;
+		while ((n = is.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		is.close();
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,207 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.activation.DataHandler;
+
+import junit.framework.TestCase;
+
+import org.openhealthtools.openxds.repository.api.RepositoryException;
+import org.openhealthtools.openxds.repository.api.RepositoryRequestContext;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryItem;
+import org.openhealthtools.openxds.repository.dedup.DeduplicatingRepositoryServiceImpl;
+
+/**
+ * This class tests the deduplicating repository.
+ *
+ */
+public class DeduplicatingRepositoryServiceTest extends TestCase {
+
+	private File root;
+	private DeduplicatingRepositoryServiceImpl repository;
+	private RepositoryRequestContext context = new RepositoryRequestContext();
+
+	protected void setUp() throws Exception {
+		root = File.createTempFile("repository", "");
+		root.delete();
+		root.mkdirs();
+		repository = createRepository();
+	}
+
+	protected void tearDown() throws Exception {
+		delete(root);
+	}
+
+	private DeduplicatingRepositoryServiceImpl createRepository() {
+		DeduplicatingRepositoryServiceImpl repository = new DeduplicatingRepositoryServiceImpl();
+		repository.setRepositoryRoot(root.getPath());
+		//Spools the larger documents to the tmp folder
+		repository.setMemoryThreshold(4);
+		return repository;
+	}
+
+	public void testContentStoredOnce() throws Exception {
+		XdsRepositoryItem item = createItem("1.1", "abc");
+		repository.insert(item, context);
+		assertEquals(3, item.getSize());
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", item.getHash());
+		repository.insert(Arrays.asList(createItem("1.2", "abc"), createItem("1.3", "document")), context);
+
+		assertEquals(3, repository.getDocumentCount());
+		assertEquals(2, repository.getContentCount());
+		assertEquals(1, repository.getDeduplicatedCount());
+		assertEquals(14, repository.getLogicalSize());
+		assertEquals(11, repository.getStoredSize());
+
+		XdsRepositoryItem found = repository.getRepositoryItem("1.2", context);
+		assertEquals("abc", read(found));
+		assertEquals("text/xml", found.getMimeType());
+		assertEquals("text/xml", found.getDataHandler().getContentType());
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", found.getHash());
+		assertEquals("document", read(repository.getRepositoryItem("1.3", context)));
+
+		try {
+			repository.insert(createItem("1.1", "def"), context);
+			fail("A duplicate document must be rejected");
+		} catch (RepositoryException e) {
+			//expected
+		}
+	}
+
+	public void testReferenceCountedDelete() throws Exception {
+		repository.insert(createItem("2.1", "abc"), context);
+		repository.insert(createItem("2.2", "abc"), context);
+		File content = new File(root, "content/a9/99/a9993e364706816aba3e25717850c26c9cd0d89d");
+		assertTrue(content.exists());
+
+		repository.delete("2.1", context);
+		assertTrue(content.exists());
+		assertEquals("abc", read(repository.getRepositoryItem("2.2", context)));
+
+		repository.delete("2.2", context);
+		assertFalse(content.exists());
+		assertEquals(0, repository.getContentCount());
+		assertEquals(1.0, repository.getDeduplicationRatio(), 0.001);
+		try {
+			repository.delete("2.2", context);
+			fail("A deleted document must not be found");
+		} catch (RepositoryException e) {
+			//expected
+		}
+	}
+
+	public void testRetrievedDocumentOpenedWhenRead() throws Exception {
+		repository.insert(createItem("4.1", "document"), context);
+		XdsRepositoryItem found = repository.getRepositoryItem("4.1", context);
+		assertEquals("document", read(found));
+		//Each read opens the content again
+		assertEquals("document", read(found));
+
+		found = repository.getRepositoryItem("4.1", context);
+		repository.delete("4.1", context);
+		assertEquals(0, repository.getContentCount());
+		//The lookup did not open the content, so it is gone with the document
+		try {
+			read(found);
+			fail("The content of a deleted document was read");
+		} catch (FileNotFoundException e) {
+			//expected
+		}
+	}
+
+	public void testConcurrentInserts() throws Exception {
+		final int threads = 8;
+		final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+		List<Thread> started = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final String id = "5." + i;
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						repository.insert(createItem(id, "shared document"), context);
+					} catch (Exception e) {
+						failures.add(e);
+					}
+				}
+			};
+			thread.start();
+			started.add(thread);
+		}
+		for (Thread thread : started)
+			thread.join();
+		assertTrue(failures.isEmpty());
+		assertEquals(threads, repository.getDocumentCount());
+		assertEquals(1, repository.getContentCount());
+		assertEquals(threads - 1, repository.getDeduplicatedCount());
+		for (int i = 0; i < threads; i++)
+			assertEquals("shared document", read(repository.getRepositoryItem("5." + i, context)));
+	}
+
+	public void testReopen() throws Exception {
+		repository.insert(createItem("3.1", "document"), context);
+		repository.insert(createItem("3.2", "document"), context);
+		//A content left by an interrupted insert
+		File orphan = new File(root, "content/00/00/0000000000000000000000000000000000000000");
+		orphan.getParentFile().mkdirs();
+		new FileOutputStream(orphan).close();
+
+		repository = createRepository();
+		assertEquals("document", read(repository.getRepositoryItem("3.2", context)));
+		assertEquals(2, repository.getDocumentCount());
+		assertEquals(1, repository.getContentCount());
+		assertEquals(2.0, repository.getDeduplicationRatio(), 0.001);
+		assertFalse(orphan.exists());
+	}
+
+	private XdsRepositoryItem createItem(String id, String content) throws Exception {
+		return new XdsRepositoryItemImpl(id, new DataHandler(new ByteArrayDataSource(content.getBytes("UTF-8"), "text/xml")));
+	}
+
+	private String read(XdsRepositoryItem item) throws Exception {
+		InputStream is = item.getDataHandler().getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[256];
+		int n;
+		while ((n = is.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		is.close();
+		return out.toString("UTF-8");
+	}
+
+	private void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+		file.delete();
+	}
+}
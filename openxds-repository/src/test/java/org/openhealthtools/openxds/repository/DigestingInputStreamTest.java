@@ -0,0 +1,64 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.activation.DataHandler;
+
+import junit.framework.TestCase;
+
+/**
+ * This class tests that the size and hash are computed while the
+ * document content is copied.
+ *
+ */
+public class DigestingInputStreamTest extends TestCase {
+
+	// SHA1 of "abc", from FIPS 180-1
+	private static final String ABC_SHA1 = "a9993e364706816aba3e25717850c26c9cd0d89d";
+
+	public void testCopyComputesSizeAndHash() throws Exception {
+		byte[] content = "abc".getBytes("UTF-8");
+		DigestingInputStream dis = new DigestingInputStream(new ByteArrayInputStream(content));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long copied = dis.copyTo(out);
+
+		assertEquals(content.length, copied);
+		assertEquals(content.length, dis.getSize());
+		assertEquals(ABC_SHA1, dis.getHash());
+		assertTrue(Arrays.equals(content, out.toByteArray()));
+	}
+
+	public void testRepositoryItemSizeAndHash() throws Exception {
+		byte[] content = new byte[DigestingInputStream.BUFFER_SIZE * 3 + 17];
+		Arrays.fill(content, (byte)0xAB);
+		XdsRepositoryItemImpl item = new XdsRepositoryItemImpl("1.2.3",
+				new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+
+		DigestingInputStream dis = new DigestingInputStream(new ByteArrayInputStream(content));
+		dis.consume();
+		assertEquals(content.length, item.getSize());
+		assertEquals(dis.getHash(), item.getHash());
+	}
+}
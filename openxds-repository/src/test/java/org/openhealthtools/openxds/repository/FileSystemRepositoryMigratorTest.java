@@ -0,0 +1,84 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.TestCase;
+
+import org.openhealthtools.openxds.repository.filesystem.FileSystemRepositoryMigrator;
+
+/**
+ * This class tests the migration of a flat file system repository
+ * into hash-prefix folders.
+ *
+ */
+public class FileSystemRepositoryMigratorTest extends TestCase {
+
+	private File root;
+
+	protected void setUp() throws Exception {
+		root = File.createTempFile("repository", "");
+		root.delete();
+		root.mkdirs();
+	}
+
+	protected void tearDown() throws Exception {
+		delete(root);
+	}
+
+	public void testMigrate() throws Exception {
+		String id = Utility.getInstance().stripId(Utility.getInstance().createId());
+		createFile(new File(root, id + ".xml"));
+		createFile(new File(root, "1.3.6.1.4.1.21367.2010.1.2.txt"));
+
+		FileSystemRepositoryMigrator migrator = new FileSystemRepositoryMigrator(root.getPath(), 2);
+		assertEquals(2, migrator.migrate());
+		assertEquals(0, migrator.getSkipped());
+		assertFalse(new File(root, id + ".xml").exists());
+
+		//only the two hash-prefix folders are left in the root folder
+		String[] names = root.list();
+		for (String name : names) {
+			File dir = new File(root, name);
+			assertTrue(dir.isDirectory());
+			assertEquals(2, name.length());
+		}
+		//running it again finds nothing to move
+		assertEquals(0, migrator.migrate());
+	}
+
+	private void createFile(File file) throws Exception {
+		FileWriter writer = new FileWriter(file);
+		writer.write("content");
+		writer.close();
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+}
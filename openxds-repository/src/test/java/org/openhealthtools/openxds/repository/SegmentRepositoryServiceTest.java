@@ -0,0 +1,240 @@
+/**
+ *  Copyright (c) 2009-2010 Misys Open Source Solutions (MOSS) and others
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ *  Contributors:
+ *    Misys Open Source Solutions - initial API and implementation
+ *    -
+ */
+
+package org.openhealthtools.openxds.repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+
+import junit.framework.TestCase;
+
+import org.openhealthtools.openxds.repository.api.RepositoryException;
+import org.openhealthtools.openxds.repository.api.RepositoryRequestContext;
+import org.openhealthtools.openxds.repository.api.XdsRepositoryItem;
+import org.openhealthtools.openxds.repository.segment.SegmentRepositoryServiceImpl;
+
+/**
+ * This class tests the segment file repository.
+ *
+ */
+public class SegmentRepositoryServiceTest extends TestCase {
+
+	private File root;
+	private SegmentRepositoryServiceImpl repository;
+	private RepositoryRequestContext context = new RepositoryRequestContext();
+
+	protected void setUp() throws Exception {
+		root = File.createTempFile("repository", "");
+		root.delete();
+		root.mkdirs();
+		repository = createRepository();
+	}
+
+	protected void tearDown() throws Exception {
+		repository.close();
+		File[] files = root.listFiles();
+		for (File file : files)
+			file.delete();
+		root.delete();
+	}
+
+	private SegmentRepositoryServiceImpl createRepository() {
+		SegmentRepositoryServiceImpl repository = new SegmentRepositoryServiceImpl();
+		repository.setRepositoryRoot(root.getPath());
+		repository.setMaxSegmentSize(200);
+		return repository;
+	}
+
+	public void testInsertAndRetrieve() throws Exception {
+		XdsRepositoryItem item = createItem("1.1", "abc");
+		repository.insert(item, context);
+		assertEquals(3, item.getSize());
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", item.getHash());
+
+		XdsRepositoryItem found = repository.getRepositoryItem("1.1", context);
+		assertEquals("abc", read(found));
+		assertEquals("text/xml", found.getMimeType());
+
+		try {
+			repository.insert(createItem("1.1", "def"), context);
+			fail("A duplicate document must be rejected");
+		} catch (RepositoryException e) {
+			//expected
+		}
+	}
+
+	public void testReopen() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			repository.insert(createItem("2." + i, "document " + i), context);
+		}
+		repository.delete("2.3", context);
+		repository.close();
+
+		repository = createRepository();
+		assertEquals("document 7", read(repository.getRepositoryItem("2.7", context)));
+		assertEquals("document 19", read(repository.getRepositoryItem("2.19", context)));
+		try {
+			repository.getRepositoryItem("2.3", context);
+			fail("A deleted document must not be found");
+		} catch (RepositoryException e) {
+			//expected
+		}
+	}
+
+	public void testGetRepositoryItems() throws Exception {
+		repository.insert(createItem("5.1", "abc"), context);
+		repository.insert(createItem("5.2", "def"), context);
+		List<XdsRepositoryItem> items = repository.getRepositoryItems(Arrays.asList("5.2", "5.3", "5.1"), context);
+		assertEquals(3, items.size());
+		assertEquals("def", read(items.get(0)));
+		assertNull(items.get(1));
+		assertEquals("abc", read(items.get(2)));
+	}
+
+	public void testIncompleteRecordRemoved() throws Exception {
+		repository.insert(createItem("3.1", "abc"), context);
+		repository.close();
+		File segment = new File(root, "segment-00000001.dat");
+		long size = segment.length();
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(size + 10);
+		raf.close();
+
+		repository = createRepository();
+		assertEquals("abc", read(repository.getRepositoryItem("3.1", context)));
+		assertEquals(size, segment.length());
+	}
+
+	public void testFailedInsertRolledBack() throws Exception {
+		repository.insert(createItem("6.1", "abc"), context);
+		File segment = new File(root, "segment-00000001.dat");
+		long size = segment.length();
+		XdsRepositoryItem unreadable = new XdsRepositoryItemImpl("6.3", new DataHandler(new DataSource() {
+			public InputStream getInputStream() throws IOException {
+				throw new IOException("unreadable");
+			}
+			public OutputStream getOutputStream() throws IOException {
+				throw new IOException("read only");
+			}
+			public String getContentType() {
+				return "text/xml";
+			}
+			public String getName() {
+				return "6.3";
+			}
+		}));
+		try {
+			repository.insert(Arrays.asList(createItem("6.2", "def"), unreadable), context);
+			fail("The insert must fail");
+		} catch (RepositoryException e) {
+			//expected
+		}
+		assertEquals(size, segment.length());
+		assertNull(repository.getRepositoryItems(Arrays.asList("6.2"), context).get(0));
+		//The id of the rolled back document can be used again
+		repository.insert(createItem("6.2", "ghi"), context);
+		repository.close();
+
+		repository = createRepository();
+		assertEquals("abc", read(repository.getRepositoryItem("6.1", context)));
+		assertEquals("ghi", read(repository.getRepositoryItem("6.2", context)));
+	}
+
+	public void testChecksumMismatch() throws Exception {
+		repository.insert(createItem("7.1", "abc"), context);
+		repository.insert(createItem("7.2", "def"), context);
+		File segment = new File(root, "segment-00000001.dat");
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.seek(segment.length() - 1);
+		raf.write('x');
+		raf.close();
+		try {
+			repository.getRepositoryItem("7.2", context);
+			fail("A corrupted document must not be served");
+		} catch (RepositoryException e) {
+			//expected
+		}
+		repository.close();
+
+		repository = createRepository();
+		assertEquals("abc", read(repository.getRepositoryItem("7.1", context)));
+		assertNull(repository.getRepositoryItems(Arrays.asList("7.2"), context).get(0));
+	}
+
+	public void testCompaction() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			repository.insert(createItem("4." + i, "document " + i), context);
+		}
+		int segments = countSegments();
+		//three of every four documents are deleted, so that every sealed segment is compacted
+		for (int i = 0; i < 20; i++) {
+			if (i % 4 != 3)
+				repository.delete("4." + i, context);
+		}
+		//waits for the compaction started in the background, if any
+		repository.compact();
+		for (int i = 3; i < 20; i += 4) {
+			assertEquals("document " + i, read(repository.getRepositoryItem("4." + i, context)));
+		}
+		repository.close();
+		assertTrue(countSegments() < segments);
+
+		repository = createRepository();
+		assertEquals("document 11", read(repository.getRepositoryItem("4.11", context)));
+		try {
+			repository.getRepositoryItem("4.8", context);
+			fail("A deleted document must not be found after compaction");
+		} catch (RepositoryException e) {
+			//expected
+		}
+	}
+
+	private int countSegments() {
+		return root.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".dat");
+			}
+		}).length;
+	}
+
+	private XdsRepositoryItem createItem(String id, String content) throws Exception {
+		return new XdsRepositoryItemImpl(id, new DataHandler(new ByteArrayDataSource(content.getBytes("UTF-8"), "text/xml")));
+	}
+
+	private String read(XdsRepositoryItem item) throws Exception {
+		InputStream is = item.getDataHandler().getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[256];
+		int n;
+		while ((n = is.read(buffer)) != -1)
+			out.write(buffer, 0, n);
+		return out.toString("UTF-8");
+	}
+}